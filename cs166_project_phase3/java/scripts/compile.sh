@@ -3,9 +3,19 @@ DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
 
 
 # compile the java program
-javac -d $DIR/../classes $DIR/../src/PizzaStore.java
+javac -d $DIR/../classes $DIR/../src/*.java
 
 #run the java program
 #Use your database name, port number and login
-java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar PizzaStore $USER"_project_phase_3_DB" $PGPORT $USER
+#Add -Dpizzastore.fastStart=true to show the menu before the connection is up
+#The class archive is only used once build_cds.sh has created it
+CDS=""
+if [ -f $DIR/../classes/pizzastore.jsa ]; then
+   CDS="-XX:SharedArchiveFile=$DIR/../classes/pizzastore.jsa"
+fi
+#Flight Recorder is always on with the PizzaStore settings; the last hour
+#is written to pizzastore.jfr on exit (or: jcmd <pid> JFR.dump).  Summarize:
+#   java -cp $DIR/../classes JfrAnalyzer pizzastore.jfr
+JFR="-XX:StartFlightRecording=settings=$DIR/pizzastore.jfc,maxage=1h,dumponexit=true,filename=pizzastore.jfr"
+java $CDS $JFR -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar PizzaStore $USER"_project_phase_3_DB" $PGPORT $USER
 
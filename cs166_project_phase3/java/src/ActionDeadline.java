@@ -0,0 +1,204 @@
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.sql.Statement;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Database time budget of one menu action.
+ *
+ * The main loop begins a deadline for every action; every statement the
+ * action runs, on any connection or shard, draws on the same budget.  Only
+ * time spent in the database counts, so a user typing at a prompt does not
+ * use it up.  Before a statement runs, the connection's statement_timeout
+ * is set to what is left of the budget, so an overrun is cancelled by the
+ * server itself (the bundled driver ignores setQueryTimeout and cannot
+ * cancel).  The setting is kept while it stays within a quarter of the
+ * remaining budget, so most actions issue one SET per connection.
+ *
+ * statement_timeout is a session setting, so the shared shard connections
+ * are only used by the action's thread and the threads it scatters to;
+ * background work opens its own connections (ConnectionPool) instead.
+ *
+ * Budgets come from -Dpizzastore.deadline.<action> in milliseconds, then
+ * -Dpizzastore.deadline (5000); 0 means no deadline.  Long-running manager
+ * tools and watchOrder have none unless configured.
+ */
+public class ActionDeadline {
+
+   static final long DEFAULT_BUDGET_MS = 5000;
+   private static final String[] UNLIMITED = { "watchOrder", "verifyOrderTotals", "exportOrders", "viewOrderAnalytics" };
+
+   private static final ThreadLocal<ActionDeadline> CURRENT = new ThreadLocal<ActionDeadline>();
+
+   // statement_timeout last set per connection, and for which action
+   private static final Map<Connection, Setting> SETTINGS = new WeakHashMap<Connection, Setting>();
+
+   // runs, timeouts and cached fallbacks per action
+   private static final Map<String, AtomicLong[]> STATS = new TreeMap<String, AtomicLong[]>();
+
+   private final String _action;
+   private final long _budgetNanos;
+   private final AtomicLong _usedNanos = new AtomicLong();
+   private volatile boolean _timedOut = false;
+
+   private ActionDeadline(String action, long budgetMillis) {
+      this._action = action;
+      this._budgetNanos = budgetMillis * 1000000L;
+   }
+
+   private static final class Setting {
+      final ActionDeadline deadline;
+      final long millis;
+
+      Setting(ActionDeadline deadline, long millis) {
+         this.deadline = deadline;
+         this.millis = millis;
+      }
+   }
+
+   public static long budgetMillis(String action) {
+      long fallback = Long.getLong("pizzastore.deadline", DEFAULT_BUDGET_MS);
+      for (String name : UNLIMITED) {
+         if (name.equals(action)) fallback = 0;
+      }
+      return Long.getLong("pizzastore.deadline." + action, fallback);
+   }
+
+   /*
+    * Starts the budget of an action on the calling thread
+    * @return the deadline to end, or null when the action has none
+    **/
+   public static ActionDeadline begin(String action) {
+      stats(action)[0].incrementAndGet();
+      long budget = budgetMillis(action);
+      if (budget <= 0) return null;
+      ActionDeadline deadline = new ActionDeadline(action, budget);
+      CURRENT.set(deadline);
+      return deadline;
+   }
+
+   public void end() {
+      if (CURRENT.get() == this) CURRENT.remove();
+   }
+
+   /*
+    * @return the deadline of the calling thread, to hand to worker threads, or null
+    **/
+   public static ActionDeadline current() {
+      return CURRENT.get();
+   }
+
+   /*
+    * Makes a worker thread draw on another thread's deadline
+    * @return the deadline it replaced, to restore afterwards
+    **/
+   public static ActionDeadline install(ActionDeadline deadline) {
+      ActionDeadline previous = CURRENT.get();
+      if (deadline == null) CURRENT.remove(); else CURRENT.set(deadline);
+      return previous;
+   }
+
+   /*
+    * Applies the remaining budget to a statement about to run
+    * @return the start time to pass to afterStatement
+    * @throws SQLTimeoutException when the budget is already used up
+    **/
+   public static long beforeStatement(Connection connection, Statement stmt) throws SQLException {
+      ActionDeadline deadline = CURRENT.get();
+      long timeout = 0;
+      if (deadline != null) {
+         long remaining = (deadline._budgetNanos - deadline._usedNanos.get()) / 1000000L;
+         if (remaining <= 0) throw deadline.timedOut();
+         timeout = remaining;
+         stmt.setQueryTimeout((int) Math.max(1, (remaining + 999) / 1000));
+      }
+      boolean set;
+      synchronized (SETTINGS) {
+         Setting setting = SETTINGS.get(connection);
+         set = deadline == null
+            ? setting != null
+            : setting == null || setting.deadline != deadline || setting.millis > timeout + timeout / 4;
+         if (set) {
+            if (deadline == null) SETTINGS.remove(connection); else SETTINGS.put(connection, new Setting(deadline, timeout));
+         }
+      }
+      if (set) {
+         Statement setter = connection.createStatement();
+         try {
+            setter.execute("SET statement_timeout = " + timeout);
+         }finally {
+            setter.close();
+         }
+      }
+      return System.nanoTime();
+   }
+
+   public static void afterStatement(long started) {
+      ActionDeadline deadline = CURRENT.get();
+      if (deadline != null) deadline._usedNanos.addAndGet(System.nanoTime() - started);
+   }
+
+   /*
+    * Turns a statement cancelled by statement_timeout into a timeout of
+    * the current action, counted once per action
+    * @return the exception to throw
+    **/
+   public static SQLException failed(SQLException e) {
+      ActionDeadline deadline = CURRENT.get();
+      if (deadline == null || !isTimeout(e)) return e;
+      return deadline.timedOut();
+   }
+
+   private SQLTimeoutException timedOut() {
+      if (!_timedOut) {
+         _timedOut = true;
+         stats(_action)[1].incrementAndGet();
+      }
+      return new SQLTimeoutException("This took longer than its " + (_budgetNanos / 1000000L)
+         + " ms budget and was cancelled. Please try again later.");
+   }
+
+   public static boolean isTimeout(SQLException e) {
+      if (e instanceof SQLTimeoutException) return true;
+      String message = e.getMessage() == null ? "" : e.getMessage().toLowerCase();
+      return message.contains("statement timeout") || message.contains("canceling query");
+   }
+
+   /*
+    * Counts a result served from a cache after the current action timed out
+    **/
+   public static void servedFromCache() {
+      ActionDeadline deadline = CURRENT.get();
+      if (deadline != null) stats(deadline._action)[2].incrementAndGet();
+   }
+
+   private static AtomicLong[] stats(String action) {
+      synchronized (STATS) {
+         AtomicLong[] counters = STATS.get(action);
+         if (counters == null) {
+            counters = new AtomicLong[] { new AtomicLong(), new AtomicLong(), new AtomicLong() };
+            STATS.put(action, counters);
+         }
+         return counters;
+      }
+   }
+
+   public static String metricsReport() {
+      StringBuilder report = new StringBuilder("Action deadlines (runs/timeouts/served from cache):");
+      synchronized (STATS) {
+         if (STATS.isEmpty()) report.append(" none yet");
+         for (Map.Entry<String, AtomicLong[]> action : STATS.entrySet()) {
+            AtomicLong[] counters = action.getValue();
+            report.append("\n  ").append(action.getKey()).append(": ").append(counters[0].get())
+                  .append('/').append(counters[1].get()).append('/').append(counters[2].get());
+            long budget = budgetMillis(action.getKey());
+            report.append(budget > 0 ? " (budget " + budget + " ms)" : " (no deadline)");
+         }
+      }
+      return report.toString();
+   }
+}//end ActionDeadline
@@ -0,0 +1,81 @@
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/*
+ * Flight Recorder event for one menu action, from the menu choice to the
+ * return to the menu.  JdbcEvents committed on the same thread meanwhile
+ * carry the action name and are counted here, so a recording shows which
+ * statements each action ran; JfrAnalyzer prints the totals.
+ *
+ * The event's duration includes the time the user spends typing at the
+ * action's prompts, so dbNanos sums the statements' own durations; rank
+ * actions by it to find the slow ones.  Statements run on shard worker
+ * threads are not counted here.
+ *
+ * The event is enabled without a threshold by default; recording it costs
+ * one small object per action.  See java/scripts/pizzastore.jfc.
+ */
+@Name("pizzastore.Action")
+@Label("PizzaStore Action")
+@Category({ "PizzaStore" })
+@Description("A menu action of the PizzaStore client")
+@StackTrace(false)
+public class ActionEvent extends Event {
+
+   private static final ThreadLocal<ActionEvent> CURRENT = new ThreadLocal<ActionEvent>();
+
+   @Label("Action")
+   String action;
+
+   @Label("Statements")
+   int statements;
+
+   @Label("Rows")
+   long rows;
+
+   @Label("Failed Statements")
+   int failures;
+
+   @Label("Database Time")
+   @Timespan(Timespan.NANOSECONDS)
+   long dbNanos;
+
+   /*
+    * Starts timing an action on the calling thread
+    **/
+   public static ActionEvent start(String action) {
+      ActionEvent event = new ActionEvent();
+      event.action = action;
+      event.begin();
+      CURRENT.set(event);
+      return event;
+   }
+
+   public void finish() {
+      if (CURRENT.get() == this) CURRENT.remove();
+      commit();
+   }
+
+   /*
+    * @return the action running on the calling thread, or null
+    **/
+   public static String currentAction() {
+      ActionEvent event = CURRENT.get();
+      return event == null ? null : event.action;
+   }
+
+   // called by JdbcEvent for each statement of the running action
+   static void statementDone(long rows, boolean failed, long nanos) {
+      ActionEvent event = CURRENT.get();
+      if (event == null) return;
+      event.statements++;
+      event.dbNanos += nanos;
+      event.rows += Math.max(0, rows);
+      if (failed) event.failures++;
+   }
+}//end ActionEvent
@@ -0,0 +1,123 @@
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Admission control in front of order placement.  Every order needs one
+ * slot from its store and one from the global limit.  Callers wait at most
+ * the queue timeout for a slot, and are turned away immediately when too
+ * many callers are already queued for the same store, so a burst of orders
+ * cannot pile up unbounded work on the database.  A store's gate is kept
+ * for the life of the client, so callers only pass storeIDs that exist in
+ * the catalog.
+ *
+ * Limits are read from system properties:
+ *   pizzastore.admission.global      concurrent orders overall (default 32)
+ *   pizzastore.admission.perStore    concurrent orders per store (default 4)
+ *   pizzastore.admission.maxQueue    callers allowed to wait per store (default 16)
+ *   pizzastore.admission.timeoutMs   longest wait for a slot (default 500)
+ */
+public class AdmissionControl {
+
+   private final int _perStoreLimit;
+   private final int _maxQueue;
+   private final long _timeoutMs;
+   private final Semaphore _global;
+   private final Map<Integer, StoreGate> _stores = new ConcurrentHashMap<Integer, StoreGate>();
+
+   private final AtomicLong _admitted = new AtomicLong();
+   private final AtomicLong _rejectedFull = new AtomicLong();
+   private final AtomicLong _rejectedTimeout = new AtomicLong();
+   private final AtomicInteger _queued = new AtomicInteger();
+   private final AtomicInteger _maxQueued = new AtomicInteger();
+
+   // permits and waiting callers of one store
+   private static class StoreGate {
+      final Semaphore permits;
+      final AtomicInteger waiting = new AtomicInteger();
+
+      StoreGate(int limit) {
+         this.permits = new Semaphore(limit, true);
+      }
+   }
+
+   public AdmissionControl() {
+      this(Integer.getInteger("pizzastore.admission.global", 32),
+           Integer.getInteger("pizzastore.admission.perStore", 4),
+           Integer.getInteger("pizzastore.admission.maxQueue", 16),
+           Long.getLong("pizzastore.admission.timeoutMs", 500L));
+   }
+
+   public AdmissionControl(int globalLimit, int perStoreLimit, int maxQueue, long timeoutMs) {
+      this._global = new Semaphore(globalLimit, true);
+      this._perStoreLimit = perStoreLimit;
+      this._maxQueue = maxQueue;
+      this._timeoutMs = timeoutMs;
+   }
+
+   /*
+    * Waits for a store slot and a global slot
+    * @return true if the order may proceed; the caller must then call release
+    **/
+   public boolean tryAcquire(int storeID) {
+      StoreGate gate = _stores.get(storeID);
+      if (gate == null) {
+         StoreGate created = new StoreGate(_perStoreLimit);
+         gate = _stores.putIfAbsent(storeID, created);
+         if (gate == null) gate = created;
+      }
+
+      // fast rejection: the store already has a full queue
+      if (gate.waiting.incrementAndGet() > _maxQueue) {
+         gate.waiting.decrementAndGet();
+         _rejectedFull.incrementAndGet();
+         return false;
+      }
+      int depth = _queued.incrementAndGet();
+      int max = _maxQueued.get();
+      while (depth > max && !_maxQueued.compareAndSet(max, depth)) max = _maxQueued.get();
+
+      long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(_timeoutMs);
+      try {
+         if (!gate.permits.tryAcquire(_timeoutMs, TimeUnit.MILLISECONDS)) {
+            _rejectedTimeout.incrementAndGet();
+            return false;
+         }
+         long remaining = deadline - System.nanoTime();
+         if (!_global.tryAcquire(Math.max(0, remaining), TimeUnit.NANOSECONDS)) {
+            gate.permits.release();
+            _rejectedTimeout.incrementAndGet();
+            return false;
+         }
+         _admitted.incrementAndGet();
+         return true;
+      }catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         _rejectedTimeout.incrementAndGet();
+         return false;
+      }finally {
+         gate.waiting.decrementAndGet();
+         _queued.decrementAndGet();
+      }
+   }
+
+   /*
+    * Returns the slots taken by a successful tryAcquire
+    **/
+   public void release(int storeID) {
+      _global.release();
+      StoreGate gate = _stores.get(storeID);
+      if (gate != null) gate.permits.release();
+   }
+
+   public String metricsReport() {
+      return "Admission control: admitted=" + _admitted.get()
+           + " rejectedSaturated=" + _rejectedFull.get()
+           + " rejectedTimeout=" + _rejectedTimeout.get()
+           + " queueDepth=" + _queued.get()
+           + " maxQueueDepth=" + _maxQueued.get();
+   }
+}//end AdmissionControl
@@ -0,0 +1,370 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/*
+ * In-memory copy of the menu (Items) and the store catalog (Store).  Both
+ * tables are small and read on almost every action, so they are loaded
+ * once and reused until updateMenu invalidates them or they are older
+ * than pizzastore.catalog.ttlMs (default 60000), which bounds how long a
+ * change made by another client goes unseen.
+ *
+ * Each table has a generation that invalidation advances.  A load takes
+ * the generation before it reads and only installs its rows if no
+ * invalidation happened meanwhile, so a read that started before an
+ * update cannot put the old rows back.
+ *
+ * In fast-start mode the catalog is also persisted to a local snapshot
+ * file.  On startup the snapshot is memory-mapped and decoded before the
+ * database connection exists, then revalidated against the database once
+ * the connection completes.
+ *
+ * The last copy of each table survives invalidation, so an action that
+ * runs out of its time budget reloading a table is served the stale copy
+ * instead of an error.
+ *
+ * Loads and filtered reads of both tables go through a SingleFlight, so
+ * threads of this client that miss the cache or filter the same way at
+ * the same moment share one query.  Coalescing stops at the process: with
+ * one interactive session per client it rarely fires, and separate
+ * clients each send their own query.
+ */
+public class CatalogCache {
+
+   public static final String MENU_QUERY = "SELECT * FROM Items;";
+   public static final String STORE_QUERY = "SELECT * FROM Store;";
+
+   private static final int SNAPSHOT_MAGIC = 0x50495A5A;
+   private static final int SNAPSHOT_VERSION = 1;
+
+   // snapshot file, or null when the catalog is not persisted
+   private final File _snapshot;
+
+   private final long _ttlMs = Long.getLong("pizzastore.catalog.ttlMs", 60000L);
+
+   // guarded by this: the cached tables, when they were read and their generations
+   private volatile List<List<String>> _menu = null;
+   private volatile List<List<String>> _stores = null;
+   private long _menuLoadedAt = 0;
+   private long _storesLoadedAt = 0;
+   private long _menuGeneration = 0;
+   private long _storesGeneration = 0;
+
+   // previous copies, kept after invalidation as a fallback for timeouts
+   private volatile List<List<String>> _staleMenu = null;
+   private volatile List<List<String>> _staleStores = null;
+
+   // identical catalog reads in flight, shared between this client's threads
+   private final SingleFlight _reads = new SingleFlight();
+
+   public CatalogCache(File snapshot) {
+      this._snapshot = snapshot;
+   }
+
+   /*
+    * Default snapshot location for a database: ~/.pizzastore/<dbname>.snapshot
+    **/
+   public static File defaultSnapshotFile(String dbname) {
+      String path = System.getProperty("pizzastore.snapshot");
+      if (path != null) return new File(path);
+      return new File(new File(System.getProperty("user.home"), ".pizzastore"), dbname + ".snapshot");
+   }
+
+   /*
+    * Returns every Items row, loading it if it is not cached
+    **/
+   public List<List<String>> getMenu(final PizzaStore esql) throws SQLException {
+      List<List<String>> menu;
+      long generation;
+      synchronized (this) {
+         if (_menu != null && expired(_menuLoadedAt)) {
+            _staleMenu = _menu;
+            _menu = null;
+         }
+         menu = _menu;
+         generation = _menuGeneration;
+      }
+      if (menu == null) {
+         try {
+            menu = _reads.execute(MENU_QUERY, null, new SingleFlight.Call() {
+               public List<List<String>> run() throws SQLException {
+                  return esql.repository().menu();
+               }
+            });
+         }catch (SQLException e) {
+            if (!ActionDeadline.isTimeout(e) || _staleMenu == null) throw e;
+            ActionDeadline.servedFromCache();
+            return _staleMenu;
+         }
+         if (installMenu(menu, generation)) saveSnapshot();
+      }
+      return menu;
+   }
+
+   /*
+    * Returns every Store row, loading it if it is not cached
+    **/
+   public List<List<String>> getStores(final PizzaStore esql) throws SQLException {
+      List<List<String>> stores;
+      long generation;
+      synchronized (this) {
+         if (_stores != null && expired(_storesLoadedAt)) {
+            _staleStores = _stores;
+            _stores = null;
+         }
+         stores = _stores;
+         generation = _storesGeneration;
+      }
+      if (stores == null) {
+         try {
+            stores = _reads.execute(STORE_QUERY, null, new SingleFlight.Call() {
+               public List<List<String>> run() throws SQLException {
+                  return esql.repository().stores();
+               }
+            });
+         }catch (SQLException e) {
+            if (!ActionDeadline.isTimeout(e) || _staleStores == null) throw e;
+            ActionDeadline.servedFromCache();
+            return _staleStores;
+         }
+         if (installStores(stores, generation)) saveSnapshot();
+      }
+      return stores;
+   }
+
+   /*
+    * Runs a filtered read of Items or Store, sharing it with identical
+    * reads in flight
+    * @return the rows, read-only
+    **/
+   public List<List<String>> query(final PizzaStore esql, final String query, final Object... params) throws SQLException {
+      return _reads.execute(query, params, new SingleFlight.Call() {
+         public List<List<String>> run() throws SQLException {
+            return params.length == 0 ? esql.executeQueryAndReturnResult(query)
+                                      : esql.executeQueryAndReturnResult(query, params);
+         }
+      });
+   }
+
+   /*
+    * Returns the cached menu without touching the database, or null
+    **/
+   public List<List<String>> peekMenu() {
+      return _menu;
+   }
+
+   /*
+    * Returns the cached store catalog without touching the database, or null
+    **/
+   public List<List<String>> peekStores() {
+      return _stores;
+   }
+
+   /*
+    * @return the menu generation, to take before loading a menu to offer
+    **/
+   public synchronized long menuGeneration() {
+      return _menuGeneration;
+   }
+
+   /*
+    * Installs a menu loaded elsewhere unless one is already cached or the
+    * menu was invalidated after the load began
+    **/
+   public void offerMenu(List<List<String>> menu, long generation) {
+      synchronized (this) {
+         if (_menu != null) return;
+      }
+      if (installMenu(menu, generation)) saveSnapshot();
+   }
+
+   public void invalidateMenu() {
+      synchronized (this) {
+         // detach reads in flight first, so a caller that sees the new
+         // generation can never join one of them
+         _reads.forget();
+         if (_menu != null) _staleMenu = _menu;
+         _menu = null;
+         _menuGeneration++;
+      }
+   }
+
+   public void invalidateStores() {
+      synchronized (this) {
+         _reads.forget();
+         if (_stores != null) _staleStores = _stores;
+         _stores = null;
+         _storesGeneration++;
+      }
+   }
+
+   private boolean expired(long loadedAt) {
+      return _ttlMs > 0 && System.currentTimeMillis() - loadedAt > _ttlMs;
+   }
+
+   // stores a loaded menu unless an invalidation happened since the load began
+   private synchronized boolean installMenu(List<List<String>> menu, long generation) {
+      if (generation != _menuGeneration) return false;
+      _menu = Collections.unmodifiableList(menu);
+      _menuLoadedAt = System.currentTimeMillis();
+      return true;
+   }
+
+   private synchronized boolean installStores(List<List<String>> stores, long generation) {
+      if (generation != _storesGeneration) return false;
+      _stores = Collections.unmodifiableList(stores);
+      _storesLoadedAt = System.currentTimeMillis();
+      return true;
+   }
+
+   public String metricsReport() {
+      return _reads.metricsReport();
+   }
+
+   /*
+    * Reloads both tables over the given connection and rewrites the
+    * snapshot if anything changed since it was taken.
+    **/
+   public void revalidate(Connection connection) throws SQLException {
+      long menuGeneration;
+      long storesGeneration;
+      synchronized (this) {
+         menuGeneration = _menuGeneration;
+         storesGeneration = _storesGeneration;
+      }
+      List<List<String>> menu = readTable(connection, MENU_QUERY);
+      List<List<String>> stores = readTable(connection, STORE_QUERY);
+      boolean changed = !menu.equals(_menu) || !stores.equals(_stores);
+      changed &= installMenu(menu, menuGeneration) | installStores(stores, storesGeneration);
+      if (changed) saveSnapshot();
+   }
+
+   /*
+    * Maps the snapshot file and decodes it into the cache
+    * @return true if a usable snapshot was loaded
+    **/
+   public boolean loadSnapshot() {
+      if (_snapshot == null || !_snapshot.isFile()) return false;
+      try (RandomAccessFile file = new RandomAccessFile(_snapshot, "r");
+           FileChannel channel = file.getChannel()) {
+         MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+         if (buffer.getInt() != SNAPSHOT_MAGIC || buffer.getInt() != SNAPSHOT_VERSION) return false;
+         List<List<String>> menu = readRows(buffer);
+         List<List<String>> stores = readRows(buffer);
+         // revalidated as soon as the connection is up
+         synchronized (this) {
+            installMenu(menu, _menuGeneration);
+            installStores(stores, _storesGeneration);
+         }
+         return true;
+      }
+      catch (Exception e) {
+         // a damaged snapshot is ignored; the catalog is rebuilt from the database
+         return false;
+      }
+   }
+
+   /*
+    * Writes the cached tables to the snapshot file.  The file is written
+    * under a temporary name and renamed so readers never see half a file.
+    **/
+   public synchronized void saveSnapshot() {
+      List<List<String>> menu = _menu;
+      List<List<String>> stores = _stores;
+      if (_snapshot == null || menu == null || stores == null) return;
+      try {
+         File dir = _snapshot.getAbsoluteFile().getParentFile();
+         if (dir != null) dir.mkdirs();
+         File tmp = new File(_snapshot.getPath() + ".tmp");
+         try (RandomAccessFile file = new RandomAccessFile(tmp, "rw");
+              FileChannel channel = file.getChannel()) {
+            file.setLength(0);
+            ByteBuffer header = ByteBuffer.allocate(8);
+            header.putInt(SNAPSHOT_MAGIC).putInt(SNAPSHOT_VERSION).flip();
+            channel.write(header);
+            writeRows(channel, menu);
+            writeRows(channel, stores);
+            channel.force(true);
+         }
+         if (!tmp.renameTo(_snapshot)) {
+            _snapshot.delete();
+            tmp.renameTo(_snapshot);
+         }
+      }
+      catch (IOException e) {
+         System.err.println("Warning - Unable to save catalog snapshot: " + e.getMessage());
+      }
+   }
+
+   private static List<List<String>> readTable(Connection connection, String query) throws SQLException {
+      Statement stmt = connection.createStatement();
+      try {
+         ResultSet rs = stmt.executeQuery(query);
+         int numCol = rs.getMetaData().getColumnCount();
+         List<List<String>> result = new ArrayList<List<String>>();
+         while (rs.next()) {
+            List<String> record = new ArrayList<String>(numCol);
+            for (int i = 1; i <= numCol; ++i)
+               record.add(rs.getString(i));
+            result.add(record);
+         }
+         return result;
+      }
+      finally {
+         stmt.close();
+      }
+   }
+
+   // rows are stored as: rowCount, columnCount, then each cell as a length
+   // prefixed UTF-8 string with -1 standing for NULL
+   private static List<List<String>> readRows(ByteBuffer buffer) {
+      int rows = buffer.getInt();
+      int cols = buffer.getInt();
+      List<List<String>> result = new ArrayList<List<String>>(rows);
+      for (int r = 0; r < rows; ++r) {
+         List<String> record = new ArrayList<String>(cols);
+         for (int c = 0; c < cols; ++c) {
+            int length = buffer.getInt();
+            if (length < 0) {
+               record.add(null);
+            }
+            else {
+               byte[] bytes = new byte[length];
+               buffer.get(bytes);
+               record.add(new String(bytes, StandardCharsets.UTF_8));
+            }
+         }
+         result.add(record);
+      }
+      return result;
+   }
+
+   private static void writeRows(FileChannel channel, List<List<String>> rows) throws IOException {
+      int cols = rows.isEmpty() ? 0 : rows.get(0).size();
+      ByteBuffer header = ByteBuffer.allocate(8);
+      header.putInt(rows.size()).putInt(cols).flip();
+      channel.write(header);
+      for (List<String> record : rows) {
+         for (String value : record) {
+            byte[] bytes = value == null ? null : value.getBytes(StandardCharsets.UTF_8);
+            ByteBuffer cell = ByteBuffer.allocate(4 + (bytes == null ? 0 : bytes.length));
+            cell.putInt(bytes == null ? -1 : bytes.length);
+            if (bytes != null) cell.put(bytes);
+            cell.flip();
+            channel.write(cell);
+         }
+      }
+   }
+}//end CatalogCache
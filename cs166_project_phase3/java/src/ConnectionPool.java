@@ -0,0 +1,74 @@
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/*
+ * Fixed-size pool of connections to one shard, for background work that
+ * must not share the interactive connection.  Connections are opened on
+ * first demand; borrow blocks while all of them are in use.
+ */
+public class ConnectionPool {
+
+   private final ShardRouter _shards;
+   private final int _shard;
+   private final int _size;
+   private final BlockingQueue<Connection> _idle;
+   private final List<Connection> _all = new ArrayList<Connection>();
+   private boolean _closed = false;
+
+   public ConnectionPool(ShardRouter shards, int shard, int size) {
+      this._shards = shards;
+      this._shard = shard;
+      this._size = size;
+      this._idle = new ArrayBlockingQueue<Connection>(size);
+   }
+
+   public int size() {
+      return _size;
+   }
+
+   /*
+    * Takes an idle connection, opening a new one while below the pool size
+    **/
+   public Connection borrow() throws SQLException {
+      Connection connection = _idle.poll();
+      if (connection != null) return connection;
+      synchronized (this) {
+         if (_closed) throw new SQLException("Connection pool is closed");
+         if (_all.size() < _size) {
+            connection = _shards.openShard(_shard);
+            _all.add(connection);
+            return connection;
+         }
+      }
+      try {
+         return _idle.take();
+      }catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new SQLException("Interrupted while waiting for a connection");
+      }
+   }
+
+   /*
+    * Returns a borrowed connection to the pool
+    **/
+   public void release(Connection connection) {
+      _idle.offer(connection);
+   }
+
+   public synchronized void close() {
+      _closed = true;
+      for (Connection connection : _all) {
+         try {
+            connection.close();
+         }catch (SQLException e) {
+            // ignored.
+         }
+      }
+      _all.clear();
+      _idle.clear();
+   }
+}//end ConnectionPool
@@ -0,0 +1,66 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Minimal CSV support shared by the import and export features.  Fields
+ * may be quoted with double quotes, a doubled quote inside a quoted field
+ * stands for one quote, and whitespace around fields is dropped (the
+ * provided data files put a space after every comma).
+ */
+public class Csv {
+
+   private Csv() {
+   }
+
+   /*
+    * Splits one CSV line into trimmed fields
+    **/
+   public static List<String> parseLine(String line) {
+      List<String> fields = new ArrayList<String>();
+      StringBuilder field = new StringBuilder();
+      boolean quoted = false;
+      boolean wasQuoted = false;
+      for (int i = 0; i < line.length(); ++i) {
+         char c = line.charAt(i);
+         if (quoted) {
+            if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+               field.append('"');
+               ++i;
+            }
+            else if (c == '"') {
+               quoted = false;
+            }
+            else {
+               field.append(c);
+            }
+         }
+         else if (c == '"') {
+            // an opening quote discards the whitespace that preceded it
+            field.setLength(0);
+            quoted = true;
+            wasQuoted = true;
+         }
+         else if (c == ',') {
+            fields.add(wasQuoted ? field.toString() : field.toString().trim());
+            field.setLength(0);
+            wasQuoted = false;
+         }
+         else if (!wasQuoted) {
+            field.append(c);
+         }
+      }
+      fields.add(wasQuoted ? field.toString() : field.toString().trim());
+      return fields;
+   }
+
+   /*
+    * Formats a value as a CSV field, quoting it only when needed
+    **/
+   public static String quote(String value) {
+      if (value == null) return "";
+      boolean needsQuotes = value.indexOf(',') >= 0 || value.indexOf('"') >= 0
+                         || value.indexOf('\n') >= 0 || value.indexOf('\r') >= 0;
+      if (!needsQuotes) return value;
+      return '"' + value.replace("\"", "\"\"") + '"';
+   }
+}//end Csv
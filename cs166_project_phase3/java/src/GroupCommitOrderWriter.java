@@ -0,0 +1,261 @@
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * Places orders from many sessions with one commit per group instead of
+ * one per order.
+ *
+ * Submissions go into a lock-free queue per shard.  A writer thread per
+ * shard takes up to a batch of them and runs place_order for each inside
+ * one transaction.  It waits at most the linger time for the batch to
+ * fill only when the previous group held more than one order; a lone
+ * submitter finds the queue empty and is committed at once.
+ * Every order has its own savepoint, so an order that is rejected (closed
+ * store, unknown item) is rolled back alone and the rest still commit.
+ * Each caller's future completes once the commit holding its order has
+ * returned, so a receipt is never handed out for an order that could
+ * still be lost.
+ *
+ * Orders are only grouped within one JVM: the sessions of a benchmark or
+ * of a multi-threaded client share a commit, while separate client
+ * processes each commit their own orders.
+ *
+ * Enable with -Dpizzastore.groupcommit=true; tuning:
+ * -Dpizzastore.groupcommit.batch (64 orders) and
+ * -Dpizzastore.groupcommit.linger (2 ms).
+ */
+public class GroupCommitOrderWriter {
+
+   static final String PLACE_ORDER = "SELECT o_orderID, o_totalPrice FROM place_order(?, ?, ?::text[], ?::integer[]);";
+
+   private final ShardRouter _shards;
+   private final int _maxBatch;
+   private final long _lingerNanos;
+   private final ShardWriter[] _writers;
+   private volatile boolean _running = true;
+
+   private final AtomicLong _orders = new AtomicLong();
+   private final AtomicLong _rejected = new AtomicLong();
+   private final AtomicLong _commits = new AtomicLong();
+   private final AtomicLong _commitNanos = new AtomicLong();
+
+   public GroupCommitOrderWriter(ShardRouter shards) {
+      this._shards = shards;
+      this._maxBatch = Math.max(1, Integer.getInteger("pizzastore.groupcommit.batch", 64));
+      this._lingerNanos = Long.getLong("pizzastore.groupcommit.linger", 2) * 1000000L;
+      this._writers = new ShardWriter[shards.shardCount()];
+      for (int shard = 0; shard < _writers.length; ++shard) {
+         _writers[shard] = new ShardWriter(shard);
+      }
+   }
+
+   public static boolean isEnabled() {
+      return Boolean.getBoolean("pizzastore.groupcommit");
+   }
+
+   /*
+    * Queues an order for the next group commit of its store's shard
+    * @return completes with the receipt once the order is committed, or
+    * exceptionally with the SQLException that rejected it
+    **/
+   public CompletableFuture<OrderReceipt> submit(String login, int storeID, List<String> itemNames, List<Integer> quantities) {
+      Submission submission = new Submission(login, storeID, PizzaStore.toArrayLiteral(itemNames),
+                                             PizzaStore.toArrayLiteral(quantities));
+      if (!_running) {
+         submission.future.completeExceptionally(new SQLException("Order writer is closed"));
+         return submission.future;
+      }
+      _writers[_shards.shardForStore(storeID)].offer(submission);
+      return submission.future;
+   }
+
+   /*
+    * Submits an order and waits for its commit
+    **/
+   public OrderReceipt place(String login, int storeID, List<String> itemNames, List<Integer> quantities) throws SQLException {
+      try {
+         return submit(login, storeID, itemNames, quantities).get();
+      }catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new SQLException("Interrupted while waiting for the order to commit");
+      }catch (ExecutionException e) {
+         throw e.getCause() instanceof SQLException ? (SQLException) e.getCause()
+                                                    : new SQLException(e.getCause().toString());
+      }
+   }
+
+   private static final class Submission {
+      final String login;
+      final int storeID;
+      final String itemNames;
+      final String quantities;
+      final CompletableFuture<OrderReceipt> future = new CompletableFuture<OrderReceipt>();
+
+      Submission(String login, int storeID, String itemNames, String quantities) {
+         this.login = login;
+         this.storeID = storeID;
+         this.itemNames = itemNames;
+         this.quantities = quantities;
+      }
+   }
+
+   /*
+    * Queue, connection and writer thread of one shard
+    */
+   private final class ShardWriter implements Runnable {
+
+      private final int _shard;
+      private final ConcurrentLinkedQueue<Submission> _queue = new ConcurrentLinkedQueue<Submission>();
+      private final Thread _thread;
+      private Connection _connection = null;
+      // size of the last group written, to tell whether lingering can pay off
+      private int _lastBatch = 0;
+
+      ShardWriter(int shard) {
+         this._shard = shard;
+         this._thread = new Thread(this, "group-commit-writer-" + shard);
+         this._thread.setDaemon(true);
+         this._thread.start();
+      }
+
+      void offer(Submission submission) {
+         _queue.offer(submission);
+         LockSupport.unpark(_thread);
+      }
+
+      public void run() {
+         List<Submission> batch = new ArrayList<Submission>(_maxBatch);
+         while (_running || !_queue.isEmpty()) {
+            Submission first = _queue.poll();
+            if (first == null) {
+               LockSupport.parkNanos(this, 100000000L);
+               continue;
+            }
+            batch.add(first);
+            // a lone submitter would wait the linger for nothing
+            boolean linger = _lastBatch > 1;
+            long lingerUntil = System.nanoTime() + _lingerNanos;
+            while (batch.size() < _maxBatch) {
+               Submission next = _queue.poll();
+               if (next != null) {
+                  batch.add(next);
+                  continue;
+               }
+               long left = lingerUntil - System.nanoTime();
+               if (!linger || left <= 0 || !_running) break;
+               LockSupport.parkNanos(this, left);
+            }
+            _lastBatch = batch.size();
+            write(batch);
+            batch.clear();
+         }
+         closeConnection();
+      }
+
+      private void write(List<Submission> batch) {
+         OrderReceipt[] receipts = new OrderReceipt[batch.size()];
+         SQLException[] errors = new SQLException[batch.size()];
+         try {
+            if (_connection == null) {
+               _connection = _shards.openShard(_shard);
+               _connection.setAutoCommit(false);
+            }
+            boolean savepoints = batch.size() > 1;
+            for (int i = 0; i < batch.size(); ++i) {
+               Submission submission = batch.get(i);
+               if (savepoints) execute("SAVEPOINT group_order");
+               try {
+                  List<List<String>> result = PizzaStore.queryRows(_connection, PLACE_ORDER,
+                     submission.login, submission.storeID, submission.itemNames, submission.quantities);
+                  receipts[i] = new OrderReceipt(Integer.parseInt(result.get(0).get(0)),
+                                                 Double.parseDouble(result.get(0).get(1)));
+                  if (savepoints) execute("RELEASE SAVEPOINT group_order");
+               }catch (SQLException e) {
+                  errors[i] = e;
+                  if (savepoints) execute("ROLLBACK TO SAVEPOINT group_order");
+               }
+            }
+            if (!savepoints && errors[0] != null) {
+               _connection.rollback();
+            }else {
+               long start = System.nanoTime();
+               _connection.commit();
+               _commitNanos.addAndGet(System.nanoTime() - start);
+               _commits.incrementAndGet();
+            }
+         }catch (SQLException e) {
+            // the whole group is lost; every order in it fails with the cause
+            for (int i = 0; i < batch.size(); ++i) {
+               receipts[i] = null;
+               if (errors[i] == null) errors[i] = e;
+            }
+            closeConnection();
+         }
+         for (int i = 0; i < batch.size(); ++i) {
+            if (receipts[i] != null) {
+               _orders.incrementAndGet();
+               batch.get(i).future.complete(receipts[i]);
+            }else {
+               _rejected.incrementAndGet();
+               batch.get(i).future.completeExceptionally(errors[i]);
+            }
+         }
+      }
+
+      private void execute(String command) throws SQLException {
+         Statement stmt = _connection.createStatement();
+         try {
+            stmt.execute(command);
+         }finally {
+            stmt.close();
+         }
+      }
+
+      private void closeConnection() {
+         if (_connection == null) return;
+         try {
+            _connection.rollback();
+            _connection.close();
+         }catch (SQLException e) {
+            // ignored.
+         }
+         _connection = null;
+      }
+   }//end ShardWriter
+
+   /*
+    * Stops taking orders; queued orders are still written
+    **/
+   public void close() {
+      _running = false;
+      for (ShardWriter writer : _writers) {
+         LockSupport.unpark(writer._thread);
+         try {
+            writer._thread.join();
+         }catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+         }
+         // orders that raced with close
+         for (Submission late = writer._queue.poll(); late != null; late = writer._queue.poll()) {
+            late.future.completeExceptionally(new SQLException("Order writer is closed"));
+         }
+      }
+   }
+
+   public String metricsReport() {
+      long commits = _commits.get();
+      return "Group commit: " + _orders.get() + " order(s) in " + commits + " commit(s)"
+           + (commits == 0 ? "" : String.format(" (%.1f orders/commit, %.2f ms/commit)",
+                                                (double) _orders.get() / commits, _commitNanos.get() / 1e6 / commits))
+           + ", " + _rejected.get() + " rejected";
+   }
+}//end GroupCommitOrderWriter
@@ -0,0 +1,523 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * PizzaRepository kept entirely in memory, with no I/O after loading.
+ *
+ * Logins, item names and statuses are interned to dense int IDs once; all
+ * per-row data then lives in parallel primitive arrays.  Orders are found
+ * by ID through an open-addressing int map, and the items of an order and
+ * the orders of a user are chained through int "next" arrays, so placing
+ * an order allocates no objects beyond the receipt.  It follows the same
+ * rules as the place_order procedure and is meant as a zero-I/O baseline
+ * for benchmarks, not as a durable store.
+ */
+public class InMemoryPizzaRepository implements PizzaRepository {
+
+   private static final String[] STATUSES = { "complete", "incomplete" };
+   private static final int INCOMPLETE = 1;
+
+   // users
+   private final Map<String, Integer> _userIndex = new HashMap<String, Integer>();
+   private String[] _logins = new String[16];
+   private String[] _passwords = new String[16];
+   private String[] _roles = new String[16];
+   private String[] _favorites = new String[16];
+   private String[] _phones = new String[16];
+   private int[] _userLastOrder = new int[16];
+   // order summary per user, kept on every order write like UserOrderSummary
+   private int[] _userOrders = new int[16];
+   private int[] _userCompleted = new int[16];
+   private long[] _userSpendCents = new long[16];
+   private int[] _userLatest = new int[16];
+   private int _users = 0;
+
+   // stores, found by storeID through _storeIndex
+   private final IntIntMap _storeIndex = new IntIntMap(16);
+   private int[] _storeIds = new int[16];
+   private String[] _addresses = new String[16];
+   private String[] _cities = new String[16];
+   private String[] _states = new String[16];
+   private boolean[] _open = new boolean[16];
+   private String[] _reviews = new String[16];
+   private int _stores = 0;
+
+   // menu items, prices in cents
+   private final Map<String, Integer> _itemIndex = new HashMap<String, Integer>();
+   private String[] _itemNames = new String[16];
+   private String[] _ingredients = new String[16];
+   private String[] _types = new String[16];
+   private String[] _descriptions = new String[16];
+   private long[] _priceCents = new long[16];
+   private int _items = 0;
+
+   // orders, found by orderID through _orderIndex
+   private final IntIntMap _orderIndex = new IntIntMap(16);
+   private int[] _orderIds = new int[16];
+   private int[] _orderUser = new int[16];
+   private int[] _orderStore = new int[16];
+   private long[] _orderCents = new long[16];
+   private long[] _orderTime = new long[16];
+   private byte[] _orderStatus = new byte[16];
+   private int[] _orderFirstLine = new int[16];
+   private int[] _orderPrevOfUser = new int[16];
+   private int _orders = 0;
+   private int _nextOrderID = 10000;
+
+   // ItemsInOrder rows, chained per order
+   private int[] _lineItem = new int[16];
+   private int[] _lineQuantity = new int[16];
+   private int[] _lineNext = new int[16];
+   private int _lines = 0;
+
+   public InMemoryPizzaRepository() {
+   }
+
+   /*
+    * Builds a repository from the users, store, items, foodorder and
+    * itemsinorder CSV files of the data directory
+    **/
+   public static InMemoryPizzaRepository load(File dataDir) throws IOException {
+      InMemoryPizzaRepository repository = new InMemoryPizzaRepository();
+      for (List<String> row : readCsv(new File(dataDir, "users.csv"))) {
+         repository.addUser(row.get(0), row.get(1), PizzaStore.canonical(row.get(2)), row.get(3), row.get(4));
+      }
+      for (List<String> row : readCsv(new File(dataDir, "store.csv"))) {
+         repository.addStore(Integer.parseInt(row.get(0)), row.get(1), row.get(2), row.get(3),
+                             "yes".equals(PizzaStore.canonical(row.get(4))), row.get(5));
+      }
+      for (List<String> row : readCsv(new File(dataDir, "items.csv"))) {
+         repository.addItem(row.get(0), row.get(1), PizzaStore.canonical(row.get(2)), new BigDecimal(row.get(3)), row.get(4));
+      }
+      for (List<String> row : readCsv(new File(dataDir, "foodorder.csv"))) {
+         repository.addOrder(Integer.parseInt(row.get(0)), row.get(1), Integer.parseInt(row.get(2)),
+                             new BigDecimal(row.get(3)), Timestamp.valueOf(row.get(4)).getTime(), row.get(5));
+      }
+      for (List<String> row : readCsv(new File(dataDir, "itemsinorder.csv"))) {
+         repository.addOrderLine(Integer.parseInt(row.get(0)), row.get(1), Integer.parseInt(row.get(2)));
+      }
+      return repository;
+   }
+
+   private static List<List<String>> readCsv(File file) throws IOException {
+      List<List<String>> rows = new ArrayList<List<String>>();
+      BufferedReader reader = new BufferedReader(new InputStreamReader(
+         new FileInputStream(file), StandardCharsets.UTF_8));
+      try {
+         reader.readLine(); // header
+         String line;
+         while ((line = reader.readLine()) != null) {
+            if (!line.trim().isEmpty()) rows.add(Csv.parseLine(line));
+         }
+      }finally {
+         reader.close();
+      }
+      return rows;
+   }
+
+   public synchronized void addUser(String login, String password, String role, String favorites, String phone) {
+      if (_users == _logins.length) {
+         int capacity = _users * 2;
+         _logins = Arrays.copyOf(_logins, capacity);
+         _passwords = Arrays.copyOf(_passwords, capacity);
+         _roles = Arrays.copyOf(_roles, capacity);
+         _favorites = Arrays.copyOf(_favorites, capacity);
+         _phones = Arrays.copyOf(_phones, capacity);
+         _userLastOrder = Arrays.copyOf(_userLastOrder, capacity);
+         _userOrders = Arrays.copyOf(_userOrders, capacity);
+         _userCompleted = Arrays.copyOf(_userCompleted, capacity);
+         _userSpendCents = Arrays.copyOf(_userSpendCents, capacity);
+         _userLatest = Arrays.copyOf(_userLatest, capacity);
+      }
+      _logins[_users] = login;
+      _passwords[_users] = password;
+      _roles[_users] = role;
+      _favorites[_users] = favorites;
+      _phones[_users] = phone;
+      _userLastOrder[_users] = -1;
+      _userLatest[_users] = -1;
+      _userIndex.put(login, _users++);
+   }
+
+   public synchronized void addStore(int storeID, String address, String city, String state, boolean open, String review) {
+      if (_stores == _storeIds.length) {
+         int capacity = _stores * 2;
+         _storeIds = Arrays.copyOf(_storeIds, capacity);
+         _addresses = Arrays.copyOf(_addresses, capacity);
+         _cities = Arrays.copyOf(_cities, capacity);
+         _states = Arrays.copyOf(_states, capacity);
+         _open = Arrays.copyOf(_open, capacity);
+         _reviews = Arrays.copyOf(_reviews, capacity);
+      }
+      _storeIds[_stores] = storeID;
+      _addresses[_stores] = address;
+      _cities[_stores] = city;
+      _states[_stores] = state;
+      _open[_stores] = open;
+      _reviews[_stores] = review;
+      _storeIndex.put(storeID, _stores++);
+   }
+
+   public synchronized void addItem(String name, String ingredients, String type, BigDecimal price, String description) {
+      if (_items == _itemNames.length) {
+         int capacity = _items * 2;
+         _itemNames = Arrays.copyOf(_itemNames, capacity);
+         _ingredients = Arrays.copyOf(_ingredients, capacity);
+         _types = Arrays.copyOf(_types, capacity);
+         _descriptions = Arrays.copyOf(_descriptions, capacity);
+         _priceCents = Arrays.copyOf(_priceCents, capacity);
+      }
+      _itemNames[_items] = name;
+      _ingredients[_items] = ingredients;
+      _types[_items] = type;
+      _descriptions[_items] = description;
+      _priceCents[_items] = price.movePointRight(2).longValue();
+      _itemIndex.put(name, _items++);
+   }
+
+   // adds a loaded FoodOrder row; its lines are added with addOrderLine
+   synchronized void addOrder(int orderID, String login, int storeID, BigDecimal total, long time, String status) {
+      Integer user = _userIndex.get(login);
+      if (user == null) throw new IllegalArgumentException("Order " + orderID + " references unknown user " + login);
+      appendOrder(orderID, user.intValue(), storeID, total.movePointRight(2).longValue(), time,
+                  "complete".equals(PizzaStore.canonical(status)) ? 0 : INCOMPLETE);
+      if (orderID >= _nextOrderID) _nextOrderID = orderID + 1;
+   }
+
+   synchronized void addOrderLine(int orderID, String itemName, int quantity) {
+      int order = _orderIndex.get(orderID);
+      Integer item = _itemIndex.get(itemName);
+      if (order < 0 || item == null) {
+         throw new IllegalArgumentException("Order line " + orderID + "/" + itemName + " has no order or item");
+      }
+      appendLine(order, item.intValue(), quantity);
+   }
+
+   private int appendOrder(int orderID, int user, int storeID, long cents, long time, int status) {
+      if (_orders == _orderIds.length) {
+         int capacity = _orders * 2;
+         _orderIds = Arrays.copyOf(_orderIds, capacity);
+         _orderUser = Arrays.copyOf(_orderUser, capacity);
+         _orderStore = Arrays.copyOf(_orderStore, capacity);
+         _orderCents = Arrays.copyOf(_orderCents, capacity);
+         _orderTime = Arrays.copyOf(_orderTime, capacity);
+         _orderStatus = Arrays.copyOf(_orderStatus, capacity);
+         _orderFirstLine = Arrays.copyOf(_orderFirstLine, capacity);
+         _orderPrevOfUser = Arrays.copyOf(_orderPrevOfUser, capacity);
+      }
+      int order = _orders++;
+      _orderIds[order] = orderID;
+      _orderUser[order] = user;
+      _orderStore[order] = storeID;
+      _orderCents[order] = cents;
+      _orderTime[order] = time;
+      _orderStatus[order] = (byte) status;
+      _orderFirstLine[order] = -1;
+      _orderPrevOfUser[order] = _userLastOrder[user];
+      _userLastOrder[user] = order;
+      _userOrders[user]++;
+      if (status != INCOMPLETE) _userCompleted[user]++;
+      _userSpendCents[user] += cents;
+      if (_userLatest[user] < 0 || _orderTime[_userLatest[user]] <= time) _userLatest[user] = order;
+      _orderIndex.put(orderID, order);
+      return order;
+   }
+
+   private void appendLine(int order, int item, int quantity) {
+      if (_lines == _lineItem.length) {
+         int capacity = _lines * 2;
+         _lineItem = Arrays.copyOf(_lineItem, capacity);
+         _lineQuantity = Arrays.copyOf(_lineQuantity, capacity);
+         _lineNext = Arrays.copyOf(_lineNext, capacity);
+      }
+      _lineItem[_lines] = item;
+      _lineQuantity[_lines] = quantity;
+      _lineNext[_lines] = _orderFirstLine[order];
+      _orderFirstLine[order] = _lines++;
+   }
+
+   /*
+    * @return the number of users; with loginAt lets callers pick users
+    **/
+   public synchronized int userCount() {
+      return _users;
+   }
+
+   public synchronized String loginAt(int index) {
+      return _logins[index];
+   }
+
+   public synchronized List<List<String>> menu() {
+      List<List<String>> rows = new ArrayList<List<String>>(_items);
+      for (int i = 0; i < _items; ++i) {
+         rows.add(row(_itemNames[i], _ingredients[i], _types[i], cents(_priceCents[i]), _descriptions[i]));
+      }
+      return rows;
+   }
+
+   public synchronized List<List<String>> stores() {
+      List<List<String>> rows = new ArrayList<List<String>>(_stores);
+      for (int i = 0; i < _stores; ++i) {
+         rows.add(row(String.valueOf(_storeIds[i]), _addresses[i], _cities[i], _states[i],
+                      _open[i] ? "yes" : "no", _reviews[i]));
+      }
+      return rows;
+   }
+
+   public synchronized String role(String login) {
+      Integer user = _userIndex.get(login);
+      return user == null ? null : _roles[user.intValue()];
+   }
+
+   public synchronized boolean checkCredentials(String login, String password) {
+      Integer user = _userIndex.get(login);
+      return user != null && _passwords[user.intValue()].equals(password);
+   }
+
+   public synchronized OrderReceipt placeOrder(String login, int storeID, List<String> itemNames, List<Integer> quantities) throws SQLException {
+      // same checks, in the same order, as the place_order procedure
+      if (itemNames.isEmpty()) throw new SQLException("Order must contain at least one item");
+      if (itemNames.size() != quantities.size()) throw new SQLException("Every item needs exactly one quantity");
+      int store = _storeIndex.get(storeID);
+      if (store < 0) throw new SQLException("Store " + storeID + " does not exist");
+      if (!_open[store]) throw new SQLException("Store " + storeID + " is closed");
+      Integer user = _userIndex.get(login);
+      if (user == null) throw new SQLException("User " + login + " does not exist");
+
+      int count = itemNames.size();
+      int[] items = new int[count];
+      long cents = 0;
+      for (int i = 0; i < count; ++i) {
+         Integer item = _itemIndex.get(itemNames.get(i));
+         if (item == null) throw new SQLException("Item '" + itemNames.get(i) + "' does not exist");
+         items[i] = item.intValue();
+      }
+      for (int i = 0; i < count; ++i) {
+         Integer quantity = quantities.get(i);
+         if (quantity == null || quantity.intValue() <= 0) throw new SQLException("Quantities must be positive");
+         cents += _priceCents[items[i]] * quantity.intValue();
+      }
+
+      int orderID = _nextOrderID++;
+      // timestamps are kept to the second like CURRENT_TIMESTAMP(0)
+      int order = appendOrder(orderID, user.intValue(), storeID, cents,
+                              System.currentTimeMillis() / 1000 * 1000, INCOMPLETE);
+      // duplicate items are merged into one line
+      for (int i = 0; i < count; ++i) {
+         int line = _orderFirstLine[order];
+         while (line >= 0 && _lineItem[line] != items[i]) line = _lineNext[line];
+         if (line >= 0) _lineQuantity[line] += quantities.get(i).intValue();
+         else appendLine(order, items[i], quantities.get(i).intValue());
+      }
+      return new OrderReceipt(orderID, cents / 100.0);
+   }
+
+   public synchronized OrderReceipt reorder(String login, int orderID, Integer storeID) throws SQLException {
+      int order = _orderIndex.get(orderID);
+      if (order < 0) throw new SQLException("Order " + orderID + " does not exist");
+      if (!_logins[_orderUser[order]].equals(login)) throw new SQLException("Order " + orderID + " was placed by another user");
+      List<String> itemNames = new ArrayList<String>();
+      List<Integer> quantities = new ArrayList<Integer>();
+      for (int line = _orderFirstLine[order]; line >= 0; line = _lineNext[line]) {
+         itemNames.add(_itemNames[_lineItem[line]]);
+         quantities.add(Integer.valueOf(_lineQuantity[line]));
+      }
+      if (itemNames.isEmpty()) throw new SQLException("None of the items of order " + orderID + " are on the menu anymore");
+      return placeOrder(login, storeID != null ? storeID.intValue() : _orderStore[order], itemNames, quantities);
+   }
+
+   public synchronized OrderReceipt orderFavorites(String login, int storeID) throws SQLException {
+      Integer user = _userIndex.get(login);
+      if (user == null) throw new SQLException("User " + login + " does not exist");
+      String favorites = _favorites[user.intValue()];
+      List<String> itemNames = new ArrayList<String>();
+      List<Integer> quantities = new ArrayList<Integer>();
+      for (String name : (favorites == null ? "" : favorites).split("[,;]")) {
+         for (int item = 0; item < _items; ++item) {
+            if (_itemNames[item].equalsIgnoreCase(name.trim()) && !itemNames.contains(_itemNames[item])) {
+               itemNames.add(_itemNames[item]);
+               quantities.add(Integer.valueOf(1));
+            }
+         }
+      }
+      if (itemNames.isEmpty()) throw new SQLException("None of your favorite items are on the menu");
+      return placeOrder(login, storeID, itemNames, quantities);
+   }
+
+   public synchronized List<List<String>> orderDetails(int orderID, String viewer) {
+      List<List<String>> rows = new ArrayList<List<String>>();
+      int order = _orderIndex.get(orderID);
+      if (order < 0) return rows;
+      String role = role(viewer);
+      int line = _orderFirstLine[order];
+      if (line < 0) {
+         // an order without items still returns one row, as the LEFT JOIN does
+         rows.add(orderRow(order, null, null, role));
+      }
+      for (; line >= 0; line = _lineNext[line]) {
+         rows.add(orderRow(order, _itemNames[_lineItem[line]], String.valueOf(_lineQuantity[line]), role));
+      }
+      return rows;
+   }
+
+   public synchronized Integer updateOrderStatus(int orderID, String status) {
+      int order = _orderIndex.get(orderID);
+      if (order < 0) return null;
+      byte updated = (byte) ("complete".equals(status) ? 0 : INCOMPLETE);
+      if (updated != _orderStatus[order]) _userCompleted[_orderUser[order]] += updated == INCOMPLETE ? -1 : 1;
+      _orderStatus[order] = updated;
+      return Integer.valueOf(_orderStore[order]);
+   }
+
+   public synchronized List<List<String>> ordersOf(String login) {
+      int[] orders = ordersOfUser(login);
+      // order indexes are not in orderID order when loaded orders were out of order
+      long[] keyed = new long[orders.length];
+      for (int i = 0; i < orders.length; ++i) keyed[i] = ((long) _orderIds[orders[i]] << 32) | orders[i];
+      Arrays.sort(keyed);
+      List<List<String>> rows = new ArrayList<List<String>>(orders.length);
+      for (long key : keyed) rows.add(foodOrderRow((int) key));
+      return rows;
+   }
+
+   public synchronized List<List<String>> recentOrdersOf(String login, int limit) {
+      int[] orders = ordersOfUser(login);
+      // bounded selection of the newest orders instead of a full sort
+      int kept = 0;
+      int[] newest = new int[Math.min(limit, orders.length)];
+      for (int order : orders) {
+         int position = kept;
+         while (position > 0 && _orderTime[newest[position - 1]] < _orderTime[order]) --position;
+         if (position >= newest.length) continue;
+         int moved = Math.min(kept, newest.length - 1) - position;
+         System.arraycopy(newest, position, newest, position + 1, moved);
+         newest[position] = order;
+         if (kept < newest.length) ++kept;
+      }
+      List<List<String>> rows = new ArrayList<List<String>>(kept);
+      for (int i = 0; i < kept; ++i) rows.add(foodOrderRow(newest[i]));
+      return rows;
+   }
+
+   public synchronized List<List<String>> profile(String login) {
+      List<List<String>> rows = new ArrayList<List<String>>(1);
+      Integer user = _userIndex.get(login);
+      if (user == null) return rows;
+      int u = user.intValue();
+      int latest = _userLatest[u];
+      List<String> row = row(_logins[u], _phones[u], _roles[u], _favorites[u]);
+      if (_userOrders[u] == 0) {
+         row.addAll(Arrays.asList((String) null, null, null, null, null));
+      }else {
+         row.addAll(row(String.valueOf(_userOrders[u]), String.valueOf(_userCompleted[u]), cents(_userSpendCents[u]),
+                        timestamp(_orderTime[latest]), String.valueOf(_orderStore[latest])));
+      }
+      rows.add(row);
+      return rows;
+   }
+
+   private int[] ordersOfUser(String login) {
+      Integer user = _userIndex.get(login);
+      if (user == null) return new int[0];
+      int count = 0;
+      for (int order = _userLastOrder[user.intValue()]; order >= 0; order = _orderPrevOfUser[order]) ++count;
+      int[] orders = new int[count];
+      for (int order = _userLastOrder[user.intValue()]; order >= 0; order = _orderPrevOfUser[order]) orders[--count] = order;
+      return orders;
+   }
+
+   private List<String> foodOrderRow(int order) {
+      return row(String.valueOf(_orderIds[order]), _logins[_orderUser[order]], String.valueOf(_orderStore[order]),
+                 cents(_orderCents[order]), timestamp(_orderTime[order]), STATUSES[_orderStatus[order]]);
+   }
+
+   private List<String> orderRow(int order, String itemName, String quantity, String role) {
+      List<String> row = foodOrderRow(order);
+      row.add(itemName);
+      row.add(quantity);
+      row.add(role);
+      return row;
+   }
+
+   private static List<String> row(String... values) {
+      return new ArrayList<String>(Arrays.asList(values));
+   }
+
+   private static String cents(long cents) {
+      return BigDecimal.valueOf(cents, 2).toPlainString();
+   }
+
+   // same text as Postgres prints for a timestamp(0)
+   private static String timestamp(long millis) {
+      String text = new Timestamp(millis).toString();
+      return text.endsWith(".0") ? text.substring(0, text.length() - 2) : text;
+   }
+
+   /*
+    * Open-addressing hash map from int keys to non-negative int values
+    * with linear probing; get returns -1 for a missing key.
+    */
+   static final class IntIntMap {
+
+      private static final int FREE = Integer.MIN_VALUE;
+
+      private int[] _keys;
+      private int[] _values;
+      private int _size = 0;
+
+      IntIntMap(int capacity) {
+         int tableSize = Integer.highestOneBit(Math.max(4, capacity) * 2 - 1) << 1;
+         this._keys = new int[tableSize];
+         this._values = new int[tableSize];
+         Arrays.fill(this._keys, FREE);
+      }
+
+      int get(int key) {
+         int mask = _keys.length - 1;
+         for (int slot = mix(key) & mask; ; slot = (slot + 1) & mask) {
+            if (_keys[slot] == key) return _values[slot];
+            if (_keys[slot] == FREE) return -1;
+         }
+      }
+
+      void put(int key, int value) {
+         if (key == FREE) throw new IllegalArgumentException("Key " + key + " is reserved");
+         if ((_size + 1) * 2 > _keys.length) grow();
+         int mask = _keys.length - 1;
+         int slot = mix(key) & mask;
+         while (_keys[slot] != FREE && _keys[slot] != key) slot = (slot + 1) & mask;
+         if (_keys[slot] == FREE) ++_size;
+         _keys[slot] = key;
+         _values[slot] = value;
+      }
+
+      private void grow() {
+         int[] keys = _keys;
+         int[] values = _values;
+         _keys = new int[keys.length * 2];
+         _values = new int[keys.length * 2];
+         Arrays.fill(_keys, FREE);
+         _size = 0;
+         for (int i = 0; i < keys.length; ++i) {
+            if (keys[i] != FREE) put(keys[i], values[i]);
+         }
+      }
+
+      private static int mix(int key) {
+         int h = key * 0x9E3779B9;
+         return h ^ (h >>> 16);
+      }
+   }//end IntIntMap
+}//end InMemoryPizzaRepository
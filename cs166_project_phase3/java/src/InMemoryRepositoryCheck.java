@@ -0,0 +1,63 @@
+import java.math.BigDecimal;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.List;
+
+/*
+ * Checks that InMemoryPizzaRepository follows the rules of the place_order
+ * procedure, so benchmarks against it measure the same work:
+ *
+ *    java InMemoryRepositoryCheck
+ *
+ * Duplicate items merge into one line, a closed store and a non-positive
+ * or missing quantity are rejected with the procedure's message, and a
+ * rejected order leaves nothing behind.  Exits with status 1 on a failure.
+ */
+public class InMemoryRepositoryCheck {
+
+   private static int _failures = 0;
+
+   public static void main(String[] args) throws Exception {
+      InMemoryPizzaRepository repository = new InMemoryPizzaRepository();
+      repository.addUser("alice", "secret", "customer", "", "555-0100");
+      repository.addStore(1, "1 Main St", "Riverside", "CA", true, "4.5");
+      repository.addStore(2, "2 Main St", "Riverside", "CA", false, "3.0");
+      repository.addItem("Pepperoni", "cheese,pepperoni", "entree", new BigDecimal("10.50"), "");
+      repository.addItem("Soda", "soda", "drinks", new BigDecimal("1.25"), "");
+
+      // duplicate items are merged into one line with the summed quantity
+      OrderReceipt receipt = repository.placeOrder("alice", 1, Arrays.asList("Pepperoni", "Soda", "Pepperoni"),
+                                                   Arrays.asList(Integer.valueOf(1), Integer.valueOf(2), Integer.valueOf(3)));
+      List<List<String>> lines = repository.orderDetails(receipt.getOrderID(), "alice");
+      check("duplicate items merge into one line", lines.size() == 2);
+      for (List<String> line : lines) {
+         if ("Pepperoni".equals(line.get(6))) check("merged quantity is the sum", "4".equals(line.get(7)));
+         if ("Soda".equals(line.get(6))) check("other item keeps its quantity", "2".equals(line.get(7)));
+      }
+      check("total prices every unit", Math.abs(receipt.getTotalPrice() - 44.50) < 0.001);
+
+      rejected(repository, "closed store", 2, Arrays.asList(Integer.valueOf(1)), "Store 2 is closed");
+      rejected(repository, "zero quantity", 1, Arrays.asList(Integer.valueOf(0)), "Quantities must be positive");
+      rejected(repository, "negative quantity", 1, Arrays.asList(Integer.valueOf(-2)), "Quantities must be positive");
+      rejected(repository, "missing quantity", 1, Arrays.asList((Integer) null), "Quantities must be positive");
+      check("rejected orders are not stored", repository.ordersOf("alice").size() == 1);
+
+      System.out.println(_failures == 0 ? "All checks passed." : _failures + " check(s) failed.");
+      if (_failures != 0) System.exit(1);
+   }
+
+   private static void rejected(InMemoryPizzaRepository repository, String name, int storeID,
+                                List<Integer> quantities, String message) {
+      try {
+         repository.placeOrder("alice", storeID, Arrays.asList("Pepperoni"), quantities);
+         check(name + " is rejected", false);
+      }catch (SQLException e) {
+         check(name + " is rejected with \"" + message + "\"", message.equals(e.getMessage()));
+      }
+   }
+
+   private static void check(String name, boolean passed) {
+      System.out.println((passed ? "ok     " : "FAILED ") + name);
+      if (!passed) _failures++;
+   }
+}//end InMemoryRepositoryCheck
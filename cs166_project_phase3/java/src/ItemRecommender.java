@@ -0,0 +1,420 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * "Customers who ordered X also ordered Y" suggestions for placeOrder.
+ *
+ * Menu items get dense indexes and _counts[x * _capacity + y] holds the
+ * number of orders containing both x and y (the diagonal is the number of
+ * orders containing x).  The matrix is built once in the background from
+ * ItemsInOrder, with the orderID range of every shard cut into chunks that
+ * a fork-join pool counts on pooled connections, and is then kept current
+ * by adding each new order to it.  A suggestion is a scan of the rows of
+ * the items already chosen, with no query.
+ *
+ * orderIDs are drawn before commit, so an order can become visible after
+ * a higher one was read.  The chunks therefore stop short of the last
+ * -Dpizzastore.recommend.overlap IDs (1000) of each shard, and that
+ * trailing window is read last with no upper bound, remembering which
+ * orders it counted.  Orders placed while the matrix is being built are
+ * held back and added afterwards, and later orders are added as they are
+ * placed, unless that window already counted them.  Items added to the
+ * menu later get a new index on their first order.
+ *
+ * The build scans all of ItemsInOrder, which every client would repeat at
+ * startup, so suggestions are opt-in: enable with -Dpizzastore.recommend=true;
+ * tuning: -Dpizzastore.recommend.threads (cores),
+ * -Dpizzastore.recommend.chunk (50000 order IDs per chunk).
+ */
+public class ItemRecommender {
+
+   private static final String CHUNK_QUERY =
+      "SELECT orderID, itemName FROM ItemsInOrder WHERE orderID >= ? AND orderID < ? ORDER BY orderID;";
+
+   private final PizzaStore _esql;
+   private final int _threads;
+   private final int _chunk;
+   private final int _overlap;
+
+   private final Map<String, Integer> _index = new HashMap<String, Integer>();
+   private String[] _names = new String[0];
+   private int _capacity = 0;
+   private int[] _counts = new int[0];
+
+   // orders recorded while the build runs
+   private List<int[]> _pending = new ArrayList<int[]>();
+   // orders of the trailing window counted by the build, not yet recorded
+   private Set<Integer> _counted = null;
+   private volatile boolean _ready = false;
+
+   private final AtomicLong _ordersCounted = new AtomicLong();
+   private final AtomicLong _ordersRecorded = new AtomicLong();
+   private final AtomicLong _suggestions = new AtomicLong();
+   private final AtomicLong _suggestNanos = new AtomicLong();
+   private volatile long _buildMillis = -1;
+
+   public ItemRecommender(PizzaStore esql) {
+      this._esql = esql;
+      this._threads = Integer.getInteger("pizzastore.recommend.threads", Runtime.getRuntime().availableProcessors());
+      this._chunk = Integer.getInteger("pizzastore.recommend.chunk", 50000);
+      this._overlap = Integer.getInteger("pizzastore.recommend.overlap", 1000);
+   }
+
+   public static boolean isEnabled() {
+      return Boolean.getBoolean("pizzastore.recommend");
+   }
+
+   /*
+    * Builds the matrix on a daemon thread; suggestions are empty until it is done
+    **/
+   public void start() {
+      Thread builder = new Thread(new Runnable() {
+         public void run() {
+            try {
+               build();
+            }catch (Exception e) {
+               System.err.println("Warning - Unable to build item recommendations: " + e.getMessage());
+               serveRecorded();
+            }
+         }
+      }, "item-recommender-build");
+      builder.setDaemon(true);
+      builder.start();
+   }
+
+   /*
+    * Counts every order in ItemsInOrder, then applies the orders recorded meanwhile
+    **/
+   public void build() throws SQLException {
+      long start = System.currentTimeMillis();
+      ShardRouter shards = _esql.shards();
+      int shardCount = shards.shardCount();
+      // the shared shard connections carry the interactive action's timeout
+      ConnectionPool[] pools = new ConnectionPool[shardCount];
+      for (int shard = 0; shard < shardCount; ++shard) {
+         pools[shard] = new ConnectionPool(shards, shard, Math.max(1, _threads / shardCount));
+      }
+      ForkJoinPool workers = new ForkJoinPool(Math.max(1, _threads));
+      // the chunks count orderIDs up to settled[shard]; later ones are in the window
+      long[] settled = new long[shardCount];
+      Set<Integer> window = new HashSet<Integer>();
+      Partial total;
+      try {
+         List<List<String>> items = query(pools[0], "SELECT itemName FROM Items ORDER BY itemName;");
+         synchronized (this) {
+            for (List<String> row : items) indexOf(row.get(0).trim());
+         }
+
+         List<long[]> ranges = new ArrayList<long[]>();
+         for (int shard = 0; shard < shardCount; ++shard) {
+            List<List<String>> bounds = query(pools[shard], "SELECT MIN(orderID), MAX(orderID) FROM ItemsInOrder;");
+            settled[shard] = Long.MIN_VALUE;
+            if (bounds.isEmpty() || bounds.get(0).get(0) == null) continue;
+            long min = Long.parseLong(bounds.get(0).get(0).trim());
+            long max = Long.parseLong(bounds.get(0).get(1).trim());
+            settled[shard] = max - _overlap;
+            for (long from = min; from <= settled[shard]; from += _chunk) {
+               ranges.add(new long[] { shard, from, Math.min(from + _chunk, settled[shard] + 1) });
+            }
+         }
+
+         total = ranges.isEmpty() ? new Partial(new HashMap<String, Integer>())
+                                  : workers.invoke(new ChunkRange(ranges, 0, ranges.size(), pools));
+         for (int shard = 0; shard < shardCount; ++shard) {
+            Connection connection = pools[shard].borrow();
+            try {
+               total.merge(countChunk(connection, settled[shard] + 1, Long.MAX_VALUE, window));
+            }finally {
+               pools[shard].release(connection);
+            }
+         }
+      }finally {
+         workers.shutdown();
+         for (ConnectionPool pool : pools) pool.close();
+      }
+
+      synchronized (this) {
+         // chunk counters indexed names themselves; map them onto the shared indexes
+         int[] map = new int[total.names.size()];
+         for (Map.Entry<String, Integer> name : total.names.entrySet()) {
+            map[name.getValue().intValue()] = indexOf(name.getKey());
+         }
+         for (int x = 0; x < map.length; ++x) {
+            for (int y = 0; y < map.length; ++y) {
+               int count = total.count(x, y);
+               if (count != 0) _counts[map[x] * _capacity + map[y]] += count;
+            }
+         }
+         for (int[] order : _pending) {
+            int orderID = order[0];
+            if (orderID < 0 || (orderID > settled[shards.shardForOrder(orderID)] && !window.remove(orderID))) count(order);
+         }
+         _pending = null;
+         _counted = window;
+         _ready = true;
+      }
+      _buildMillis = System.currentTimeMillis() - start;
+   }
+
+   // after a failed build, suggestions come from the orders of this run only
+   private synchronized void serveRecorded() {
+      for (int[] order : _pending) count(order);
+      _pending = null;
+      _ready = true;
+   }
+
+   /*
+    * Adds a placed order to the matrix
+    * @param orderID the new order, or -1 for an order that has no ID yet
+    **/
+   public synchronized void record(int orderID, List<String> itemNames) {
+      int[] order = new int[itemNames.size() + 1];
+      order[0] = orderID;
+      int distinct = 1;
+      for (String name : itemNames) {
+         int item = indexOf(name.trim());
+         boolean seen = false;
+         for (int i = 1; i < distinct && !seen; ++i) seen = order[i] == item;
+         if (!seen) order[distinct++] = item;
+      }
+      order = Arrays.copyOf(order, distinct);
+      _ordersRecorded.incrementAndGet();
+      if (_pending != null) {
+         _pending.add(order);
+      }else if (_counted == null || !_counted.remove(orderID)) {
+         count(order);
+      }
+   }
+
+   // order[0] is the order ID, the rest distinct item indexes
+   private void count(int[] order) {
+      for (int i = 1; i < order.length; ++i) {
+         int row = order[i] * _capacity;
+         for (int j = 1; j < order.length; ++j) _counts[row + order[j]]++;
+      }
+   }
+
+   /*
+    * @param chosen items already in the order
+    * @param allowed the items that may be suggested, e.g. the current menu, or null for any
+    * @return up to limit items most often ordered together with the chosen ones, best first
+    **/
+   public List<String> suggest(List<String> chosen, Set<String> allowed, int limit) {
+      List<String> result = new ArrayList<String>();
+      if (!_ready || chosen.isEmpty()) return result;
+      long start = System.nanoTime();
+      synchronized (this) {
+         int n = _index.size();
+         long[] score = new long[n];
+         boolean[] excluded = new boolean[n];
+         for (String name : chosen) {
+            Integer item = _index.get(name.trim());
+            if (item == null) continue;
+            excluded[item.intValue()] = true;
+            int row = item.intValue() * _capacity;
+            for (int y = 0; y < n; ++y) score[y] += _counts[row + y];
+         }
+         for (int y = 0; y < n; ++y) {
+            if (excluded[y] || score[y] == 0 || (allowed != null && !allowed.contains(_names[y]))) score[y] = 0;
+         }
+         // selection of the top few; the menu is small
+         for (int k = 0; k < limit; ++k) {
+            int best = -1;
+            for (int y = 0; y < n; ++y) {
+               if (score[y] > 0 && (best < 0 || score[y] > score[best])) best = y;
+            }
+            if (best < 0) break;
+            result.add(_names[best]);
+            score[best] = 0;
+         }
+      }
+      _suggestions.incrementAndGet();
+      _suggestNanos.addAndGet(System.nanoTime() - start);
+      return result;
+   }
+
+   private int indexOf(String name) {
+      Integer item = _index.get(name);
+      if (item != null) return item.intValue();
+      int index = _index.size();
+      if (index == _capacity) grow(Math.max(16, _capacity * 2));
+      _names[index] = name;
+      _index.put(name, Integer.valueOf(index));
+      return index;
+   }
+
+   private void grow(int capacity) {
+      int[] counts = new int[capacity * capacity];
+      for (int x = 0; x < _capacity; ++x) System.arraycopy(_counts, x * _capacity, counts, x * capacity, _capacity);
+      _counts = counts;
+      _names = Arrays.copyOf(_names, capacity);
+      _capacity = capacity;
+   }
+
+   /*
+    * Co-occurrence counts of some chunks, over the item names they met
+    */
+   private static final class Partial {
+
+      final Map<String, Integer> names;
+      int capacity = 0;
+      int[] counts = new int[0];
+
+      Partial(Map<String, Integer> names) {
+         this.names = names;
+      }
+
+      int indexOf(String name) {
+         Integer item = names.get(name);
+         if (item != null) return item.intValue();
+         int index = names.size();
+         if (index == capacity) {
+            int grown = Math.max(16, capacity * 2);
+            int[] larger = new int[grown * grown];
+            for (int x = 0; x < capacity; ++x) System.arraycopy(counts, x * capacity, larger, x * grown, capacity);
+            counts = larger;
+            capacity = grown;
+         }
+         names.put(name, Integer.valueOf(index));
+         return index;
+      }
+
+      int count(int x, int y) {
+         return counts[x * capacity + y];
+      }
+
+      void add(int[] items, int size) {
+         for (int i = 0; i < size; ++i) {
+            int row = items[i] * capacity;
+            for (int j = 0; j < size; ++j) counts[row + items[j]]++;
+         }
+      }
+
+      Partial merge(Partial other) {
+         int[] map = new int[other.names.size()];
+         for (Map.Entry<String, Integer> name : other.names.entrySet()) {
+            map[name.getValue().intValue()] = indexOf(name.getKey());
+         }
+         for (int x = 0; x < map.length; ++x) {
+            int row = map[x] * capacity;
+            for (int y = 0; y < map.length; ++y) counts[row + map[y]] += other.count(x, y);
+         }
+         return this;
+      }
+   }//end Partial
+
+   /*
+    * A range of (shard, from, to) chunks; halves are forked until one chunk is left
+    */
+   private final class ChunkRange extends RecursiveTask<Partial> {
+
+      private static final long serialVersionUID = 1L;
+
+      private final List<long[]> _ranges;
+      private final int _from;
+      private final int _to;
+      private final ConnectionPool[] _pools;
+
+      ChunkRange(List<long[]> ranges, int from, int to, ConnectionPool[] pools) {
+         this._ranges = ranges;
+         this._from = from;
+         this._to = to;
+         this._pools = pools;
+      }
+
+      protected Partial compute() {
+         if (_to - _from > 1) {
+            int middle = (_from + _to) >>> 1;
+            ChunkRange left = new ChunkRange(_ranges, _from, middle, _pools);
+            left.fork();
+            Partial right = new ChunkRange(_ranges, middle, _to, _pools).compute();
+            return left.join().merge(right);
+         }
+         long[] range = _ranges.get(_from);
+         ConnectionPool pool = _pools[(int) range[0]];
+         try {
+            Connection connection = pool.borrow();
+            try {
+               return countChunk(connection, range[1], range[2], null);
+            }finally {
+               pool.release(connection);
+            }
+         }catch (SQLException e) {
+            throw new IllegalStateException("Unable to read orders " + range[1] + " to " + (range[2] - 1) + ": " + e.getMessage(), e);
+         }
+      }
+   }//end ChunkRange
+
+   private static List<List<String>> query(ConnectionPool pool, String query) throws SQLException {
+      Connection connection = pool.borrow();
+      try {
+         return PizzaStore.queryRows(connection, query);
+      }finally {
+         pool.release(connection);
+      }
+   }
+
+   /*
+    * Counts the orders with from <= orderID < to
+    * @param counted collects the orderIDs counted, or null
+    **/
+   private Partial countChunk(Connection connection, long from, long to, Set<Integer> counted) throws SQLException {
+      Partial partial = new Partial(new HashMap<String, Integer>());
+      PreparedStatement stmt = connection.prepareStatement(CHUNK_QUERY);
+      try {
+         stmt.setLong(1, from);
+         stmt.setLong(2, to);
+         ResultSet rs = stmt.executeQuery();
+         int[] items = new int[16];
+         int size = 0;
+         long current = Long.MIN_VALUE;
+         long orders = 0;
+         while (rs.next()) {
+            long orderID = rs.getLong(1);
+            if (orderID != current) {
+               partial.add(items, size);
+               size = 0;
+               current = orderID;
+               ++orders;
+               if (counted != null) counted.add(Integer.valueOf((int) orderID));
+            }
+            int item = partial.indexOf(rs.getString(2).trim());
+            boolean seen = false;
+            for (int i = 0; i < size && !seen; ++i) seen = items[i] == item;
+            if (seen) continue;
+            if (size == items.length) items = Arrays.copyOf(items, size * 2);
+            items[size++] = item;
+         }
+         partial.add(items, size);
+         rs.close();
+         _ordersCounted.addAndGet(orders);
+      }finally {
+         stmt.close();
+      }
+      return partial;
+   }
+
+   public String metricsReport() {
+      long served = _suggestions.get();
+      int items;
+      synchronized (this) {
+         items = _index.size();
+      }
+      return "Item recommendations: " + (!_ready ? "building" : _buildMillis < 0 ? "no history" : "built in " + _buildMillis + " ms") + ", "
+           + items + " item(s), " + _ordersCounted.get() + " order(s) from history, "
+           + _ordersRecorded.get() + " new order(s), " + served + " suggestion(s)"
+           + (served == 0 ? "" : String.format(" averaging %.1f us", _suggestNanos.get() / 1000.0 / served));
+   }
+}//end ItemRecommender
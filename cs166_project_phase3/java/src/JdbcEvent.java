@@ -0,0 +1,118 @@
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/*
+ * Flight Recorder event for one statement run through the PizzaStore
+ * helpers (executeQueryAndReturnResult, executeUpdate, queryRows, ...).
+ *
+ * The SQL is recorded as a template: quoted strings and numbers become ?
+ * so statements built by concatenation group with their parameterized
+ * twins.  The template is only computed for events the recording keeps,
+ * and the action name is passed to shard worker threads, so the event
+ * stays cheap enough to leave enabled.
+ */
+@Name("pizzastore.Jdbc")
+@Label("PizzaStore JDBC Call")
+@Category({ "PizzaStore" })
+@Description("A statement run through a PizzaStore JDBC helper")
+@StackTrace(false)
+public class JdbcEvent extends Event {
+
+   // action of the caller, for statements run on shard worker threads
+   private static final ThreadLocal<String> DELEGATED_ACTION = new ThreadLocal<String>();
+
+   @Label("Helper")
+   String helper;
+
+   @Label("SQL Template")
+   String sql;
+
+   @Label("Rows")
+   long rows = -1;
+
+   @Label("Action")
+   String action;
+
+   @Label("Failed")
+   boolean failed;
+
+   // for the running action's database time; transient fields are not recorded
+   private transient long startNanos;
+
+   /*
+    * Starts timing a statement
+    **/
+   public static JdbcEvent start(String helper) {
+      JdbcEvent event = new JdbcEvent();
+      event.helper = helper;
+      event.startNanos = System.nanoTime();
+      event.begin();
+      return event;
+   }
+
+   /*
+    * Ends the statement
+    * @param rows rows returned or updated, -1 when unknown
+    **/
+   public void finish(String query, long rows, boolean failed) {
+      end();
+      ActionEvent.statementDone(rows, failed, System.nanoTime() - startNanos);
+      if (!shouldCommit()) return;
+      this.sql = template(query);
+      this.rows = rows;
+      this.failed = failed;
+      String current = ActionEvent.currentAction();
+      this.action = current != null ? current : DELEGATED_ACTION.get();
+      commit();
+   }
+
+   /*
+    * Runs statements of another thread's action on this worker thread
+    * @return the action it replaced, to restore afterwards
+    **/
+   public static String delegate(String action) {
+      String previous = DELEGATED_ACTION.get();
+      if (action == null) DELEGATED_ACTION.remove(); else DELEGATED_ACTION.set(action);
+      return previous;
+   }
+
+   /*
+    * Replaces string and numeric literals with ? and collapses whitespace
+    **/
+   static String template(String query) {
+      if (query == null) return null;
+      StringBuilder sql = new StringBuilder(query.length());
+      int length = query.length();
+      boolean space = false;
+      for (int i = 0; i < length; ++i) {
+         char c = query.charAt(i);
+         if (c == '\'') {
+            // skip to the closing quote; '' is an escaped quote
+            ++i;
+            while (i < length && (query.charAt(i) != '\'' || (i + 1 < length && query.charAt(i + 1) == '\''))) {
+               if (query.charAt(i) == '\'') ++i;
+               ++i;
+            }
+            c = '?';
+         }else if (Character.isDigit(c) && (sql.length() == 0 || !isWordChar(sql.charAt(sql.length() - 1)))) {
+            while (i + 1 < length && (Character.isDigit(query.charAt(i + 1)) || query.charAt(i + 1) == '.')) ++i;
+            c = '?';
+         }else if (Character.isWhitespace(c)) {
+            space = true;
+            continue;
+         }
+         if (space && sql.length() > 0) sql.append(' ');
+         space = false;
+         sql.append(c);
+      }
+      return sql.toString();
+   }
+
+   private static boolean isWordChar(char c) {
+      return Character.isLetterOrDigit(c) || c == '_' || c == '$';
+   }
+}//end JdbcEvent
@@ -0,0 +1,152 @@
+import java.math.BigDecimal;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/*
+ * PizzaRepository backed by Postgres.  Order data goes through the shard
+ * router; reference data is read from the primary.
+ */
+public class JdbcPizzaRepository implements PizzaRepository {
+
+   private final PizzaStore _esql;
+
+   public JdbcPizzaRepository(PizzaStore esql) {
+      this._esql = esql;
+   }
+
+   public List<List<String>> menu() throws SQLException {
+      return _esql.executeQueryAndReturnResult(CatalogCache.MENU_QUERY);
+   }
+
+   public List<List<String>> stores() throws SQLException {
+      return _esql.executeQueryAndReturnResult(CatalogCache.STORE_QUERY);
+   }
+
+   public String role(String login) throws SQLException {
+      List<List<String>> rows = _esql.executeQueryAndReturnResult("SELECT role FROM users WHERE login = ?;", login);
+      return rows.isEmpty() ? null : rows.get(0).get(0);
+   }
+
+   public boolean checkCredentials(String login, String password) throws SQLException {
+      return !_esql.executeQueryAndReturnResult(
+         "SELECT 1 FROM users WHERE login = ? AND password = ?;", login, password).isEmpty();
+   }
+
+   public OrderReceipt placeOrder(String login, int storeID, List<String> itemNames, List<Integer> quantities) throws SQLException {
+      if (GroupCommitOrderWriter.isEnabled()) return _esql.orderWriter().place(login, storeID, itemNames, quantities);
+      ShardRouter shards = _esql.shards();
+      List<List<String>> result = PizzaStore.queryRows(shards.shard(shards.shardForStore(storeID)),
+         GroupCommitOrderWriter.PLACE_ORDER, login, storeID, PizzaStore.toArrayLiteral(itemNames), PizzaStore.toArrayLiteral(quantities));
+      return receipt(result);
+   }
+
+   public OrderReceipt reorder(String login, int orderID, Integer storeID) throws SQLException {
+      ShardRouter shards = _esql.shards();
+      if (shards.shardCount() == 1) {
+         return receipt(PizzaStore.queryRows(shards.shard(0),
+            "SELECT o_orderID, o_totalPrice FROM reorder_order(?, ?, ?);", login, orderID, storeID));
+      }
+      // the past order and the new one may sit on different shards, so the
+      // items are read first and placed as a normal order
+      List<List<String>> rows = orderDetails(orderID, login);
+      if (rows.isEmpty()) throw new SQLException("Order " + orderID + " does not exist");
+      if (!login.equals(rows.get(0).get(1).trim())) throw new SQLException("Order " + orderID + " was placed by another user");
+      Set<String> menu = new HashSet<String>();
+      for (List<String> item : menu()) menu.add(item.get(0));
+      List<String> itemNames = new ArrayList<String>();
+      List<Integer> quantities = new ArrayList<Integer>();
+      for (List<String> row : rows) {
+         if (row.get(6) == null || !menu.contains(row.get(6))) continue;
+         itemNames.add(row.get(6));
+         quantities.add(Integer.valueOf(row.get(7).trim()));
+      }
+      if (itemNames.isEmpty()) throw new SQLException("None of the items of order " + orderID + " are on the menu anymore");
+      return placeOrder(login, storeID != null ? storeID.intValue() : Integer.parseInt(rows.get(0).get(2).trim()),
+                        itemNames, quantities);
+   }
+
+   public OrderReceipt orderFavorites(String login, int storeID) throws SQLException {
+      ShardRouter shards = _esql.shards();
+      // users and items are copied to every shard, so this runs where the order belongs
+      return receipt(PizzaStore.queryRows(shards.shard(shards.shardForStore(storeID)),
+         "SELECT o_orderID, o_totalPrice FROM order_favorites(?, ?);", login, storeID));
+   }
+
+   private static OrderReceipt receipt(List<List<String>> result) {
+      return new OrderReceipt(Integer.parseInt(result.get(0).get(0)),
+                              Double.parseDouble(result.get(0).get(1)));
+   }
+
+   public List<List<String>> orderDetails(int orderID, String viewer) throws SQLException {
+      String orderQuery = "SELECT f.orderID, f.login, f.storeID, f.totalPrice, f.orderTimestamp, f.orderStatus, i.itemName, i.quantity, " +
+                          "(SELECT role FROM users WHERE login = ?) " +
+                          "FROM FoodOrder f LEFT JOIN ItemsInOrder i ON i.orderID = f.orderID " +
+                          "WHERE f.orderID = ?;";
+      return _esql.shards().queryOrder(orderID, orderQuery, viewer, orderID);
+   }
+
+   public Integer updateOrderStatus(int orderID, String status) throws SQLException {
+      List<List<String>> updated = _esql.shards().queryOrder(orderID,
+         "UPDATE FoodOrder SET orderStatus = ? WHERE orderID = ? RETURNING storeID;", status, orderID);
+      return updated.isEmpty() ? null : Integer.valueOf(updated.get(0).get(0).trim());
+   }
+
+   public List<List<String>> ordersOf(String login) throws SQLException {
+      List<List<String>> rows = _esql.shards().queryAll("SELECT * FROM FoodOrder WHERE login = ? ORDER BY orderID;", login);
+      if (_esql.shards().shardCount() > 1) {
+         rows.sort(new Comparator<List<String>>() {
+            public int compare(List<String> a, List<String> b) {
+               return Integer.compare(Integer.parseInt(a.get(0)), Integer.parseInt(b.get(0)));
+            }
+         });
+      }
+      return rows;
+   }
+
+   public List<List<String>> profile(String login) throws SQLException {
+      ShardRouter shards = _esql.shards();
+      List<List<String>> rows = PizzaStore.queryRows(shards.shard(0), SessionPrefetch.PROFILE_QUERY, login);
+      if (rows.isEmpty() || shards.shardCount() == 1) return rows;
+      // each shard summarizes the orders it holds; the account page adds them up
+      List<List<String>> parts = shards.queryAll(
+         "SELECT orderCount, completedCount, lifetimeSpend, lastOrderTime, lastStoreID FROM UserOrderSummary WHERE login = ?;", login);
+      if (parts.isEmpty()) return rows;
+      long orders = 0;
+      long completed = 0;
+      BigDecimal spend = BigDecimal.ZERO;
+      List<String> last = parts.get(0);
+      for (List<String> part : parts) {
+         orders += Long.parseLong(part.get(0).trim());
+         completed += Long.parseLong(part.get(1).trim());
+         spend = spend.add(new BigDecimal(part.get(2).trim()));
+         if (part.get(3) != null && (last.get(3) == null || part.get(3).compareTo(last.get(3)) > 0)) last = part;
+      }
+      List<String> row = new ArrayList<String>(rows.get(0).subList(0, 4));
+      row.add(String.valueOf(orders));
+      row.add(String.valueOf(completed));
+      row.add(spend.toPlainString());
+      row.add(last.get(3));
+      row.add(last.get(4));
+      rows.set(0, row);
+      return rows;
+   }
+
+   public List<List<String>> recentOrdersOf(String login, int limit) throws SQLException {
+      // every shard returns its newest rows; the newest overall are kept
+      List<List<String>> rows = _esql.shards().queryAll(
+         "SELECT * FROM FoodOrder WHERE login = ? ORDER BY orderTimestamp DESC LIMIT " + limit + ";", login);
+      if (_esql.shards().shardCount() > 1) {
+         rows.sort(new Comparator<List<String>>() {
+            public int compare(List<String> a, List<String> b) {
+               return b.get(4).compareTo(a.get(4));
+            }
+         });
+         if (rows.size() > limit) rows = rows.subList(0, limit);
+      }
+      return rows;
+   }
+}//end JdbcPizzaRepository
@@ -0,0 +1,193 @@
+import java.io.File;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedThread;
+import jdk.jfr.consumer.RecordingFile;
+
+/*
+ * Prints the hottest actions and statements of a Flight Recorder
+ * recording made with scripts/pizzastore.jfc.
+ *
+ *    java JfrAnalyzer <recording.jfr> [top]
+ *
+ * Actions are ranked by database time, the summed duration of their
+ * statements, since their wall time includes the user typing at prompts;
+ * each shows its statements, rows and sampled allocation, and an
+ * allocation sample belongs to the action running on its thread at the
+ * time.  Statements are ranked by total time per SQL
+ * template, so the same query with different literals is counted once.
+ */
+public class JfrAnalyzer {
+
+   private static final class Totals {
+      final String name;
+      long count;
+      long nanos;
+      long maxNanos;
+      long dbNanos;
+      long rows;
+      long statements;
+      long failures;
+      long allocatedBytes;
+
+      Totals(String name) {
+         this.name = name;
+      }
+
+      void add(long nanos) {
+         this.count++;
+         this.nanos += nanos;
+         this.maxNanos = Math.max(this.maxNanos, nanos);
+      }
+   }
+
+   // one recorded action on one thread, for attributing allocation samples
+   private static final class Span {
+      final long start;
+      final long end;
+      final Totals totals;
+
+      Span(long start, long end, Totals totals) {
+         this.start = start;
+         this.end = end;
+         this.totals = totals;
+      }
+   }
+
+   public static void main(String[] args) throws Exception {
+      if (args.length < 1 || args.length > 2) {
+         System.err.println("Usage: java JfrAnalyzer <recording.jfr> [top]");
+         return;
+      }
+      int top = args.length == 2 ? Integer.parseInt(args[1]) : 10;
+
+      Map<String, Totals> actions = new HashMap<String, Totals>();
+      Map<String, Totals> statements = new HashMap<String, Totals>();
+      Map<Long, List<Span>> spans = new HashMap<Long, List<Span>>();
+      List<long[]> allocations = new ArrayList<long[]>();
+      long gcCount = 0;
+      long gcNanos = 0;
+      long unattributedBytes = 0;
+
+      for (RecordedEvent event : RecordingFile.readAllEvents(new File(args[0]).toPath())) {
+         String type = event.getEventType().getName();
+         if (type.equals("pizzastore.Action")) {
+            Totals action = totals(actions, event.getString("action"));
+            action.add(event.getDuration().toNanos());
+            action.statements += event.getInt("statements");
+            action.rows += event.getLong("rows");
+            action.failures += event.getInt("failures");
+            action.dbNanos += event.getLong("dbNanos");
+            RecordedThread thread = event.getThread();
+            if (thread != null) {
+               List<Span> list = spans.get(thread.getId());
+               if (list == null) {
+                  list = new ArrayList<Span>();
+                  spans.put(thread.getId(), list);
+               }
+               list.add(new Span(nanos(event.getStartTime()), nanos(event.getEndTime()), action));
+            }
+         }else if (type.equals("pizzastore.Jdbc")) {
+            Totals statement = totals(statements, event.getString("sql"));
+            statement.add(event.getDuration().toNanos());
+            statement.rows += Math.max(0, event.getLong("rows"));
+            if (event.getBoolean("failed")) statement.failures++;
+         }else if (type.equals("jdk.ObjectAllocationSample")) {
+            RecordedThread thread = event.getThread("eventThread");
+            allocations.add(new long[] { thread == null ? -1 : thread.getId(),
+                                         nanos(event.getStartTime()), event.getLong("weight") });
+         }else if (type.equals("jdk.GarbageCollection")) {
+            gcCount++;
+            gcNanos += event.getDuration().toNanos();
+         }
+      }
+
+      Comparator<Span> byStart = new Comparator<Span>() {
+         public int compare(Span a, Span b) {
+            return Long.compare(a.start, b.start);
+         }
+      };
+      for (List<Span> list : spans.values()) Collections.sort(list, byStart);
+      for (long[] sample : allocations) {
+         Span span = find(spans.get(sample[0]), sample[1]);
+         if (span == null) unattributedBytes += sample[2]; else span.totals.allocatedBytes += sample[2];
+      }
+
+      System.out.println("Actions by database time (top " + top + "):");
+      System.out.println(String.format("  %-24s %7s %10s %10s %9s %8s %9s %10s", "action", "runs", "db ms", "total ms",
+                                       "max ms", "stmts", "rows", "alloc KB"));
+      for (Totals action : hottest(actions, top, true)) {
+         System.out.println(String.format("  %-24s %7d %10.1f %10.1f %9.1f %8d %9d %10d", action.name, action.count,
+                                          action.dbNanos / 1e6, action.nanos / 1e6, action.maxNanos / 1e6,
+                                          action.statements, action.rows, action.allocatedBytes / 1024)
+                            + (action.failures == 0 ? "" : "  (" + action.failures + " failed statements)"));
+      }
+      System.out.println("  outside any action: " + unattributedBytes / 1024 + " KB allocated");
+
+      System.out.println();
+      System.out.println("Statements by total time (top " + top + "):");
+      System.out.println(String.format("  %7s %10s %9s %9s  %s", "calls", "total ms", "max ms", "rows", "sql"));
+      for (Totals statement : hottest(statements, top, false)) {
+         System.out.println(String.format("  %7d %10.1f %9.1f %9d  %s", statement.count, statement.nanos / 1e6,
+                                          statement.maxNanos / 1e6, statement.rows, statement.name)
+                            + (statement.failures == 0 ? "" : "  (" + statement.failures + " failed)"));
+      }
+
+      System.out.println();
+      System.out.println(String.format("Garbage collections: %d, %.1f ms in total", gcCount, gcNanos / 1e6));
+   }
+
+   private static Totals totals(Map<String, Totals> map, String name) {
+      if (name == null) name = "(unknown)";
+      Totals totals = map.get(name);
+      if (totals == null) {
+         totals = new Totals(name);
+         map.put(name, totals);
+      }
+      return totals;
+   }
+
+   /*
+    * @param byDatabase rank by database time rather than total time
+    **/
+   private static List<Totals> hottest(Map<String, Totals> map, int top, final boolean byDatabase) {
+      List<Totals> list = new ArrayList<Totals>(map.values());
+      Collections.sort(list, new Comparator<Totals>() {
+         public int compare(Totals a, Totals b) {
+            return byDatabase ? Long.compare(b.dbNanos, a.dbNanos) : Long.compare(b.nanos, a.nanos);
+         }
+      });
+      return list.subList(0, Math.min(top, list.size()));
+   }
+
+   /*
+    * @return the last span of the thread starting at or before the time,
+    * if it had not ended yet, or null
+    **/
+   private static Span find(List<Span> list, long time) {
+      if (list == null) return null;
+      int low = 0;
+      int high = list.size() - 1;
+      Span found = null;
+      while (low <= high) {
+         int middle = (low + high) >>> 1;
+         if (list.get(middle).start <= time) {
+            found = list.get(middle);
+            low = middle + 1;
+         }else {
+            high = middle - 1;
+         }
+      }
+      return found != null && time <= found.end ? found : null;
+   }
+
+   private static long nanos(Instant instant) {
+      return instant.getEpochSecond() * 1000000000L + instant.getNano();
+   }
+}//end JfrAnalyzer
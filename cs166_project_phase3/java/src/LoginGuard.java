@@ -0,0 +1,327 @@
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Keeps login and signup floods away from the users table.
+ *
+ *  - A Bloom filter over every known login.  A login the filter has not
+ *    seen is rejected without a query.  Signups in this process are added
+ *    at once; users added by other clients, imports or plain SQL are
+ *    picked up when the filter is rebuilt in the background, so they may
+ *    be refused for at most one refresh interval.
+ *  - Recently verified credentials are cached for a short TTL as a salted
+ *    hash, so repeated logins do not query the table.
+ *  - Failed attempts are counted per login; after too many failures the
+ *    login is throttled with a growing back-off and checked without a query.
+ *
+ * Tuned with pizzastore.login.cacheTtlMs (default 60000),
+ * pizzastore.login.maxFailures (default 5) and
+ * pizzastore.login.refreshMs, the filter rebuild interval (default 60000).
+ * The rebuild reads users on a connection of its own.
+ */
+public class LoginGuard {
+
+   private static final double FALSE_POSITIVE_RATE = 0.01;
+   private static final long MAX_BACKOFF_MS = 5 * 60 * 1000;
+   private static final int MAX_TRACKED_FAILURES = 10000;
+
+   private final long _cacheTtlMs;
+   private final int _maxFailures;
+   private final long _refreshMs;
+   private ScheduledExecutorService _refresher = null;
+
+   // logins added since the last rebuild started, replayed into the new filter
+   private volatile Set<String> _added = newLoginSet();
+   private final byte[] _salt = Long.toString(System.nanoTime()).getBytes(StandardCharsets.UTF_8);
+
+   private volatile BloomFilter _logins = null;
+   private final Map<String, CachedCredential> _verified = new ConcurrentHashMap<String, CachedCredential>();
+   private final Map<String, FailureCount> _failures = new ConcurrentHashMap<String, FailureCount>();
+
+   private final AtomicLong _bloomRejects = new AtomicLong();
+   private final AtomicLong _rebuilds = new AtomicLong();
+   private final AtomicLong _cacheHits = new AtomicLong();
+   private final AtomicLong _throttled = new AtomicLong();
+   private final AtomicLong _databaseChecks = new AtomicLong();
+
+   private static class CachedCredential {
+      final byte[] hash;
+      final long expiresAt;
+
+      CachedCredential(byte[] hash, long expiresAt) {
+         this.hash = hash;
+         this.expiresAt = expiresAt;
+      }
+   }
+
+   private static class FailureCount {
+      int failures = 0;
+      long blockedUntil = 0;
+   }
+
+   /*
+    * Fixed-size Bloom filter using double hashing over two 32 bit hashes
+    **/
+   private static class BloomFilter {
+      private final long[] _bits;
+      private final int _numBits;
+      private final int _numHashes;
+
+      BloomFilter(int expected, double falsePositiveRate) {
+         int n = Math.max(expected, 1024);
+         long m = (long) Math.ceil(-n * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+         this._numBits = (int) Math.min(m, Integer.MAX_VALUE - 63);
+         this._numHashes = Math.max(1, (int) Math.round((double) _numBits / n * Math.log(2)));
+         this._bits = new long[(_numBits + 63) / 64];
+      }
+
+      synchronized void add(String key) {
+         int h1 = key.hashCode();
+         int h2 = mix(h1);
+         for (int i = 0; i < _numHashes; ++i) {
+            int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % _numBits;
+            _bits[bit >>> 6] |= 1L << bit;
+         }
+      }
+
+      synchronized boolean mightContain(String key) {
+         int h1 = key.hashCode();
+         int h2 = mix(h1);
+         for (int i = 0; i < _numHashes; ++i) {
+            int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % _numBits;
+            if ((_bits[bit >>> 6] & (1L << bit)) == 0) return false;
+         }
+         return true;
+      }
+
+      // murmur3 finalizer, forced odd so every probe step is distinct
+      private static int mix(int h) {
+         h ^= h >>> 16;
+         h *= 0x85ebca6b;
+         h ^= h >>> 13;
+         h *= 0xc2b2ae35;
+         h ^= h >>> 16;
+         return h | 1;
+      }
+   }
+
+   public LoginGuard() {
+      this(Long.getLong("pizzastore.login.cacheTtlMs", 60000L),
+           Integer.getInteger("pizzastore.login.maxFailures", 5),
+           Long.getLong("pizzastore.login.refreshMs", 60000L));
+   }
+
+   public LoginGuard(long cacheTtlMs, int maxFailures, long refreshMs) {
+      this._cacheTtlMs = cacheTtlMs;
+      this._maxFailures = maxFailures;
+      this._refreshMs = refreshMs;
+   }
+
+   private static Set<String> newLoginSet() {
+      return Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+   }
+
+   /*
+    * Builds the Bloom filter from every existing login on first use and
+    * starts rebuilding it every refresh interval
+    **/
+   private BloomFilter logins(final PizzaStore esql) throws SQLException {
+      BloomFilter filter = _logins;
+      if (filter == null) {
+         synchronized (this) {
+            filter = _logins;
+            if (filter == null) {
+               filter = rebuild(esql);
+               if (_refreshMs > 0) {
+                  _refresher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                     public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "login-filter-refresh");
+                        thread.setDaemon(true);
+                        return thread;
+                     }
+                  });
+                  _refresher.scheduleWithFixedDelay(new Runnable() {
+                     public void run() {
+                        try {
+                           rebuild(esql);
+                        }catch (SQLException e) {
+                           // the current filter stays in use until a rebuild succeeds
+                           System.err.println("Warning - Unable to refresh the login filter: " + e.getMessage());
+                        }
+                     }
+                  }, _refreshMs, _refreshMs, TimeUnit.MILLISECONDS);
+               }
+            }
+         }
+      }
+      return filter;
+   }
+
+   private BloomFilter rebuild(PizzaStore esql) throws SQLException {
+      Set<String> added = _added;
+      _added = newLoginSet();
+      List<List<String>> rows;
+      Connection connection = esql.openConnection();
+      try {
+         rows = PizzaStore.queryRows(connection, "SELECT login FROM users;");
+      }catch (SQLException e) {
+         _added.addAll(added);
+         throw e;
+      }finally {
+         connection.close();
+      }
+      // sized with headroom so signups do not degrade the filter
+      BloomFilter filter = new BloomFilter(rows.size() * 2, FALSE_POSITIVE_RATE);
+      for (List<String> row : rows) filter.add(row.get(0));
+      // signups of this process the scan may have missed, before and after publishing
+      for (String login : added) filter.add(login);
+      for (String login : _added) filter.add(login);
+      _logins = filter;
+      for (String login : _added) filter.add(login);
+      _rebuilds.incrementAndGet();
+      return filter;
+   }
+
+   /*
+    * @return false when the login was not in the database at the last
+    * rebuild and was not added by this process since
+    **/
+   public boolean mightExist(PizzaStore esql, String login) throws SQLException {
+      if (logins(esql).mightContain(login)) return true;
+      _bloomRejects.incrementAndGet();
+      return false;
+   }
+
+   /*
+    * Records a login that now exists (signup or rename)
+    **/
+   public void addLogin(String login) {
+      _added.add(login);
+      BloomFilter filter = _logins;
+      if (filter != null) filter.add(login);
+   }
+
+   /*
+    * Stops the background rebuilds
+    **/
+   public synchronized void close() {
+      if (_refresher != null) _refresher.shutdownNow();
+   }
+
+   /*
+    * @return milliseconds the login must wait before trying again, or 0
+    **/
+   public long throttleRemaining(String login) {
+      FailureCount count = _failures.get(login);
+      if (count == null) return 0;
+      synchronized (count) {
+         long remaining = count.blockedUntil - System.currentTimeMillis();
+         if (remaining > 0) {
+            _throttled.incrementAndGet();
+            return remaining;
+         }
+         return 0;
+      }
+   }
+
+   /*
+    * @return true if these credentials were verified recently
+    **/
+   public boolean isCachedValid(String login, String password) {
+      CachedCredential cached = _verified.get(login);
+      if (cached == null) return false;
+      if (cached.expiresAt < System.currentTimeMillis()) {
+         _verified.remove(login, cached);
+         return false;
+      }
+      if (!MessageDigest.isEqual(cached.hash, hash(login, password))) return false;
+      _cacheHits.incrementAndGet();
+      return true;
+   }
+
+   /*
+    * Counts a credential check that had to go to the database
+    **/
+   public void recordDatabaseCheck() {
+      _databaseChecks.incrementAndGet();
+   }
+
+   public void recordSuccess(String login, String password) {
+      _failures.remove(login);
+      _verified.put(login, new CachedCredential(hash(login, password), System.currentTimeMillis() + _cacheTtlMs));
+   }
+
+   public void recordFailure(String login) {
+      _verified.remove(login);
+      if (_failures.size() >= MAX_TRACKED_FAILURES) pruneFailures();
+      FailureCount count = _failures.get(login);
+      if (count == null) {
+         FailureCount created = new FailureCount();
+         count = _failures.putIfAbsent(login, created);
+         if (count == null) count = created;
+      }
+      synchronized (count) {
+         count.failures++;
+         if (count.failures >= _maxFailures) {
+            // 1s, 2s, 4s ... after each failure past the limit
+            int excess = Math.min(count.failures - _maxFailures, 20);
+            count.blockedUntil = System.currentTimeMillis() + Math.min(1000L << excess, MAX_BACKOFF_MS);
+         }
+      }
+   }
+
+   /*
+    * Forgets a cached credential after a password change or rename
+    **/
+   public void invalidate(String login) {
+      _verified.remove(login);
+   }
+
+   public String metricsReport() {
+      return "Login guard: bloomRejects=" + _bloomRejects.get()
+           + " filterRebuilds=" + _rebuilds.get()
+           + " credentialCacheHits=" + _cacheHits.get()
+           + " throttled=" + _throttled.get()
+           + " databaseChecks=" + _databaseChecks.get()
+           + " trackedFailures=" + _failures.size();
+   }
+
+   private void pruneFailures() {
+      long now = System.currentTimeMillis();
+      Iterator<FailureCount> it = _failures.values().iterator();
+      while (it.hasNext()) {
+         FailureCount count = it.next();
+         synchronized (count) {
+            if (count.blockedUntil < now) it.remove();
+         }
+      }
+   }
+
+   private byte[] hash(String login, String password) {
+      try {
+         MessageDigest digest = MessageDigest.getInstance("SHA-256");
+         digest.update(_salt);
+         digest.update(login.getBytes(StandardCharsets.UTF_8));
+         digest.update((byte) 0);
+         digest.update(password.getBytes(StandardCharsets.UTF_8));
+         return digest.digest();
+      }catch (NoSuchAlgorithmException e) {
+         // every Java platform ships SHA-256
+         throw new IllegalStateException(e);
+      }
+   }
+}//end LoginGuard
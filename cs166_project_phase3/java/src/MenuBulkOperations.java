@@ -0,0 +1,154 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Set-based menu maintenance for managers.  Each operation runs as a single
+ * transaction on a connection of its own, so the shared main connection
+ * never leaves autocommit, and invalidates the menu cache once when it
+ * commits, instead of once per edited row.  Statements run within the
+ * manager's action budget.
+ */
+public class MenuBulkOperations {
+
+   private MenuBulkOperations() {
+   }
+
+   /*
+    * Reprices every item of one type, either by a percentage or by an
+    * absolute amount.  Nothing is changed if any price would go negative.
+    * @return the number of repriced items
+    **/
+   public static int repriceByType(PizzaStore esql, String typeOfItem, BigDecimal amount, boolean percent) throws SQLException {
+      String newPrice = percent ? "ROUND(price * (1 + ? / 100.0), 2)" : "price + ?";
+      String sql = "UPDATE Items SET price = " + newPrice + " WHERE typeOfItem = ?";
+      Connection connection = esql.shards().openShard(0);
+      try {
+         connection.setAutoCommit(false);
+         PreparedStatement stmt = connection.prepareStatement(sql);
+         stmt.setBigDecimal(1, amount);
+         stmt.setString(2, PizzaStore.canonical(typeOfItem));
+         int updated;
+         try {
+            updated = PizzaStore.updateTimed(connection, stmt, sql, false);
+         }finally {
+            stmt.close();
+         }
+
+         int negative = Integer.parseInt(PizzaStore.queryRows(connection,
+            "SELECT COUNT(*) FROM Items WHERE price < 0;").get(0).get(0).trim());
+         if (negative > 0) {
+            throw new SQLException("Repricing would make " + negative + " item prices negative");
+         }
+
+         connection.commit();
+         esql.catalog().invalidateMenu();
+         return updated;
+      }catch (SQLException e) {
+         rollback(connection);
+         throw e;
+      }finally {
+         close(connection);
+      }
+   }
+
+   /*
+    * Upserts the items of a CSV file laid out like data/items.csv
+    * (itemName, ingredients, typeOfItem, price, description).  Rows are
+    * loaded into a temporary staging table and merged into Items with one
+    * UPDATE ... FROM and one INSERT ... SELECT.  A header row is skipped and
+    * a later row for the same item replaces an earlier one.
+    * @return {items updated, items inserted}
+    **/
+   public static int[] importCsv(PizzaStore esql, File file) throws SQLException, IOException {
+      Map<String, List<String>> rows = new LinkedHashMap<String, List<String>>();
+      BufferedReader reader = new BufferedReader(new FileReader(file));
+      try {
+         String line;
+         int lineNumber = 0;
+         while ((line = reader.readLine()) != null) {
+            ++lineNumber;
+            if (line.trim().isEmpty()) continue;
+            List<String> fields = Csv.parseLine(line);
+            if (lineNumber == 1 && fields.get(0).equalsIgnoreCase("itemName")) continue;
+            if (fields.size() != 5) {
+               throw new IOException("Line " + lineNumber + ": expected 5 fields but found " + fields.size());
+            }
+            rows.put(fields.get(0), fields);
+         }
+      }finally {
+         reader.close();
+      }
+
+      String stage = "INSERT INTO menu_import (itemName, ingredients, typeOfItem, price, description) VALUES (?, ?, ?, ?, ?)";
+      String merge = "UPDATE Items i SET ingredients = s.ingredients, typeOfItem = s.typeOfItem, " +
+                     "price = s.price, description = s.description " +
+                     "FROM menu_import s WHERE i.itemName = s.itemName";
+      String add = "INSERT INTO Items (itemName, ingredients, typeOfItem, price, description) " +
+                   "SELECT s.itemName, s.ingredients, s.typeOfItem, s.price, s.description FROM menu_import s " +
+                   "WHERE NOT EXISTS (SELECT 1 FROM Items i WHERE i.itemName = s.itemName)";
+      Connection connection = esql.shards().openShard(0);
+      try {
+         connection.setAutoCommit(false);
+         Statement stmt = connection.createStatement();
+         PizzaStore.updateTimed(connection, stmt, "CREATE TEMP TABLE menu_import (LIKE Items) ON COMMIT DROP", false);
+
+         PreparedStatement insert = connection.prepareStatement(stage);
+         for (List<String> fields : rows.values()) {
+            insert.setString(1, fields.get(0));
+            insert.setString(2, fields.get(1));
+            insert.setString(3, PizzaStore.canonical(fields.get(2)));
+            try {
+               insert.setBigDecimal(4, new BigDecimal(fields.get(3)));
+            }catch (NumberFormatException e) {
+               throw new SQLException("Invalid price '" + fields.get(3) + "' for item " + fields.get(0));
+            }
+            insert.setString(5, fields.get(4).isEmpty() ? null : fields.get(4));
+            insert.addBatch();
+         }
+         try {
+            PizzaStore.updateTimed(connection, insert, stage, true);
+         }finally {
+            insert.close();
+         }
+
+         int updated = PizzaStore.updateTimed(connection, stmt, merge, false);
+         int inserted = PizzaStore.updateTimed(connection, stmt, add, false);
+         stmt.close();
+
+         connection.commit();
+         esql.catalog().invalidateMenu();
+         return new int[] { updated, inserted };
+      }catch (SQLException e) {
+         rollback(connection);
+         throw e;
+      }finally {
+         close(connection);
+      }
+   }
+
+   private static void rollback(Connection connection) {
+      try {
+         connection.rollback();
+      }catch (SQLException e) {
+         // the connection is closed next, which discards the transaction anyway.
+      }
+   }
+
+   private static void close(Connection connection) {
+      try {
+         connection.close();
+      }catch (SQLException e) {
+         // ignored.
+      }
+   }
+}//end MenuBulkOperations
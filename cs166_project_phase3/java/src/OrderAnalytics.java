@@ -0,0 +1,487 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/*
+ * Columnar copy of FoodOrder and ItemsInOrder for manager analytics.
+ *
+ * Every column is a direct (off-heap) buffer of ints or longs: epoch
+ * seconds, total in cents and dictionary codes for store, login and status
+ * per order; order row, item code and quantity per ordered item.  Scans
+ * read the buffers with absolute gets, split into one slice per core, and
+ * merge small per-slice arrays, so no row objects or strings are created.
+ *
+ * refresh() only pulls orders with an orderID above the last one loaded
+ * from each shard, through a server-side cursor.  orderIDs are drawn
+ * before commit, so an order can become visible after a higher one was
+ * loaded; each refresh therefore re-reads the trailing
+ * -Dpizzastore.analytics.overlap IDs (1000) and skips the orders and
+ * items it already holds.  Orders loaded while not
+ * complete have their status re-read on refresh, since status is the only
+ * column that changes after an order is placed.
+ *
+ * orderTimestamp has no time zone, and EXTRACT(EPOCH ...) counts its wall
+ * clock time as if it were UTC.  Date bounds and BY_HOUR therefore use the
+ * time as stored, with no conversion to the client's or server's zone.
+ */
+public class OrderAnalytics {
+
+   public static final int BY_STORE = 0;
+   public static final int BY_HOUR = 1;
+   public static final int BY_STATUS = 2;
+   public static final int BY_CUSTOMER = 3;
+   public static final int BY_ITEM = 4;
+
+   private static final int FETCH_SIZE = 10000;
+   private static final int STATUS_BATCH = 1000;
+   private static final int ANY = -1;
+
+   private final ShardRouter _shards;
+   private final ExecutorService _workers;
+   private final int _slices;
+   private final ReentrantReadWriteLock _lock = new ReentrantReadWriteLock();
+
+   // order columns
+   private final IntColumn _orderID = new IntColumn();
+   private final IntColumn _store = new IntColumn();
+   private final LongColumn _epoch = new LongColumn();
+   private final LongColumn _cents = new LongColumn();
+   private final IntColumn _login = new IntColumn();
+   private final IntColumn _status = new IntColumn();
+   private int _rows = 0;
+
+   // ordered item columns
+   private final IntColumn _lineRow = new IntColumn();
+   private final IntColumn _lineItem = new IntColumn();
+   private final IntColumn _lineQuantity = new IntColumn();
+   private int _lines = 0;
+
+   // storeIDs get dense codes too, so per-store arrays follow the number of stores
+   private final Dictionary _stores = new Dictionary();
+   private final Dictionary _logins = new Dictionary();
+   private final Dictionary _items = new Dictionary();
+   private final Dictionary _statuses = new Dictionary();
+
+   private final InMemoryPizzaRepository.IntIntMap _rowOfOrder = new InMemoryPizzaRepository.IntIntMap(1024);
+   private final long[] _lastOrderID;
+   private final int _overlap = Integer.getInteger("pizzastore.analytics.overlap", 1000);
+   // rows whose items are loaded
+   private final BitSet _withItems = new BitSet();
+   private int[] _openRows = new int[64];
+   private int _open = 0;
+
+   public OrderAnalytics(ShardRouter shards) {
+      this._shards = shards;
+      this._slices = Runtime.getRuntime().availableProcessors();
+      this._workers = Executors.newFixedThreadPool(_slices, new ThreadFactory() {
+         public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "order-analytics");
+            thread.setDaemon(true);
+            return thread;
+         }
+      });
+      this._lastOrderID = new long[shards.shardCount()];
+      Arrays.fill(this._lastOrderID, Long.MIN_VALUE);
+   }
+
+   /*
+    * Loads orders placed since the last refresh and re-reads open statuses
+    * @return the number of new orders
+    **/
+   public synchronized int refresh() throws SQLException {
+      int added = 0;
+      for (int shard = 0; shard < _shards.shardCount(); ++shard) {
+         Connection connection = _shards.openShard(shard);
+         try {
+            added += loadNewOrders(shard, connection);
+            refreshOpenStatuses(connection);
+         }finally {
+            connection.close();
+         }
+      }
+      return added;
+   }
+
+   private int loadNewOrders(int shard, Connection connection) throws SQLException {
+      long since = _lastOrderID[shard];
+      String after = since == Long.MIN_VALUE ? "" : " WHERE orderID > " + (since - _overlap);
+      int added = 0;
+      long newest = since;
+      int linesBefore = _lines;
+      BitSet filled = new BitSet();
+      boolean loaded = false;
+      connection.setAutoCommit(false);
+      Statement stmt = connection.createStatement();
+      try {
+         // both cursors read the same snapshot, so every loaded order has all its items
+         stmt.executeUpdate("SET TRANSACTION ISOLATION LEVEL REPEATABLE READ");
+         stmt.executeUpdate("DECLARE analytics_orders NO SCROLL CURSOR FOR " +
+            "SELECT orderID, storeID, EXTRACT(EPOCH FROM orderTimestamp)::bigint, " +
+            "(totalPrice * 100)::bigint, login, orderStatus FROM FoodOrder" + after + " ORDER BY orderID");
+         while (true) {
+            ResultSet rs = stmt.executeQuery("FETCH FORWARD " + FETCH_SIZE + " FROM analytics_orders");
+            int fetched = 0;
+            _lock.writeLock().lock();
+            try {
+               while (rs.next()) {
+                  ++fetched;
+                  int orderID = rs.getInt(1);
+                  if (orderID > newest) newest = orderID;
+                  // an order of the overlap, or kept from a failed refresh, is already loaded
+                  if (_rowOfOrder.get(orderID) >= 0) continue;
+                  appendOrder(orderID, rs.getInt(2), rs.getLong(3), rs.getLong(4), rs.getString(5), rs.getString(6));
+                  ++added;
+               }
+            }finally {
+               _lock.writeLock().unlock();
+            }
+            rs.close();
+            if (fetched < FETCH_SIZE) break;
+         }
+         stmt.executeUpdate("CLOSE analytics_orders");
+
+         stmt.executeUpdate("DECLARE analytics_lines NO SCROLL CURSOR FOR " +
+            "SELECT orderID, itemName, quantity FROM ItemsInOrder" + after + " ORDER BY orderID");
+         while (true) {
+            ResultSet rs = stmt.executeQuery("FETCH FORWARD " + FETCH_SIZE + " FROM analytics_lines");
+            int fetched = 0;
+            _lock.writeLock().lock();
+            try {
+               while (rs.next()) {
+                  ++fetched;
+                  int row = _rowOfOrder.get(rs.getInt(1));
+                  if (row < 0 || _withItems.get(row)) continue;
+                  filled.set(row);
+                  _lineRow.set(_lines, row);
+                  _lineItem.set(_lines, _items.code(rs.getString(2)));
+                  _lineQuantity.set(_lines, rs.getInt(3));
+                  ++_lines;
+               }
+            }finally {
+               _lock.writeLock().unlock();
+            }
+            rs.close();
+            if (fetched < FETCH_SIZE) break;
+         }
+         stmt.executeUpdate("CLOSE analytics_lines");
+         connection.commit();
+         loaded = true;
+      }finally {
+         stmt.close();
+         // a failed refresh keeps the new orders, which are skipped next time,
+         // and drops their items, which are read again with the next refresh
+         _lock.writeLock().lock();
+         try {
+            if (loaded) {
+               _lastOrderID[shard] = newest;
+               _withItems.or(filled);
+            }else {
+               _lines = linesBefore;
+            }
+         }finally {
+            _lock.writeLock().unlock();
+         }
+      }
+      return added;
+   }
+
+   private void appendOrder(int orderID, int storeID, long epoch, long cents, String login, String status) {
+      int row = _rows;
+      _orderID.set(row, orderID);
+      _store.set(row, _stores.code(String.valueOf(storeID)));
+      _epoch.set(row, epoch);
+      _cents.set(row, cents);
+      _login.set(row, _logins.code(login));
+      _status.set(row, _statuses.code(status));
+      _rowOfOrder.put(orderID, row);
+      if (!"complete".equals(status)) {
+         if (_open == _openRows.length) _openRows = Arrays.copyOf(_openRows, _open * 2);
+         _openRows[_open++] = row;
+      }
+      _rows = row + 1;
+   }
+
+   private void refreshOpenStatuses(Connection connection) throws SQLException {
+      int[] open;
+      _lock.readLock().lock();
+      try {
+         open = Arrays.copyOf(_openRows, _open);
+      }finally {
+         _lock.readLock().unlock();
+      }
+      for (int from = 0; from < open.length; from += STATUS_BATCH) {
+         StringBuilder ids = new StringBuilder("{");
+         for (int i = from; i < Math.min(open.length, from + STATUS_BATCH); ++i) {
+            ids.append(i == from ? "" : ",").append(_orderID.get(open[i]));
+         }
+         List<List<String>> rows = PizzaStore.queryRows(connection,
+            "SELECT orderID, orderStatus FROM FoodOrder WHERE orderID = ANY (?::integer[]);", ids.append('}').toString());
+         _lock.writeLock().lock();
+         try {
+            for (List<String> row : rows) {
+               int index = _rowOfOrder.get(Integer.parseInt(row.get(0).trim()));
+               if (index >= 0) _status.set(index, _statuses.code(row.get(1)));
+            }
+         }finally {
+            _lock.writeLock().unlock();
+         }
+      }
+
+      // orders that completed no longer need to be re-read
+      _lock.writeLock().lock();
+      try {
+         int complete = _statuses.find("complete");
+         int kept = 0;
+         for (int i = 0; i < _open; ++i) {
+            if (_status.get(_openRows[i]) != complete) _openRows[kept++] = _openRows[i];
+         }
+         _open = kept;
+      }finally {
+         _lock.writeLock().unlock();
+      }
+   }
+
+   /*
+    * One group of a query result
+    */
+   public static final class Group {
+      public final String key;
+      public final long orders;
+      public final long value;
+
+      Group(String key, long orders, long value) {
+         this.key = key;
+         this.orders = orders;
+         this.value = value;
+      }
+   }//end Group
+
+   /*
+    * Groups the orders matching every filter and returns the largest groups
+    * by order count.  value is the revenue in cents, or for BY_ITEM the
+    * ordered quantity.  Filters: storeID or null, status or null, and an
+    * epoch-second range [from, to) where either end may be null.
+    **/
+   public List<Group> groupBy(final int dimension, Integer storeID, String status,
+                              Long from, Long to, int limit) throws SQLException {
+      _lock.readLock().lock();
+      try {
+         final int store = storeID == null ? ANY : _stores.find(storeID.toString());
+         if (storeID != null && store < 0) return new ArrayList<Group>();
+         final int statusCode = status == null ? ANY : _statuses.find(status.trim());
+         if (status != null && statusCode < 0) return new ArrayList<Group>();
+         final long lower = from == null ? Long.MIN_VALUE : from.longValue();
+         final long upper = to == null ? Long.MAX_VALUE : to.longValue();
+         final int groups = groupCount(dimension);
+         final int count = dimension == BY_ITEM ? _lines : _rows;
+
+         List<Future<long[][]>> parts = new ArrayList<Future<long[][]>>();
+         int slice = (count + _slices - 1) / Math.max(1, _slices);
+         for (int start = 0; start < count; start += slice) {
+            final int first = start;
+            final int last = Math.min(count, start + slice);
+            parts.add(_workers.submit(new Callable<long[][]>() {
+               public long[][] call() {
+                  return scan(dimension, first, last, store, statusCode, lower, upper, groups);
+               }
+            }));
+         }
+
+         long[] orders = new long[groups];
+         long[] values = new long[groups];
+         for (Future<long[][]> part : parts) {
+            long[][] partial = part.get();
+            for (int g = 0; g < groups; ++g) {
+               orders[g] += partial[0][g];
+               values[g] += partial[1][g];
+            }
+         }
+         return top(dimension, orders, values, limit);
+      }catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new SQLException("Interrupted while scanning orders");
+      }catch (ExecutionException e) {
+         throw new SQLException("Order scan failed: " + e.getCause());
+      }finally {
+         _lock.readLock().unlock();
+      }
+   }
+
+   private int groupCount(int dimension) {
+      switch (dimension) {
+         case BY_STORE: return _stores.size();
+         case BY_HOUR: return 24;
+         case BY_STATUS: return _statuses.size();
+         case BY_CUSTOMER: return _logins.size();
+         case BY_ITEM: return _items.size();
+         default: throw new IllegalArgumentException("Unknown dimension " + dimension);
+      }
+   }
+
+   // partial counts ([0]) and sums ([1]) per group for rows or lines [first, last)
+   private long[][] scan(int dimension, int first, int last, int store, int status,
+                         long lower, long upper, int groups) {
+      long[] orders = new long[groups];
+      long[] values = new long[groups];
+      for (int i = first; i < last; ++i) {
+         int row = dimension == BY_ITEM ? _lineRow.get(i) : i;
+         if (store != ANY && _store.get(row) != store) continue;
+         if (status != ANY && _status.get(row) != status) continue;
+         long epoch = _epoch.get(row);
+         if (epoch < lower || epoch >= upper) continue;
+         int group;
+         switch (dimension) {
+            case BY_STORE: group = _store.get(row); break;
+            // hour of the stored wall clock time; see the class comment
+            case BY_HOUR: group = (int) Math.floorMod(Math.floorDiv(epoch, 3600L), 24L); break;
+            case BY_STATUS: group = _status.get(row); break;
+            case BY_CUSTOMER: group = _login.get(row); break;
+            default: group = _lineItem.get(i); break;
+         }
+         if (group < 0 || group >= groups) continue;
+         orders[group] += 1;
+         values[group] += dimension == BY_ITEM ? _lineQuantity.get(i) : _cents.get(row);
+      }
+      return new long[][] { orders, values };
+   }
+
+   private List<Group> top(int dimension, long[] orders, long[] values, int limit) {
+      List<Group> result = new ArrayList<Group>();
+      boolean[] taken = new boolean[orders.length];
+      for (int n = 0; n < limit; ++n) {
+         int best = -1;
+         for (int g = 0; g < orders.length; ++g) {
+            if (!taken[g] && orders[g] > 0 && (best < 0 || orders[g] > orders[best])) best = g;
+         }
+         if (best < 0) break;
+         taken[best] = true;
+         result.add(new Group(keyOf(dimension, best), orders[best], values[best]));
+      }
+      return result;
+   }
+
+   private String keyOf(int dimension, int group) {
+      switch (dimension) {
+         case BY_HOUR: return String.format("%02d:00", group);
+         case BY_STATUS: return _statuses.name(group);
+         case BY_CUSTOMER: return _logins.name(group);
+         case BY_ITEM: return _items.name(group);
+         default: return _stores.name(group);
+      }
+   }
+
+   public void close() {
+      _workers.shutdownNow();
+   }
+
+   public String metricsReport() {
+      _lock.readLock().lock();
+      try {
+         long bytes = _orderID.bytes() + _store.bytes() + _epoch.bytes() + _cents.bytes() + _login.bytes()
+                    + _status.bytes() + _lineRow.bytes() + _lineItem.bytes() + _lineQuantity.bytes();
+         return "Order analytics: " + _rows + " order(s), " + _lines + " item row(s), "
+              + (bytes >> 10) + " KB off-heap, " + _open + " open order(s) tracked";
+      }finally {
+         _lock.readLock().unlock();
+      }
+   }
+
+   /*
+    * Growable column of ints in a direct buffer
+    */
+   private static final class IntColumn {
+      private ByteBuffer _buffer = ByteBuffer.allocateDirect(1024 * 4).order(ByteOrder.nativeOrder());
+
+      int get(int index) {
+         return _buffer.getInt(index << 2);
+      }
+
+      void set(int index, int value) {
+         if ((index << 2) >= _buffer.capacity()) _buffer = grow(_buffer, index << 2);
+         _buffer.putInt(index << 2, value);
+      }
+
+      long bytes() {
+         return _buffer.capacity();
+      }
+   }//end IntColumn
+
+   /*
+    * Growable column of longs in a direct buffer
+    */
+   private static final class LongColumn {
+      private ByteBuffer _buffer = ByteBuffer.allocateDirect(1024 * 8).order(ByteOrder.nativeOrder());
+
+      long get(int index) {
+         return _buffer.getLong(index << 3);
+      }
+
+      void set(int index, long value) {
+         if ((index << 3) >= _buffer.capacity()) _buffer = grow(_buffer, index << 3);
+         _buffer.putLong(index << 3, value);
+      }
+
+      long bytes() {
+         return _buffer.capacity();
+      }
+   }//end LongColumn
+
+   private static ByteBuffer grow(ByteBuffer buffer, int needed) {
+      int capacity = buffer.capacity();
+      while (capacity <= needed) capacity *= 2;
+      ByteBuffer grown = ByteBuffer.allocateDirect(capacity).order(ByteOrder.nativeOrder());
+      ByteBuffer old = buffer.duplicate();
+      old.clear();
+      grown.put(old);
+      grown.clear();
+      return grown;
+   }
+
+   /*
+    * Maps strings to dense codes
+    */
+   private static final class Dictionary {
+      private final Map<String, Integer> _codes = new HashMap<String, Integer>();
+      private final List<String> _names = new ArrayList<String>();
+
+      int code(String name) {
+         if (name == null) name = "";
+         Integer code = _codes.get(name);
+         if (code == null) {
+            code = Integer.valueOf(_names.size());
+            _codes.put(name, code);
+            _names.add(name);
+         }
+         return code.intValue();
+      }
+
+      int find(String name) {
+         Integer code = _codes.get(name);
+         return code == null ? -1 : code.intValue();
+      }
+
+      String name(int code) {
+         return _names.get(code);
+      }
+
+      int size() {
+         return _names.size();
+      }
+   }//end Dictionary
+}//end OrderAnalytics
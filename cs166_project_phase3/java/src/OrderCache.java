@@ -0,0 +1,51 @@
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Bounded LRU cache of fully assembled orders keyed by orderID.  Only
+ * completed orders are stored: once an order is complete it never changes,
+ * so a cached copy can be served without going back to the database.
+ */
+public class OrderCache {
+
+   public static final int DEFAULT_CAPACITY = 1024;
+
+   private final Map<Integer, List<List<String>>> _orders;
+
+   public OrderCache(final int capacity) {
+      // access-ordered map that evicts the least recently used order
+      this._orders = new LinkedHashMap<Integer, List<List<String>>>(16, 0.75f, true) {
+         protected boolean removeEldestEntry(Map.Entry<Integer, List<List<String>>> eldest) {
+            return size() > capacity;
+         }
+      };
+   }
+
+   /*
+    * Returns the cached rows of an order or null if it is not cached
+    **/
+   public synchronized List<List<String>> get(int orderID) {
+      return _orders.get(orderID);
+   }
+
+   /*
+    * Caches the joined rows of an order if its status is complete
+    **/
+   public synchronized void putIfComplete(int orderID, String orderStatus, List<List<String>> rows) {
+      if ("complete".equals(orderStatus)) {
+         _orders.put(orderID, rows);
+      }
+   }
+
+   /*
+    * Drops an order whose status was changed
+    **/
+   public synchronized void invalidate(int orderID) {
+      _orders.remove(orderID);
+   }
+
+   public synchronized int size() {
+      return _orders.size();
+   }
+}//end OrderCache
@@ -0,0 +1,144 @@
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+/*
+ * Streams order history (FoodOrder joined with ItemsInOrder) to a gzip
+ * compressed CSV file.  Rows are pulled through a server-side cursor in
+ * fixed-size batches on a dedicated connection and written through a
+ * bounded buffer, so memory use does not depend on how many rows match.
+ *
+ * The file is written as <target>.tmp and renamed over the target once
+ * complete, so a failed export leaves no truncated file behind.  Shards
+ * are exported one after another, so with several shards the rows are
+ * ordered by orderID within each shard's part of the file only.
+ */
+public class OrderExporter {
+
+   public static final int FETCH_SIZE = 5000;
+   private static final int BUFFER_SIZE = 1 << 16;
+
+   private static final String HEADER =
+      "orderID,login,storeID,totalPrice,orderTimestamp,orderStatus,itemName,quantity";
+
+   private OrderExporter() {
+   }
+
+   /*
+    * Exports the orders matching every given filter; null filters match all
+    * @return the number of exported rows (one per ordered item)
+    **/
+   public static long export(PizzaStore esql, File target, String login, Integer storeID,
+                             Timestamp from, Timestamp to) throws SQLException, IOException {
+      List<String> filters = new ArrayList<String>();
+      List<Object> params = new ArrayList<Object>();
+      if (login != null) {
+         filters.add("f.login = ?");
+         params.add(login);
+      }
+      if (storeID != null) {
+         filters.add("f.storeID = ?");
+         params.add(storeID);
+      }
+      if (from != null) {
+         filters.add("f.orderTimestamp >= ?");
+         params.add(from);
+      }
+      if (to != null) {
+         filters.add("f.orderTimestamp < ?");
+         params.add(to);
+      }
+
+      StringBuilder query = new StringBuilder(
+         "SELECT f.orderID, f.login, f.storeID, f.totalPrice, f.orderTimestamp, f.orderStatus, i.itemName, i.quantity " +
+         "FROM FoodOrder f LEFT JOIN ItemsInOrder i ON i.orderID = f.orderID");
+      for (int i = 0; i < filters.size(); ++i) {
+         query.append(i == 0 ? " WHERE " : " AND ").append(filters.get(i));
+      }
+      query.append(" ORDER BY f.orderID");
+
+      long rows = 0;
+      ShardRouter shards = esql.shards();
+      File partial = new File(target.getPath() + ".tmp");
+      boolean done = false;
+      Writer out = new BufferedWriter(new OutputStreamWriter(
+         new GZIPOutputStream(new FileOutputStream(partial), BUFFER_SIZE), StandardCharsets.UTF_8), BUFFER_SIZE);
+      try {
+         out.write(HEADER);
+         out.write('\n');
+         // shards are exported one after another into the same file
+         for (int shard = 0; shard < shards.shardCount(); ++shard) {
+            Connection connection = shards.openShard(shard);
+            try {
+               rows += exportShard(connection, query.toString(), params, out);
+            }finally {
+               connection.close();
+            }
+         }
+         out.close();
+         Files.move(partial.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+         done = true;
+      }finally {
+         if (!done) {
+            try {
+               out.close();
+            }catch (IOException e) {
+               // ignored.
+            }
+            partial.delete();
+         }
+      }
+      return rows;
+   }
+
+   private static long exportShard(Connection connection, String query, List<Object> params, Writer out)
+         throws SQLException, IOException {
+      long rows = 0;
+      // cursors only live inside a transaction
+      connection.setAutoCommit(false);
+      // the filters are bound; only the cursor name and the fetch size are literal
+      String declare = "DECLARE order_export NO SCROLL CURSOR FOR " + query;
+      PreparedStatement cursor = connection.prepareStatement(declare);
+      try {
+         for (int i = 0; i < params.size(); ++i) cursor.setObject(i + 1, params.get(i));
+         PizzaStore.updateTimed(connection, cursor, declare, false);
+      }finally {
+         cursor.close();
+      }
+      Statement stmt = connection.createStatement();
+      while (true) {
+         ResultSet rs = stmt.executeQuery("FETCH FORWARD " + FETCH_SIZE + " FROM order_export");
+         int fetched = 0;
+         while (rs.next()) {
+            for (int c = 1; c <= 8; ++c) {
+               if (c > 1) out.write(',');
+               out.write(Csv.quote(rs.getString(c)));
+            }
+            out.write('\n');
+            ++fetched;
+         }
+         rs.close();
+         rows += fetched;
+         if (fetched < FETCH_SIZE) break;
+      }
+      stmt.executeUpdate("CLOSE order_export");
+      stmt.close();
+      connection.commit();
+      return rows;
+   }
+}//end OrderExporter
@@ -0,0 +1,535 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/*
+ * Local write-ahead journal for orders placed while the database is down
+ * or slower than its latency budget.
+ *
+ * Every order gets a client-generated ID and is first sent to the
+ * place_journaled_order procedure with a time limit.  When that fails
+ * because the database cannot be reached, or does not answer in time, the
+ * order is appended to a memory-mapped journal file instead and the
+ * customer gets a reference.  Appends are made durable by a flusher thread
+ * that forces the file once per batch window, so concurrent appends share
+ * one fsync.  A replayer thread drains the journal through the same
+ * procedure, which ignores IDs it has already placed, so an order that
+ * timed out but did commit is not placed twice.  Entries the database
+ * rejects (closed store, removed item) go to <journal>.rejected.
+ *
+ * Enabled with -Dpizzastore.journal=<file>; tuned with
+ *   pizzastore.journal.sizeMb     journal capacity (default 16)
+ *   pizzastore.journal.budgetMs   latency budget of a direct order (default 2000)
+ *   pizzastore.journal.syncMs     fsync batch window (default 5)
+ */
+public class OrderJournal {
+
+   private static final int MAGIC = 0x4F4A524E; // "OJRN"
+   private static final int VERSION = 1;
+   private static final int HEADER = 32;
+   private static final int WRITE_POS = 8;
+   private static final int REPLAY_POS = 16;
+   private static final long REPLAY_INTERVAL_MS = 1000;
+   // one direct order and one reachability check per shard
+   private static final int DIRECT_CONNECTIONS = 2;
+
+   private static final String PLACE_SQL =
+      "SELECT o_orderID, o_totalPrice FROM place_journaled_order(?, ?, ?, ?::text[], ?::integer[], ?::timestamp);";
+
+   private final PizzaStore _esql;
+   private final File _file;
+   private final FileChannel _channel;
+   private final MappedByteBuffer _map;
+   private final long _budgetMs;
+   private final long _syncMs;
+
+   // guarded by this: positions of the next append and of the next entry to replay
+   private int _writePos;
+   private int _replayPos;
+
+   // guarded by _sync: appends written and appends forced to disk
+   private final Object _sync = new Object();
+   private long _appended = 0;
+   private long _durable = 0;
+
+   // set when the database failed or was too slow; orders go straight to the journal until replay drains it
+   private volatile boolean _degraded = false;
+
+   private final ExecutorService _direct;
+   private final ScheduledExecutorService _replayer;
+   private final Thread _flusher;
+   private final Map<Integer, Connection> _replayConnections = new HashMap<Integer, Connection>();
+   // guarded by itself: connections for direct orders, kept off the interactive connection and its timeout
+   private final Map<Integer, ConnectionPool> _directPools = new HashMap<Integer, ConnectionPool>();
+   private volatile boolean _running = true;
+
+   private final AtomicLong _directOrders = new AtomicLong();
+   private final AtomicLong _journaled = new AtomicLong();
+   private final AtomicLong _replayed = new AtomicLong();
+   private final AtomicLong _rejected = new AtomicLong();
+   private final AtomicLong _syncs = new AtomicLong();
+
+   public OrderJournal(PizzaStore esql, File file) throws IOException {
+      this._esql = esql;
+      this._file = file;
+      this._budgetMs = Long.getLong("pizzastore.journal.budgetMs", 2000L);
+      this._syncMs = Long.getLong("pizzastore.journal.syncMs", 5L);
+      int size = Integer.getInteger("pizzastore.journal.sizeMb", 16) << 20;
+
+      File dir = file.getAbsoluteFile().getParentFile();
+      if (dir != null) dir.mkdirs();
+      RandomAccessFile raf = new RandomAccessFile(file, "rw");
+      boolean fresh = raf.length() < HEADER;
+      if (raf.length() < size) raf.setLength(size);
+      this._channel = raf.getChannel();
+      this._map = _channel.map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+
+      if (fresh || _map.getInt(0) != MAGIC) {
+         _map.putInt(0, MAGIC).putInt(4, VERSION);
+         _writePos = HEADER;
+         _replayPos = HEADER;
+         writeHeader();
+         _map.force();
+      }
+      else {
+         _replayPos = (int) _map.getLong(REPLAY_POS);
+         // entries past the persisted end are left over from before the last
+         // drain, so the scan never goes beyond it; a crash may also leave a
+         // torn entry before it, which is cut off here
+         int persisted = (int) Math.min(_map.getLong(WRITE_POS), _map.capacity());
+         int end = _replayPos;
+         for (int length; end < persisted && (length = validLength(end)) > 0 && end + length <= persisted; ) end += length;
+         _writePos = end;
+         terminate();
+         writeHeader();
+      }
+      _degraded = _writePos > _replayPos;
+
+      ThreadFactory daemons = new ThreadFactory() {
+         public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "order-journal");
+            thread.setDaemon(true);
+            return thread;
+         }
+      };
+      this._direct = Executors.newCachedThreadPool(daemons);
+      this._flusher = daemons.newThread(new Runnable() {
+         public void run() {
+            flushLoop();
+         }
+      });
+      this._flusher.start();
+      this._replayer = Executors.newSingleThreadScheduledExecutor(daemons);
+      this._replayer.scheduleWithFixedDelay(new Runnable() {
+         public void run() {
+            replay();
+         }
+      }, 0, REPLAY_INTERVAL_MS, TimeUnit.MILLISECONDS);
+   }
+
+   /*
+    * @return the journal file given on the command line, or null when disabled
+    **/
+   public static File configuredFile() {
+      String path = System.getProperty("pizzastore.journal");
+      return path == null || path.trim().isEmpty() ? null : new File(path.trim());
+   }
+
+   /*
+    * Places an order directly when the database answers within the budget,
+    * otherwise accepts it into the journal
+    * @throws SQLException when the database rejects the order or the journal is full
+    **/
+   public OrderReceipt place(final String login, final int storeID, final List<String> itemNames,
+                             final List<Integer> quantities) throws SQLException {
+      final String journalID = UUID.randomUUID().toString();
+      final long placedAt = System.currentTimeMillis();
+      if (!_degraded) {
+         Future<OrderReceipt> direct = _direct.submit(new Callable<OrderReceipt>() {
+            public OrderReceipt call() throws SQLException {
+               ConnectionPool pool = directPool(storeID);
+               Connection connection = pool.borrow();
+               try {
+                  return placeJournaled(connection, journalID, login, storeID, itemNames, quantities, placedAt);
+               }finally {
+                  pool.release(connection);
+               }
+            }
+         });
+         try {
+            OrderReceipt receipt = direct.get(_budgetMs, TimeUnit.MILLISECONDS);
+            _directOrders.incrementAndGet();
+            return receipt;
+         }catch (TimeoutException e) {
+            // the call may still commit; replaying the same ID is then a no-op
+            _degraded = true;
+         }catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while placing order");
+         }catch (ExecutionException e) {
+            SQLException cause = e.getCause() instanceof SQLException ? (SQLException) e.getCause()
+                                                                       : new SQLException(String.valueOf(e.getCause()));
+            // a database that still answers rejected the order itself
+            if (databaseReachable(storeID)) throw cause;
+            _degraded = true;
+         }
+      }
+      append(journalID, login, storeID, itemNames, quantities, placedAt);
+      _journaled.incrementAndGet();
+      return new OrderReceipt(journalID, estimate(itemNames, quantities));
+   }
+
+   private static OrderReceipt placeJournaled(Connection connection, String journalID, String login, int storeID,
+                                              List<String> itemNames, List<Integer> quantities, long placedAt) throws SQLException {
+      List<List<String>> result = PizzaStore.queryRows(connection, PLACE_SQL, journalID, login, storeID,
+         PizzaStore.toArrayLiteral(itemNames), PizzaStore.toArrayLiteral(quantities), new Timestamp(placedAt).toString());
+      return new OrderReceipt(Integer.parseInt(result.get(0).get(0)), Double.parseDouble(result.get(0).get(1)));
+   }
+
+   private boolean databaseReachable(final int storeID) {
+      Future<Boolean> check = _direct.submit(new Callable<Boolean>() {
+         public Boolean call() throws SQLException {
+            ConnectionPool pool = directPool(storeID);
+            Connection connection = pool.borrow();
+            try {
+               PizzaStore.queryRows(connection, "SELECT 1;");
+               return Boolean.TRUE;
+            }finally {
+               pool.release(connection);
+            }
+         }
+      });
+      try {
+         return check.get(_budgetMs, TimeUnit.MILLISECONDS).booleanValue();
+      }catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         return false;
+      }catch (Exception e) {
+         return false;
+      }
+   }
+
+   /*
+    * @return the pool of direct-order connections to the shard of the store,
+    * created on first use; a call still running past the budget keeps its
+    * connection, so later calls block on the pool rather than pile up
+    **/
+   private ConnectionPool directPool(int storeID) throws SQLException {
+      ShardRouter shards = _esql.shards();
+      int shard = shards.shardForStore(storeID);
+      synchronized (_directPools) {
+         ConnectionPool pool = _directPools.get(shard);
+         if (pool == null) {
+            pool = new ConnectionPool(shards, shard, DIRECT_CONNECTIONS);
+            _directPools.put(shard, pool);
+         }
+         return pool;
+      }
+   }
+
+   // estimated from the cached menu; the database prices the order on replay
+   private double estimate(List<String> itemNames, List<Integer> quantities) {
+      List<List<String>> menu = _esql.catalog().peekMenu();
+      if (menu == null) return 0;
+      Map<String, Double> prices = new HashMap<String, Double>();
+      for (List<String> row : menu) prices.put(row.get(0), Double.valueOf(row.get(3).trim()));
+      double total = 0;
+      for (int i = 0; i < itemNames.size(); ++i) {
+         Double price = prices.get(itemNames.get(i));
+         if (price != null) total += price.doubleValue() * quantities.get(i).intValue();
+      }
+      return total;
+   }
+
+   /*
+    * Entry layout: int length, int CRC32 of the payload, then the payload:
+    * journal ID, placed-at millis, storeID, login, item count, then name and
+    * quantity of each item.  Strings are a short length plus UTF-8 bytes.
+    */
+   private void append(String journalID, String login, int storeID, List<String> itemNames,
+                       List<Integer> quantities, long placedAt) throws SQLException {
+      int size = 8 + 4 + 2;
+      List<byte[]> strings = new ArrayList<byte[]>();
+      strings.add(journalID.getBytes(StandardCharsets.UTF_8));
+      strings.add(login.getBytes(StandardCharsets.UTF_8));
+      for (String item : itemNames) strings.add(item.getBytes(StandardCharsets.UTF_8));
+      for (byte[] s : strings) size += 2 + s.length;
+      size += 4 * itemNames.size() + 4;
+
+      ByteBuffer payload = ByteBuffer.allocate(size);
+      putString(payload, strings.get(0));
+      payload.putLong(placedAt).putInt(storeID);
+      putString(payload, strings.get(1));
+      payload.putInt(itemNames.size());
+      for (int i = 0; i < itemNames.size(); ++i) {
+         putString(payload, strings.get(i + 2));
+         payload.putInt(quantities.get(i).intValue());
+      }
+      CRC32 crc = new CRC32();
+      crc.update(payload.array(), 0, payload.position());
+      int length = 8 + payload.position();
+
+      long sequence;
+      synchronized (this) {
+         if (_writePos + length > _map.capacity()) {
+            throw new SQLException("The order journal is full; the order could not be saved");
+         }
+         ByteBuffer target = _map.duplicate();
+         target.position(_writePos);
+         target.putInt(length).putInt((int) crc.getValue()).put(payload.array(), 0, payload.position());
+         _writePos += length;
+         terminate();
+         writeHeader();
+         synchronized (_sync) {
+            sequence = ++_appended;
+            _sync.notifyAll();
+         }
+      }
+      awaitDurable(sequence);
+   }
+
+   private static void putString(ByteBuffer buffer, byte[] value) {
+      buffer.putShort((short) value.length).put(value);
+   }
+
+   private static String getString(ByteBuffer buffer) {
+      byte[] value = new byte[buffer.getShort() & 0xFFFF];
+      buffer.get(value);
+      return new String(value, StandardCharsets.UTF_8);
+   }
+
+   // a zero length word after the last entry, so old entries beyond it are never read as live
+   private void terminate() {
+      if (_writePos + 4 <= _map.capacity()) _map.putInt(_writePos, 0);
+   }
+
+   private void writeHeader() {
+      _map.putLong(WRITE_POS, _writePos);
+      _map.putLong(REPLAY_POS, _replayPos);
+   }
+
+   // length of a complete entry at pos, or 0 when there is none
+   private int validLength(int pos) {
+      if (pos + 8 > _map.capacity()) return 0;
+      int length = _map.getInt(pos);
+      if (length <= 8 || pos + length > _map.capacity()) return 0;
+      byte[] payload = new byte[length - 8];
+      ByteBuffer source = _map.duplicate();
+      source.position(pos + 8);
+      source.get(payload);
+      CRC32 crc = new CRC32();
+      crc.update(payload);
+      return (int) crc.getValue() == _map.getInt(pos + 4) ? length : 0;
+   }
+
+   private void awaitDurable(long sequence) throws SQLException {
+      synchronized (_sync) {
+         while (_durable < sequence) {
+            try {
+               _sync.wait();
+            }catch (InterruptedException e) {
+               Thread.currentThread().interrupt();
+               throw new SQLException("Interrupted while saving order to the journal");
+            }
+         }
+      }
+   }
+
+   // forces everything appended during one batch window with a single fsync
+   private void flushLoop() {
+      while (_running) {
+         try {
+            synchronized (_sync) {
+               while (_appended == _durable && _running) _sync.wait();
+            }
+            Thread.sleep(_syncMs);
+            long target;
+            synchronized (_sync) {
+               target = _appended;
+            }
+            _map.force();
+            _syncs.incrementAndGet();
+            synchronized (_sync) {
+               _durable = target;
+               _sync.notifyAll();
+            }
+         }catch (InterruptedException e) {
+            return;
+         }
+      }
+   }
+
+   // drains the journal in order; stops at the first entry the database cannot take yet
+   private void replay() {
+      while (_running) {
+         int pos;
+         int length;
+         synchronized (this) {
+            pos = _replayPos;
+            length = pos < _writePos ? validLength(pos) : 0;
+            if (length == 0) {
+               if (pos == _writePos && pos > HEADER) {
+                  // drained: the file is reused from the start
+                  _writePos = HEADER;
+                  _replayPos = HEADER;
+                  terminate();
+                  writeHeader();
+                  _map.force();
+               }
+               _degraded = false;
+               return;
+            }
+         }
+
+         ByteBuffer entry = _map.duplicate();
+         entry.position(pos + 8);
+         String journalID = getString(entry);
+         long placedAt = entry.getLong();
+         int storeID = entry.getInt();
+         String login = getString(entry);
+         int count = entry.getInt();
+         List<String> itemNames = new ArrayList<String>(count);
+         List<Integer> quantities = new ArrayList<Integer>(count);
+         for (int i = 0; i < count; ++i) {
+            itemNames.add(getString(entry));
+            quantities.add(Integer.valueOf(entry.getInt()));
+         }
+
+         int shard = 0;
+         try {
+            ShardRouter shards = _esql.shards();
+            shard = shards.shardForStore(storeID);
+            placeJournaled(replayConnection(shards, shard), journalID, login, storeID, itemNames, quantities, placedAt);
+            _replayed.incrementAndGet();
+         }catch (SQLException e) {
+            if (!replayConnectionWorks(shard)) {
+               closeReplayConnections();
+               return;
+            }
+            reject(journalID, login, storeID, itemNames, quantities, placedAt, e.getMessage());
+         }
+
+         synchronized (this) {
+            _replayPos = pos + length;
+            writeHeader();
+            _map.force();
+         }
+      }
+   }
+
+   private Connection replayConnection(ShardRouter shards, int shard) throws SQLException {
+      Connection connection = _replayConnections.get(shard);
+      if (connection == null) {
+         connection = shards.openShard(shard);
+         _replayConnections.put(shard, connection);
+      }
+      return connection;
+   }
+
+   private boolean replayConnectionWorks(int shard) {
+      Connection connection = _replayConnections.get(shard);
+      if (connection == null) return false;
+      try {
+         PizzaStore.queryRows(connection, "SELECT 1;");
+         return true;
+      }catch (SQLException e) {
+         return false;
+      }
+   }
+
+   private void closeReplayConnections() {
+      for (Connection connection : _replayConnections.values()) {
+         try {
+            connection.close();
+         }catch (SQLException e) {
+            // ignored.
+         }
+      }
+      _replayConnections.clear();
+   }
+
+   private void reject(String journalID, String login, int storeID, List<String> itemNames,
+                       List<Integer> quantities, long placedAt, String reason) {
+      _rejected.incrementAndGet();
+      StringBuilder line = new StringBuilder();
+      line.append(Csv.quote(journalID)).append(',').append(Csv.quote(login)).append(',').append(storeID)
+          .append(',').append(Csv.quote(new Timestamp(placedAt).toString()));
+      for (int i = 0; i < itemNames.size(); ++i) {
+         line.append(',').append(Csv.quote(itemNames.get(i))).append(',').append(quantities.get(i));
+      }
+      line.append(',').append(Csv.quote(reason)).append('\n');
+      try (Writer out = new OutputStreamWriter(new FileOutputStream(_file.getPath() + ".rejected", true),
+                                               StandardCharsets.UTF_8)) {
+         out.write(line.toString());
+      }catch (IOException e) {
+         System.err.println("Warning - Unable to record rejected journal entry " + journalID + ": " + e.getMessage());
+      }
+   }
+
+   public synchronized int pendingBytes() {
+      return _writePos - _replayPos;
+   }
+
+   public void close() {
+      _running = false;
+      _replayer.shutdownNow();
+      _direct.shutdownNow();
+      _flusher.interrupt();
+      try {
+         _replayer.awaitTermination(REPLAY_INTERVAL_MS, TimeUnit.MILLISECONDS);
+      }catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }
+      synchronized (this) {
+         writeHeader();
+         _map.force();
+      }
+      // appends still waiting for the flusher are durable now
+      synchronized (_sync) {
+         _durable = _appended;
+         _sync.notifyAll();
+      }
+      closeReplayConnections();
+      synchronized (_directPools) {
+         for (ConnectionPool pool : _directPools.values()) pool.close();
+         _directPools.clear();
+      }
+      try {
+         _channel.close();
+      }catch (IOException e) {
+         // ignored.
+      }
+   }
+
+   public String metricsReport() {
+      return "Order journal: " + _directOrders.get() + " placed directly, " + _journaled.get() + " journaled, "
+           + _replayed.get() + " replayed, " + _rejected.get() + " rejected, " + _syncs.get() + " fsync(s), "
+           + pendingBytes() + " byte(s) pending" + (_degraded ? " (database unavailable)" : "");
+   }
+}//end OrderJournal
@@ -0,0 +1,42 @@
+/*
+ * Result of a successfully placed order.  An order accepted into the local
+ * journal while the database was unavailable has no order ID yet; it
+ * carries the journal reference and the estimated total instead.
+ */
+public class OrderReceipt {
+
+   private final int _orderID;
+   private final double _totalPrice;
+   private final String _reference;
+
+   public OrderReceipt(int orderID, double totalPrice) {
+      this._orderID = orderID;
+      this._totalPrice = totalPrice;
+      this._reference = null;
+   }
+
+   public OrderReceipt(String reference, double estimatedTotal) {
+      this._orderID = -1;
+      this._totalPrice = estimatedTotal;
+      this._reference = reference;
+   }
+
+   public int getOrderID() {
+      return _orderID;
+   }
+
+   public double getTotalPrice() {
+      return _totalPrice;
+   }
+
+   /*
+    * @return the journal reference of a pending order, or null
+    **/
+   public String getReference() {
+      return _reference;
+   }
+
+   public boolean isPending() {
+      return _reference != null;
+   }
+}//end OrderReceipt
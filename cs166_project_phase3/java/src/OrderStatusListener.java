@@ -0,0 +1,249 @@
+import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Delivers order status changes pushed by the foodorder_status_notify
+ * trigger.  One listener connection per shard LISTENs on order_<orderID>
+ * for every order somebody watches, and a single daemon thread fans the
+ * notifications out to the subscribers of that order.
+ *
+ * The bundled driver only reads notifications that arrive with a query
+ * result, so the thread checks every POLL_MS whether a listener socket
+ * has unread bytes and sends SELECT 1 only to those shards; an idle watch
+ * costs no database round trips.  With a driver whose socket cannot be
+ * reached that way, every shard is sent SELECT 1 each POLL_MS while any
+ * order is watched, one round trip per shard however many orders or
+ * sessions watch.  The notification API is called through reflection so
+ * the code also works with drivers whose PGNotification carries the
+ * payload.
+ */
+public class OrderStatusListener {
+
+   static final long POLL_MS = 250;
+
+   /*
+    * Receives the new status of a watched order
+    */
+   public interface Subscriber {
+      void statusChanged(int orderID, String status);
+   }
+
+   private final ShardRouter _shards;
+   private final List<Connection> _connections = new ArrayList<Connection>();
+   // socket input of each connection, or null when the driver hides it
+   private final List<InputStream> _inputs = new ArrayList<InputStream>();
+   private final Map<Integer, List<Subscriber>> _subscribers = new HashMap<Integer, List<Subscriber>>();
+   private Thread _thread = null;
+   private volatile boolean _running = true;
+
+   private final AtomicLong _notifications = new AtomicLong();
+   private final AtomicLong _delivered = new AtomicLong();
+   private final AtomicLong _statusQueries = new AtomicLong();
+   private final AtomicLong _polls = new AtomicLong();
+
+   public OrderStatusListener(ShardRouter shards) {
+      this._shards = shards;
+   }
+
+   /*
+    * Starts delivering changes of an order to the subscriber
+    **/
+   public void subscribe(int orderID, Subscriber subscriber) throws SQLException {
+      boolean first;
+      synchronized (_subscribers) {
+         List<Subscriber> list = _subscribers.get(orderID);
+         first = list == null;
+         if (first) {
+            list = new CopyOnWriteArrayList<Subscriber>();
+            _subscribers.put(orderID, list);
+         }
+         list.add(subscriber);
+      }
+      if (first) {
+         try {
+            // orders loaded before sharding may live on any shard, so every shard listens
+            execute("LISTEN order_" + orderID);
+         }catch (SQLException e) {
+            unsubscribe(orderID, subscriber);
+            throw e;
+         }
+      }
+   }
+
+   public void unsubscribe(int orderID, Subscriber subscriber) {
+      boolean last;
+      synchronized (_subscribers) {
+         List<Subscriber> list = _subscribers.get(orderID);
+         if (list == null || !list.remove(subscriber)) return;
+         last = list.isEmpty();
+         if (last) _subscribers.remove(orderID);
+      }
+      if (last) {
+         try {
+            execute("UNLISTEN order_" + orderID);
+         }catch (SQLException e) {
+            // a stale LISTEN only costs an ignored notification
+         }
+      }
+   }
+
+   private synchronized void execute(String command) throws SQLException {
+      if (_connections.isEmpty()) {
+         for (int i = 0; i < _shards.shardCount(); ++i) {
+            Connection connection = _shards.openShard(i);
+            _connections.add(connection);
+            _inputs.add(socketInput(connection));
+         }
+         _thread = new Thread(new Runnable() {
+            public void run() {
+               listen();
+            }
+         }, "order-status-listener");
+         _thread.setDaemon(true);
+         _thread.start();
+      }
+      for (Connection connection : _connections) {
+         Statement stmt = connection.createStatement();
+         stmt.execute(command);
+         stmt.close();
+      }
+   }
+
+   private void listen() {
+      while (_running) {
+         try {
+            boolean idle;
+            synchronized (_subscribers) {
+               idle = _subscribers.isEmpty();
+            }
+            if (idle) {
+               Thread.sleep(POLL_MS);
+               continue;
+            }
+            List<Object> received = new ArrayList<Object>();
+            List<Connection> sources = new ArrayList<Connection>();
+            synchronized (this) {
+               for (int c = 0; c < _connections.size(); ++c) {
+                  Connection connection = _connections.get(c);
+                  InputStream input = _inputs.get(c);
+                  // nothing unread on the socket means no notification is waiting
+                  if (input != null && input.available() == 0) continue;
+                  _polls.incrementAndGet();
+                  Statement stmt = connection.createStatement();
+                  stmt.execute("SELECT 1");
+                  stmt.close();
+                  Object[] notifications = notificationsOf(connection);
+                  for (int i = 0; notifications != null && i < notifications.length; ++i) {
+                     received.add(notifications[i]);
+                     sources.add(connection);
+                  }
+               }
+            }
+            for (int i = 0; i < received.size(); ++i) dispatch(received.get(i), sources.get(i));
+            Thread.sleep(POLL_MS);
+         }catch (InterruptedException e) {
+            return;
+         }catch (Exception e) {
+            if (!_running) return;
+            System.err.println("Warning - Order status listener: " + e.getMessage());
+            try {
+               Thread.sleep(POLL_MS * 20);
+            }catch (InterruptedException interrupted) {
+               return;
+            }
+         }
+      }
+   }
+
+   private void dispatch(Object notification, Connection source) throws Exception {
+      _notifications.incrementAndGet();
+      String name = (String) call(notification, "getName");
+      if (name == null || !name.startsWith("order_")) return;
+      int orderID = Integer.parseInt(name.substring("order_".length()));
+      List<Subscriber> list;
+      synchronized (_subscribers) {
+         list = _subscribers.get(orderID);
+      }
+      if (list == null) return;
+
+      String status = null;
+      try {
+         status = (String) call(notification, "getParameter");
+      }catch (NoSuchMethodException e) {
+         // the driver predates notification payloads
+      }
+      if (status == null || status.isEmpty()) {
+         _statusQueries.incrementAndGet();
+         List<List<String>> rows;
+         synchronized (this) {
+            rows = PizzaStore.queryRows(source, "SELECT orderStatus FROM FoodOrder WHERE orderID = ?;", orderID);
+         }
+         if (rows.isEmpty()) return;
+         status = rows.get(0).get(0) == null ? "" : rows.get(0).get(0).trim();
+      }
+      for (Subscriber subscriber : list) {
+         subscriber.statusChanged(orderID, status);
+         _delivered.incrementAndGet();
+      }
+   }
+
+   /*
+    * @return the socket input of a bundled-driver connection, or null
+    **/
+   private static InputStream socketInput(Connection connection) {
+      try {
+         Object stream = connection.getClass().getField("pg_stream").get(connection);
+         Field input = stream.getClass().getDeclaredField("pg_input");
+         input.setAccessible(true);
+         return (InputStream) input.get(stream);
+      }catch (Exception e) {
+         return null;
+      }
+   }
+
+   private static Object[] notificationsOf(Connection connection) throws Exception {
+      return (Object[]) call(connection, "getNotifications");
+   }
+
+   private static Object call(Object target, String method) throws Exception {
+      Method m = target.getClass().getMethod(method);
+      m.setAccessible(true);
+      return m.invoke(target);
+   }
+
+   public void close() {
+      _running = false;
+      if (_thread != null) _thread.interrupt();
+      synchronized (this) {
+         for (Connection connection : _connections) {
+            try {
+               connection.close();
+            }catch (SQLException e) {
+               // ignored.
+            }
+         }
+         _connections.clear();
+         _inputs.clear();
+      }
+   }
+
+   public String metricsReport() {
+      int watched;
+      synchronized (_subscribers) {
+         watched = _subscribers.size();
+      }
+      return "Order status push: " + watched + " watched order(s), " + _notifications.get()
+           + " notification(s), " + _delivered.get() + " delivered, " + _polls.get() + " poll query(ies), "
+           + _statusQueries.get() + " status lookup(s)";
+   }
+}//end OrderStatusListener
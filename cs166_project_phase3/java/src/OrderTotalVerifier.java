@@ -0,0 +1,338 @@
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Checks FoodOrder.totalPrice against SUM(ItemsInOrder.quantity * Items.price)
+ * using the current menu prices, so both wrong totals and orders whose
+ * items were repriced since (drift) are reported.
+ *
+ * The orderID space of each shard is cut into fixed chunks that are checked
+ * by a fork-join pool, one pooled connection per worker.  Completed chunks
+ * are recorded in a checkpoint file so an interrupted run resumes where it
+ * stopped; mismatches are appended to <checkpoint>.mismatches.csv.  A chunk
+ * that finished after the last checkpoint is checked again on resume and
+ * may repeat its mismatch lines.
+ *
+ *    java OrderTotalVerifier <dbname> <port> <user> [checkpoint]
+ *
+ * Tuning: -Dpizzastore.verify.threads (cores), -Dpizzastore.verify.chunk
+ * (100000 order IDs per chunk).
+ */
+public class OrderTotalVerifier {
+
+   private static final int CHECKPOINT_MAGIC = 0x4F545631; // "OTV1"
+   private static final long PROGRESS_INTERVAL_MS = 5000;
+
+   // one summary row (orderID NULL, row count in column 4), then one row per mismatch
+   private static final String CHUNK_QUERY =
+      "WITH t AS (" +
+      "SELECT f.orderID, f.totalPrice, COALESCE(SUM(i.quantity * it.price), 0) AS current, " +
+      "COUNT(i.itemName) - COUNT(it.itemName) AS unpriced " +
+      "FROM FoodOrder f LEFT JOIN ItemsInOrder i ON i.orderID = f.orderID " +
+      "LEFT JOIN Items it ON it.itemName = i.itemName " +
+      "WHERE f.orderID >= ? AND f.orderID < ? GROUP BY f.orderID, f.totalPrice) " +
+      "SELECT NULL, NULL, NULL, COUNT(*) FROM t " +
+      "UNION ALL " +
+      "SELECT orderID, totalPrice, current, unpriced FROM t " +
+      "WHERE totalPrice IS DISTINCT FROM current OR unpriced > 0";
+
+   private final ShardRouter _shards;
+   private final int _threads;
+   private final int _chunk;
+   private final File _checkpointBase;
+
+   private final AtomicLong _ordersChecked = new AtomicLong();
+   private final AtomicLong _mismatches = new AtomicLong();
+   private final AtomicLong _chunksDone = new AtomicLong();
+   private volatile long _chunksTotal = 0;
+   private volatile int _currentShard = 0;
+
+   public OrderTotalVerifier(ShardRouter shards, File checkpoint) {
+      this._shards = shards;
+      this._threads = Integer.getInteger("pizzastore.verify.threads", Runtime.getRuntime().availableProcessors());
+      this._chunk = Integer.getInteger("pizzastore.verify.chunk", 100000);
+      this._checkpointBase = checkpoint;
+   }
+
+   public static void main(String[] args) throws Exception {
+      if (args.length < 3 || args.length > 4) {
+         System.err.println("Usage: java OrderTotalVerifier <dbname> <port> <user> [checkpoint]");
+         return;
+      }
+      PizzaStore esql = new PizzaStore(args[0], args[1], args[2], "");
+      try {
+         OrderTotalVerifier verifier = new OrderTotalVerifier(esql.shards(),
+            new File(args.length == 4 ? args[3] : "order_totals.checkpoint"));
+         verifier.run();
+      }finally {
+         esql.cleanup();
+      }
+   }
+
+   /*
+    * Verifies every shard, resuming from the checkpoint files
+    * @return the number of mismatched orders found in this run
+    **/
+   public long run() throws SQLException, IOException {
+      long start = System.currentTimeMillis();
+      for (int shard = 0; shard < _shards.shardCount(); ++shard) {
+         _currentShard = shard;
+         verifyShard(shard, checkpointFile(shard));
+      }
+      System.out.println(String.format("Verified %d order(s) in %d ms, %d mismatch(es). Report: %s",
+         _ordersChecked.get(), System.currentTimeMillis() - start, _mismatches.get(), reportFile().getPath()));
+      return _mismatches.get();
+   }
+
+   public File reportFile() {
+      return new File(_checkpointBase.getPath() + ".mismatches.csv");
+   }
+
+   private File checkpointFile(int shard) {
+      return _shards.shardCount() == 1 ? _checkpointBase : new File(_checkpointBase.getPath() + "." + shard);
+   }
+
+   private void verifyShard(int shard, final File checkpointFile) throws SQLException, IOException {
+      List<List<String>> bounds = PizzaStore.queryRows(_shards.shard(shard),
+         "SELECT MIN(orderID), MAX(orderID) FROM FoodOrder;");
+      if (bounds.isEmpty() || bounds.get(0).get(0) == null) return;
+      long min = Long.parseLong(bounds.get(0).get(0).trim());
+      long max = Long.parseLong(bounds.get(0).get(1).trim());
+
+      final Checkpoint checkpoint = Checkpoint.load(checkpointFile, min, _chunk);
+      final long base = checkpoint.base;
+      final int chunks = (int) ((max - base) / _chunk + 1);
+      _chunksTotal = chunks;
+      _chunksDone.set(checkpoint.done.cardinality());
+      if (checkpoint.done.cardinality() > 0) {
+         System.out.println("Resuming shard " + shard + ": " + checkpoint.done.cardinality() + " of " + chunks + " chunk(s) already verified");
+      }
+
+      final ConnectionPool pool = new ConnectionPool(_shards, shard, _threads);
+      final Writer report = openReport();
+      ScheduledExecutorService progress = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+         public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "verify-progress");
+            thread.setDaemon(true);
+            return thread;
+         }
+      });
+      final long started = System.currentTimeMillis();
+      progress.scheduleAtFixedRate(new Runnable() {
+         public void run() {
+            printProgress(started);
+            saveCheckpoint(checkpointFile, checkpoint, report);
+         }
+      }, PROGRESS_INTERVAL_MS, PROGRESS_INTERVAL_MS, TimeUnit.MILLISECONDS);
+
+      ForkJoinPool workers = new ForkJoinPool(_threads);
+      try {
+         workers.invoke(new ChunkRange(0, chunks, base, checkpoint, pool, report));
+      }finally {
+         workers.shutdown();
+         progress.shutdownNow();
+         saveCheckpoint(checkpointFile, checkpoint, report);
+         report.close();
+         pool.close();
+      }
+      printProgress(started);
+   }
+
+   private Writer openReport() throws IOException {
+      File file = reportFile();
+      boolean fresh = !file.exists();
+      Writer report = new BufferedWriter(new OutputStreamWriter(
+         new FileOutputStream(file, true), StandardCharsets.UTF_8));
+      if (fresh) report.write("shard,orderID,storedTotal,currentTotal,difference,unpricedLines\n");
+      return report;
+   }
+
+   private void printProgress(long started) {
+      long elapsed = Math.max(1, System.currentTimeMillis() - started);
+      System.out.println(String.format("shard %d: %d/%d chunk(s), %d order(s) checked (%.0f/s), %d mismatch(es)",
+         _currentShard, _chunksDone.get(), _chunksTotal, _ordersChecked.get(),
+         _ordersChecked.get() * 1000.0 / elapsed, _mismatches.get()));
+   }
+
+   // the report is flushed first so every chunk marked done has its mismatches on disk
+   private void saveCheckpoint(File file, Checkpoint checkpoint, Writer report) {
+      try {
+         synchronized (report) {
+            report.flush();
+         }
+         checkpoint.save(file);
+      }catch (IOException e) {
+         System.err.println("Warning - Unable to save verifier checkpoint: " + e.getMessage());
+      }
+   }
+
+   private long verifyChunk(Connection connection, int shard, long from, long to, Writer report) throws SQLException, IOException {
+      PreparedStatement stmt = connection.prepareStatement(CHUNK_QUERY);
+      long found = 0;
+      StringBuilder lines = new StringBuilder();
+      try {
+         stmt.setLong(1, from);
+         stmt.setLong(2, to);
+         ResultSet rs = stmt.executeQuery();
+         while (rs.next()) {
+            if (rs.getString(1) == null) {
+               _ordersChecked.addAndGet(rs.getLong(4));
+               continue;
+            }
+            BigDecimal stored = rs.getBigDecimal(2);
+            BigDecimal current = rs.getBigDecimal(3);
+            lines.append(shard).append(',').append(rs.getString(1)).append(',')
+                 .append(stored).append(',').append(current).append(',')
+                 .append(stored == null ? null : stored.subtract(current)).append(',')
+                 .append(rs.getLong(4)).append('\n');
+            ++found;
+         }
+         rs.close();
+      }finally {
+         stmt.close();
+      }
+      if (found > 0) {
+         synchronized (report) {
+            report.write(lines.toString());
+         }
+         _mismatches.addAndGet(found);
+      }
+      return found;
+   }
+
+   /*
+    * A range of chunk indexes; halves are forked until one chunk is left
+    */
+   private final class ChunkRange extends RecursiveTask<Long> {
+
+      private static final long serialVersionUID = 1L;
+
+      private final int _from;
+      private final int _to;
+      private final long _base;
+      private final Checkpoint _checkpoint;
+      private final ConnectionPool _pool;
+      private final Writer _report;
+
+      ChunkRange(int from, int to, long base, Checkpoint checkpoint, ConnectionPool pool, Writer report) {
+         this._from = from;
+         this._to = to;
+         this._base = base;
+         this._checkpoint = checkpoint;
+         this._pool = pool;
+         this._report = report;
+      }
+
+      protected Long compute() {
+         if (_to - _from > 1) {
+            int middle = (_from + _to) >>> 1;
+            ChunkRange left = new ChunkRange(_from, middle, _base, _checkpoint, _pool, _report);
+            left.fork();
+            long right = new ChunkRange(middle, _to, _base, _checkpoint, _pool, _report).compute().longValue();
+            return Long.valueOf(right + left.join().longValue());
+         }
+         if (_checkpoint.isDone(_from)) return Long.valueOf(0);
+         long from = _base + (long) _from * _chunk;
+         try {
+            Connection connection = _pool.borrow();
+            try {
+               long found = verifyChunk(connection, _currentShard, from, from + _chunk, _report);
+               _checkpoint.markDone(_from);
+               _chunksDone.incrementAndGet();
+               return Long.valueOf(found);
+            }finally {
+               _pool.release(connection);
+            }
+         }catch (SQLException e) {
+            throw new IllegalStateException("Unable to verify orders " + from + " to " + (from + _chunk - 1) + ": " + e.getMessage(), e);
+         }catch (IOException e) {
+            throw new IllegalStateException("Unable to write mismatch report: " + e.getMessage(), e);
+         }
+      }
+   }//end ChunkRange
+
+   /*
+    * Completed chunks of one shard.  Chunks are aligned on the base order ID
+    * of the first run, so a resumed run keeps its progress when new orders
+    * were added in the meantime.
+    */
+   private static final class Checkpoint {
+
+      final long base;
+      final int chunk;
+      final BitSet done;
+
+      private Checkpoint(long base, int chunk, BitSet done) {
+         this.base = base;
+         this.chunk = chunk;
+         this.done = done;
+      }
+
+      static Checkpoint load(File file, long min, int chunk) {
+         if (file.exists()) {
+            try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+               if (in.readInt() == CHECKPOINT_MAGIC) {
+                  long base = in.readLong();
+                  int savedChunk = in.readInt();
+                  long[] words = new long[in.readInt()];
+                  for (int i = 0; i < words.length; ++i) words[i] = in.readLong();
+                  // a different chunk size or older orders below the base restart the run
+                  if (savedChunk == chunk && base <= min) return new Checkpoint(base, chunk, BitSet.valueOf(words));
+               }
+            }catch (IOException e) {
+               System.err.println("Warning - Ignoring unreadable checkpoint " + file + ": " + e.getMessage());
+            }
+         }
+         return new Checkpoint(min, chunk, new BitSet());
+      }
+
+      synchronized boolean isDone(int index) {
+         return done.get(index);
+      }
+
+      synchronized void markDone(int index) {
+         done.set(index);
+      }
+
+      void save(File file) throws IOException {
+         long[] words;
+         synchronized (this) {
+            words = done.toLongArray();
+         }
+         File tmp = new File(file.getPath() + ".tmp");
+         try (DataOutputStream out = new DataOutputStream(new FileOutputStream(tmp))) {
+            out.writeInt(CHECKPOINT_MAGIC);
+            out.writeLong(base);
+            out.writeInt(chunk);
+            out.writeInt(words.length);
+            for (long word : words) out.writeLong(word);
+         }
+         if (!tmp.renameTo(file)) {
+            file.delete();
+            tmp.renameTo(file);
+         }
+      }
+   }//end Checkpoint
+}//end OrderTotalVerifier
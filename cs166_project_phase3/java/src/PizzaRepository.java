@@ -0,0 +1,84 @@
+import java.sql.SQLException;
+import java.util.List;
+
+/*
+ * Data access used by the PizzaStore actions.  Rows are returned in the
+ * same shape as PizzaStore.executeQueryAndReturnResult, one list of column
+ * values per row, so the actions do not care which engine is behind it.
+ *
+ * JdbcPizzaRepository talks to Postgres (through the shard router);
+ * InMemoryPizzaRepository keeps everything in primitive arrays and is used
+ * by RepositoryBenchmark as a zero-I/O baseline; InMemoryRepositoryCheck
+ * checks it against the place_order rules.
+ */
+public interface PizzaRepository {
+
+   /*
+    * @return every Items row: itemName, ingredients, typeOfItem, price, description
+    **/
+   List<List<String>> menu() throws SQLException;
+
+   /*
+    * @return every Store row: storeID, address, city, state, isOpen, reviewScore
+    **/
+   List<List<String>> stores() throws SQLException;
+
+   /*
+    * @return the role of a user, or null if the user does not exist
+    **/
+   String role(String login) throws SQLException;
+
+   /*
+    * @return true if the login and password match a user
+    **/
+   boolean checkCredentials(String login, String password) throws SQLException;
+
+   /*
+    * Validates, prices and stores an order in one step
+    * @throws SQLException when the store is closed or an item is unknown
+    **/
+   OrderReceipt placeOrder(String login, int storeID, List<String> itemNames, List<Integer> quantities) throws SQLException;
+
+   /*
+    * Places a new order with the items of a past order of the same user at
+    * current prices, leaving out items no longer on the menu
+    * @param storeID the store to order from, or null for the store of the past order
+    * @throws SQLException when the order is not the user's or nothing can be reordered
+    **/
+   OrderReceipt reorder(String login, int orderID, Integer storeID) throws SQLException;
+
+   /*
+    * Places an order of one of each menu item named in the user's favoriteItems
+    * @throws SQLException when no favorite item is on the menu
+    **/
+   OrderReceipt orderFavorites(String login, int storeID) throws SQLException;
+
+   /*
+    * @return one row per ordered item: orderID, login, storeID, totalPrice,
+    *         orderTimestamp, orderStatus, itemName, quantity, viewer role;
+    *         empty if the order does not exist
+    **/
+   List<List<String>> orderDetails(int orderID, String viewer) throws SQLException;
+
+   /*
+    * @return the storeID of the updated order, or null if it does not exist
+    **/
+   Integer updateOrderStatus(int orderID, String status) throws SQLException;
+
+   /*
+    * @return every FoodOrder row of a user ordered by orderID
+    **/
+   List<List<String>> ordersOf(String login) throws SQLException;
+
+   /*
+    * @return the newest FoodOrder rows of a user, newest first
+    **/
+   List<List<String>> recentOrdersOf(String login, int limit) throws SQLException;
+
+   /*
+    * @return the account row of a user, or no rows: login, phoneNum, role,
+    * favoriteItems, orderCount, completedCount, lifetimeSpend,
+    * lastOrderTime, lastStoreID (the last five null without orders)
+    **/
+   List<List<String>> profile(String login) throws SQLException;
+}//end PizzaRepository
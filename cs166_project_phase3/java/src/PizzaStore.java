@@ -14,17 +14,30 @@
 import java.sql.DriverManager;
 import java.sql.Connection;
 import java.sql.Statement;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
+import java.sql.Timestamp;
 import java.io.File;
 import java.io.FileReader;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
+import java.io.IOException;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.Locale;
 import java.lang.Math;
+import java.math.BigDecimal;
 import java.util.Scanner;
+import java.time.LocalDate;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.lang.management.ManagementFactory;
 
 /**
  * This class defines a simple embedded SQL utility class that is designed to
@@ -34,7 +47,64 @@ import java.util.Scanner;
 public class PizzaStore {
 
    // reference to physical database connection.
-   private Connection _connection = null;
+   private volatile Connection _connection = null;
+
+   // connection parameters, kept so extra connections can be opened
+   private final String _url;
+   private final String _user;
+   private final String _passwd;
+
+   // released once a fast-start background connection attempt finishes
+   private final CountDownLatch _connected = new CountDownLatch(1);
+   private volatile Exception _connectError = null;
+
+   // completed orders already assembled for viewOrderInfo
+   private final OrderCache _orderCache = new OrderCache(OrderCache.DEFAULT_CAPACITY);
+
+   // menu and store catalog shared by viewMenu, viewStores and placeOrder
+   private final CatalogCache _catalog;
+
+   // per-store and global limits on concurrent order placement
+   private final AdmissionControl _admission = new AdmissionControl();
+
+   // Bloom filter, credential cache and failure throttling for LogIn/CreateUser
+   private final LoginGuard _loginGuard = new LoginGuard();
+
+   // per-store, per-minute order counts for the last hour
+   private final StoreActivity _activity = new StoreActivity(1024);
+
+   // places orders by storeID across shards; created on first use
+   private ShardRouter _shards = null;
+
+   // pushes order status changes to watchers; created on first use
+   private OrderStatusListener _statusListener = null;
+
+   // columnar copy of order history for manager analytics; created on first use
+   private OrderAnalytics _analytics = null;
+
+   // shared group-commit order writer when enabled; created on first use
+   private GroupCommitOrderWriter _orderWriter = null;
+
+   // coalesces profile updates when write-behind is enabled, otherwise null
+   private final ProfileWriteBehind _profileWriter;
+
+   // data access for orders, menu, stores and credentials
+   private final PizzaRepository _repository;
+
+   // post-login reads of profile, recent orders and menu, or null when disabled
+   private final SessionPrefetch _prefetch;
+
+   // local journal for orders placed while the database is unavailable, or null
+   private final OrderJournal _journal;
+
+   // "also ordered" suggestions for placeOrder, or null when disabled
+   private final ItemRecommender _recommender;
+
+   // time-to-first-menu budget for fast-start mode, in milliseconds
+   static final long FIRST_MENU_TARGET_MS = 300;
+
+   // measured time to the first menu in fast-start mode, or -1; shown with the system metrics
+   private long _firstMenuMillis = -1;
 
    // handling the keyboard inputs through a BufferedReader
    // This variable can be global for convenience.
@@ -51,23 +121,206 @@ public class PizzaStore {
     * @throws java.sql.SQLException when failed to make a connection.
     */
    public PizzaStore(String dbname, String dbport, String user, String passwd) throws SQLException {
+      this(dbname, dbport, user, passwd, false);
+   }//end PizzaStore
+
+   /**
+    * Creates a new instance of PizzaStore.  In fast-start mode the catalog is
+    * read from the local snapshot and the connection is opened in the
+    * background, so the caller can show the menu right away.
+    *
+    * @param dbname the name of the database
+    * @param dbport the port the database listens on
+    * @param user the user name used to login to the database
+    * @param passwd the user login password
+    * @param fastStart true to connect lazily in the background
+    * @throws java.sql.SQLException when failed to make a connection.
+    */
+   public PizzaStore(String dbname, String dbport, String user, String passwd, boolean fastStart) throws SQLException {
+      // constructs the connection URL
+      this._url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
+      this._user = user;
+      this._passwd = passwd;
+      this._repository = new JdbcPizzaRepository(this);
+      this._catalog = new CatalogCache(fastStart ? CatalogCache.defaultSnapshotFile(dbname) : null);
+      this._prefetch = SessionPrefetch.isEnabled() ? new SessionPrefetch(this) : null;
+      this._journal = openJournal(OrderJournal.configuredFile());
+      this._recommender = ItemRecommender.isEnabled() ? new ItemRecommender(this) : null;
+      // the build waits for the connection, so it also runs in fast-start mode
+      if (this._recommender != null) this._recommender.start();
+      this._profileWriter = ProfileWriteBehind.isEnabled() ? new ProfileWriteBehind(this) : null;
+      if (this._profileWriter != null) {
+         // flush queued profile changes even when the program is interrupted
+         Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            public void run() {
+               flushProfileUpdates();
+            }
+         }, "profile-write-behind-shutdown"));
+      }
+
+      if (fastStart) {
+         this._catalog.loadSnapshot();
+         Thread connector = new Thread(new Runnable() {
+            public void run() {
+               try {
+                  Connection connection = openConnection();
+                  try {
+                     _catalog.revalidate(connection);
+                  }catch (SQLException e) {
+                     System.err.println("Warning - Unable to revalidate catalog: " + e.getMessage());
+                  }
+                  _connection = connection;
+               }catch (Exception e) {
+                  _connectError = e;
+               }finally {
+                  _connected.countDown();
+               }
+            }
+         }, "pizzastore-connect");
+         connector.setDaemon(true);
+         connector.start();
+         return;
+      }
 
       System.out.print("Connecting to database...");
       try{
-         // constructs the connection URL
-         String url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
-         System.out.println ("Connection URL: " + url + "\n");
+         System.out.println ("Connection URL: " + this._url + "\n");
 
          // obtain a physical connection
-         this._connection = DriverManager.getConnection(url, user, passwd);
+         this._connection = openConnection();
          System.out.println("Done");
       }catch (Exception e){
          System.err.println("Error - Unable to Connect to Database: " + e.getMessage() );
          System.out.println("Make sure you started postgres on this machine");
          System.exit(-1);
       }//end catch
+      this._connected.countDown();
    }//end PizzaStore
 
+   private OrderJournal openJournal(File file) {
+      if (file == null) return null;
+      try {
+         return new OrderJournal(this, file);
+      }catch (IOException e) {
+         System.err.println("Warning - Unable to open order journal " + file + ": " + e.getMessage());
+         return null;
+      }
+   }//end openJournal
+
+   /**
+    * Opens a new physical connection with the parameters of this instance.
+    * The caller owns the returned connection and must close it.
+    *
+    * @return a new connection
+    * @throws java.sql.SQLException when failed to make a connection.
+    */
+   public Connection openConnection() throws SQLException {
+      try {
+         // use postgres JDBC driver.
+         Class.forName ("org.postgresql.Driver");
+      }catch (ClassNotFoundException e) {
+         throw new SQLException("PostgreSQL JDBC driver not found on the classpath");
+      }
+      return DriverManager.getConnection(this._url, this._user, this._passwd);
+   }//end openConnection
+
+   /**
+    * Returns the main connection, waiting for a fast-start connection
+    * attempt to finish if it is still in progress.
+    *
+    * @return the main connection
+    * @throws java.sql.SQLException when the connection could not be made
+    */
+   Connection connection() throws SQLException {
+      Connection connection = this._connection;
+      if (connection != null) return connection;
+      try {
+         this._connected.await();
+      }catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new SQLException("Interrupted while connecting to database");
+      }
+      if (this._connection == null) {
+         String reason = this._connectError == null ? "not connected" : this._connectError.getMessage();
+         throw new SQLException("Unable to Connect to Database: " + reason);
+      }
+      return this._connection;
+   }//end connection
+
+   String user() {
+      return this._user;
+   }
+
+   String password() {
+      return this._passwd;
+   }
+
+   /**
+    * Returns the shard router, connecting to any extra shards on first use.
+    *
+    * @return the shard router
+    * @throws java.sql.SQLException when a shard could not be reached
+    */
+   public synchronized ShardRouter shards() throws SQLException {
+      if (this._shards == null) this._shards = new ShardRouter(this);
+      return this._shards;
+   }//end shards
+
+   /**
+    * Returns the order status listener, creating it on first use.
+    *
+    * @return the order status listener
+    * @throws java.sql.SQLException when a shard could not be reached
+    */
+   public synchronized OrderStatusListener statusListener() throws SQLException {
+      if (this._statusListener == null) this._statusListener = new OrderStatusListener(shards());
+      return this._statusListener;
+   }//end statusListener
+
+   /**
+    * Returns the group-commit order writer shared by every session of this
+    * instance, creating it on first use.
+    *
+    * @return the order writer
+    * @throws java.sql.SQLException when a shard could not be reached
+    */
+   public synchronized GroupCommitOrderWriter orderWriter() throws SQLException {
+      if (this._orderWriter == null) this._orderWriter = new GroupCommitOrderWriter(shards());
+      return this._orderWriter;
+   }//end orderWriter
+
+   /**
+    * Returns the order analytics engine, creating it on first use.
+    *
+    * @return the order analytics engine
+    * @throws java.sql.SQLException when a shard could not be reached
+    */
+   public synchronized OrderAnalytics analytics() throws SQLException {
+      if (this._analytics == null) this._analytics = new OrderAnalytics(shards());
+      return this._analytics;
+   }//end analytics
+
+   /**
+    * @return the login Bloom filter and credential cache
+    */
+   public LoginGuard loginGuard() {
+      return this._loginGuard;
+   }//end loginGuard
+
+   /**
+    * @return the data access used for orders, menu, stores and logins
+    */
+   public PizzaRepository repository() {
+      return this._repository;
+   }//end repository
+
+   /**
+    * @return the menu and store catalog cache
+    */
+   public CatalogCache catalog() {
+      return this._catalog;
+   }//end catalog
+
    /**
     * Method to execute an update SQL statement.  Update SQL instructions
     * includes CREATE, INSERT, UPDATE, DELETE, and DROP.
@@ -77,13 +330,23 @@ public class PizzaStore {
     */
    public void executeUpdate (String sql) throws SQLException {
       // creates a statement object
-      Statement stmt = this._connection.createStatement ();
+      JdbcEvent event = JdbcEvent.start ("executeUpdate");
+      Connection connection = connection();
+      Statement stmt = connection.createStatement ();
+      long started = ActionDeadline.beforeStatement (connection, stmt);
 
       // issues the update instruction
-      stmt.executeUpdate (sql);
-
-      // close the instruction
-      stmt.close ();
+      try {
+         int rows = stmt.executeUpdate (sql);
+         event.finish (sql, rows, false);
+      }catch (SQLException e) {
+         event.finish (sql, -1, true);
+         throw ActionDeadline.failed (e);
+      }finally {
+         ActionDeadline.afterStatement (started);
+         // close the instruction
+         stmt.close ();
+      }
    }//end executeUpdate
 
    /**
@@ -96,11 +359,13 @@ public class PizzaStore {
     * @throws java.sql.SQLException when failed to execute the query
     */
    public int executeQueryAndPrintResult (String query) throws SQLException {
+      JdbcEvent event = JdbcEvent.start ("executeQueryAndPrintResult");
       // creates a statement object
-      Statement stmt = this._connection.createStatement ();
+      Connection connection = connection();
+      Statement stmt = connection.createStatement ();
 
       // issues the query instruction
-      ResultSet rs = stmt.executeQuery (query);
+      ResultSet rs = executeTimed (connection, stmt, query, event);
 
       /*
        ** obtains the metadata object for the returned result set.  The metadata
@@ -126,6 +391,7 @@ public class PizzaStore {
          ++rowCount;
       }//end while
       stmt.close();
+      event.finish (query, rowCount, false);
       return rowCount;
    }//end executeQuery
 
@@ -139,11 +405,13 @@ public class PizzaStore {
     * @throws java.sql.SQLException when failed to execute the query
     */
    public List<List<String>> executeQueryAndReturnResult (String query) throws SQLException {
+      JdbcEvent event = JdbcEvent.start ("executeQueryAndReturnResult");
       // creates a statement object
-      Statement stmt = this._connection.createStatement ();
+      Connection connection = connection();
+      Statement stmt = connection.createStatement ();
 
       // issues the query instruction
-      ResultSet rs = stmt.executeQuery (query);
+      ResultSet rs = executeTimed (connection, stmt, query, event);
 
       /*
        ** obtains the metadata object for the returned result set.  The metadata
@@ -163,9 +431,328 @@ public class PizzaStore {
         result.add(record);
       }//end while
       stmt.close ();
+      event.finish (query, result.size(), false);
       return result;
    }//end executeQueryAndReturnResult
 
+   /**
+    * Method to execute a parameterized query SQL instruction (i.e. SELECT).
+    * Each '?' placeholder in the query is bound to the matching parameter,
+    * and the results are returned as a list of records.
+    *
+    * @param query the input query string with '?' placeholders
+    * @param params the values bound to the placeholders, in order
+    * @return the query result as a list of records
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public List<List<String>> executeQueryAndReturnResult (String query, Object... params) throws SQLException {
+      return queryRows(JdbcEvent.start ("executeQueryAndReturnResult"), connection(), query, params);
+   }//end executeQueryAndReturnResult
+
+   /**
+    * Executes a parameterized query on the given connection and returns the
+    * results as a list of records.  Used for connections other than the
+    * main one, such as shards and background workers.
+    *
+    * @param connection the connection to run the query on
+    * @param query the input query string with '?' placeholders
+    * @param params the values bound to the placeholders, in order
+    * @return the query result as a list of records
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public static List<List<String>> queryRows (Connection connection, String query, Object... params) throws SQLException {
+      return queryRows(JdbcEvent.start ("queryRows"), connection, query, params);
+   }//end queryRows
+
+   private static List<List<String>> queryRows (JdbcEvent event, Connection connection, String query, Object... params) throws SQLException {
+      // creates a prepared statement object
+      PreparedStatement stmt = connection.prepareStatement (query);
+      for (int i = 0; i < params.length; ++i)
+         stmt.setObject (i + 1, params[i]);
+
+      // issues the query instruction
+      ResultSet rs = executeTimed (connection, stmt, query, event);
+
+      ResultSetMetaData rsmd = rs.getMetaData ();
+      int numCol = rsmd.getColumnCount ();
+
+      // iterates through the result set and saves the data returned by the query.
+      List<List<String>> result  = new ArrayList<List<String>>();
+      while (rs.next()){
+         List<String> record = new ArrayList<String>();
+         for (int i=1; i<=numCol; ++i)
+            record.add(rs.getString (i));
+         result.add(record);
+      }//end while
+      stmt.close ();
+      event.finish (query, result.size(), false);
+      return result;
+   }//end queryRows
+
+   /**
+    * Runs a query within the database time budget of the current action.
+    * A query cancelled by its statement_timeout surfaces as a
+    * java.sql.SQLTimeoutException.  A failed query ends its JDBC event.
+    *
+    * @param connection the connection the statement belongs to
+    * @param stmt the statement to run; a PreparedStatement runs its own query
+    * @param query the query text
+    * @param event the JDBC event of the helper
+    * @return the query result
+    * @throws java.sql.SQLException when the query failed or ran out of time
+    */
+   static ResultSet executeTimed (Connection connection, Statement stmt, String query, JdbcEvent event) throws SQLException {
+      long started = ActionDeadline.beforeStatement (connection, stmt);
+      try {
+         return stmt instanceof PreparedStatement ? ((PreparedStatement) stmt).executeQuery () : stmt.executeQuery (query);
+      }catch (SQLException e) {
+         stmt.close ();
+         event.finish (query, -1, true);
+         throw ActionDeadline.failed (e);
+      }finally {
+         ActionDeadline.afterStatement (started);
+      }
+   }//end executeTimed
+
+   /**
+    * Runs an update, or the batch of a PreparedStatement, within the
+    * database time budget of the current action and ends its JDBC event.
+    *
+    * @param connection the connection the statement belongs to
+    * @param stmt the statement to run; a PreparedStatement runs its own update
+    * @param sql the update text
+    * @param batch whether to run the batch added to the statement
+    * @return the number of rows changed
+    * @throws java.sql.SQLException when the update failed or ran out of time
+    */
+   static int updateTimed (Connection connection, Statement stmt, String sql, boolean batch) throws SQLException {
+      JdbcEvent event = JdbcEvent.start (batch ? "executeBatch" : "executeUpdate");
+      long started = ActionDeadline.beforeStatement (connection, stmt);
+      try {
+         int rows = 0;
+         if (batch) {
+            for (int count : stmt.executeBatch ()) rows += Math.max(0, count);
+         }else {
+            rows = stmt instanceof PreparedStatement ? ((PreparedStatement) stmt).executeUpdate () : stmt.executeUpdate (sql);
+         }
+         event.finish (sql, rows, false);
+         return rows;
+      }catch (SQLException e) {
+         event.finish (sql, -1, true);
+         throw ActionDeadline.failed (e);
+      }finally {
+         ActionDeadline.afterStatement (started);
+      }
+   }//end updateTimed
+
+   /**
+    * Formats a list of values as a Postgres array literal, e.g. {"a","b"},
+    * so it can be bound as a string and cast to text[] or integer[].
+    *
+    * @param values the array elements
+    * @return the array literal
+    */
+   public static String toArrayLiteral (List<?> values) {
+      StringBuilder literal = new StringBuilder("{");
+      for (int i = 0; i < values.size(); ++i) {
+         if (i > 0) literal.append(',');
+         String value = String.valueOf(values.get(i));
+         literal.append('"')
+                .append(value.replace("\\", "\\\\").replace("\"", "\\\""))
+                .append('"');
+      }
+      return literal.append('}').toString();
+   }//end toArrayLiteral
+
+   /**
+    * Returns a role, order status, item type or open flag in the form the
+    * database stores it, trimmed and lower case, so it can be compared
+    * with plain equality.
+    *
+    * @param value the value as typed or read from a file
+    * @return the canonical value, or null for null
+    */
+   public static String canonical (String value) {
+      return value == null ? null : value.trim().toLowerCase(Locale.ROOT);
+   }//end canonical
+
+   /**
+    * Takes the admission slots of an order.  Only stores in the catalog get
+    * an admission gate, so storeIDs typed by users cannot grow its map.
+    *
+    * @param storeID the store the order is placed at
+    * @throws java.sql.SQLException when the store does not exist or is busy
+    */
+   private void admit (int storeID) throws SQLException {
+      if (!isKnownStore(storeID)) {
+         // the store may have been added since the catalog was loaded
+         if (this._catalog.query(this, "SELECT storeID FROM Store WHERE storeID = ?;", storeID).isEmpty()) {
+            throw new SQLException("Store " + storeID + " does not exist.");
+         }
+         this._catalog.invalidateStores();
+      }
+      if (!this._admission.tryAcquire(storeID)) {
+         throw new SQLException("Store " + storeID + " is busy right now. Please try again shortly.");
+      }
+   }//end admit
+
+   private boolean isKnownStore (int storeID) throws SQLException {
+      for (List<String> store : this._catalog.getStores(this)) {
+         if (Integer.parseInt(store.get(0).trim()) == storeID) return true;
+      }
+      return false;
+   }//end isKnownStore
+
+   /**
+    * Places an order with a single call to the place_order procedure.  The
+    * server checks the store is open, validates and prices the items and
+    * inserts the FoodOrder and ItemsInOrder rows in one transaction.  With
+    * the order journal enabled an order the database cannot take in time is
+    * saved locally and the receipt is pending.
+    *
+    * @param login the customer placing the order
+    * @param storeID the store the order is placed at
+    * @param itemNames the ordered item names
+    * @param quantities the quantity of each item
+    * @return the new order ID and its total price
+    * @throws java.sql.SQLException when the order is rejected or fails
+    */
+   public OrderReceipt submitOrder (String login, int storeID, List<String> itemNames, List<Integer> quantities) throws SQLException {
+      admit(storeID);
+      try {
+         return ordered(login, storeID, itemNames, this._journal != null
+            ? this._journal.place(login, storeID, itemNames, quantities)
+            : this._repository.placeOrder(login, storeID, itemNames, quantities));
+      }finally {
+         this._admission.release(storeID);
+      }
+   }//end submitOrder
+
+   /**
+    * Orders the items of a past order of the user again with a single call
+    * to the reorder_order procedure, at current prices.
+    *
+    * @param login the customer placing the order
+    * @param orderID the past order to repeat
+    * @param storeID the store the new order is placed at
+    * @return the new order ID and its total price
+    * @throws java.sql.SQLException when the order is rejected or fails
+    */
+   public OrderReceipt submitReorder (String login, int orderID, int storeID) throws SQLException {
+      admit(storeID);
+      try {
+         return ordered(login, storeID, null, this._repository.reorder(login, orderID, Integer.valueOf(storeID)));
+      }finally {
+         this._admission.release(storeID);
+      }
+   }//end submitReorder
+
+   /**
+    * Orders one of each of the user's favorite items with a single call to
+    * the order_favorites procedure.
+    *
+    * @param login the customer placing the order
+    * @param storeID the store the order is placed at
+    * @return the new order ID and its total price
+    * @throws java.sql.SQLException when the order is rejected or fails
+    */
+   public OrderReceipt submitFavorites (String login, int storeID) throws SQLException {
+      admit(storeID);
+      try {
+         return ordered(login, storeID, null, this._repository.orderFavorites(login, storeID));
+      }finally {
+         this._admission.release(storeID);
+      }
+   }//end submitFavorites
+
+   // itemNames is null when the items were chosen by the server
+   private OrderReceipt ordered (String login, int storeID, List<String> itemNames, OrderReceipt receipt) {
+      if (this._prefetch != null) {
+         // the prefetched profile carries the order totals
+         this._prefetch.discardRecentOrders(login);
+         this._prefetch.discardProfile(login);
+      }
+      try {
+         this._activity.recordOrder(storeID, receipt.getTotalPrice());
+      }catch (RuntimeException e) {
+         // the order is committed; losing it from the live activity view is harmless
+         System.err.println("Warning - Unable to record store activity: " + e.getMessage());
+      }
+      if (this._recommender != null) {
+         try {
+            if (itemNames == null) {
+               itemNames = new ArrayList<String>();
+               for (List<String> row : this._repository.orderDetails(receipt.getOrderID(), login)) {
+                  if (row.get(6) != null) itemNames.add(row.get(6));
+               }
+            }
+            this._recommender.record(receipt.getOrderID(), itemNames);
+         }catch (SQLException e) {
+            // the order is placed; it is counted when the matrix is next built
+         }
+      }
+      return receipt;
+   }//end ordered
+
+   /**
+    * Updates one profile column (phoneNum, password or favoriteItems) of a
+    * user.  With write-behind enabled the change is queued and coalesced,
+    * otherwise it is written immediately.
+    *
+    * @param login the user to update
+    * @param column the column to change
+    * @param value the new value
+    * @throws java.sql.SQLException when the update failed
+    */
+   public void updateProfileColumn (String login, String column, String value) throws SQLException {
+      if (ProfileWriteBehind.PASSWORD.equals(column)) this._loginGuard.invalidate(login);
+      if (this._prefetch != null) this._prefetch.discardProfile(login);
+      if (this._profileWriter != null) {
+         this._profileWriter.enqueue(login, column, value);
+         return;
+      }
+      String sql = "UPDATE users SET " + column + " = ? WHERE login = ?";
+      JdbcEvent event = JdbcEvent.start ("updateProfileColumn");
+      Connection connection = connection();
+      PreparedStatement stmt = connection.prepareStatement (sql);
+      stmt.setString (1, value);
+      stmt.setString (2, login);
+      long started = ActionDeadline.beforeStatement (connection, stmt);
+      try {
+         event.finish (sql, stmt.executeUpdate (), false);
+      }catch (SQLException e) {
+         event.finish (sql, -1, true);
+         throw ActionDeadline.failed (e);
+      }finally {
+         ActionDeadline.afterStatement (started);
+         stmt.close ();
+      }
+   }//end updateProfileColumn
+
+   /**
+    * Writes any queued profile changes of a user so a following read or
+    * login check sees them.
+    *
+    * @param login the user whose changes are written
+    * @throws java.sql.SQLException when the update failed
+    */
+   public void flushProfileUpdates (String login) throws SQLException {
+      if (this._profileWriter != null) this._profileWriter.flush(login);
+   }//end flushProfileUpdates
+
+   /**
+    * Writes every queued profile change, reporting rather than throwing
+    * on failure so it is safe to call on logout and shutdown.
+    */
+   public void flushProfileUpdates () {
+      if (this._profileWriter == null) return;
+      try {
+         this._profileWriter.flush();
+      }catch (SQLException e) {
+         System.err.println("Error - Unable to write queued profile updates: " + e.getMessage());
+      }
+   }//end flushProfileUpdates
+
    /**
     * Method to execute an input query SQL instruction (i.e. SELECT).  This
     * method issues the query to the DBMS and returns the number of results
@@ -175,11 +762,13 @@ public class PizzaStore {
     * @throws java.sql.SQLException when failed to execute the query
     */
    public int executeQuery (String query) throws SQLException {
+       JdbcEvent event = JdbcEvent.start ("executeQuery");
        // creates a statement object
-       Statement stmt = this._connection.createStatement ();
+       Connection connection = connection();
+       Statement stmt = connection.createStatement ();
 
        // issues the query instruction
-       ResultSet rs = stmt.executeQuery (query);
+       ResultSet rs = executeTimed (connection, stmt, query, event);
 
        int rowCount = 0;
 
@@ -188,6 +777,7 @@ public class PizzaStore {
           rowCount++;
        }//end while
        stmt.close ();
+       event.finish (query, rowCount, false);
        return rowCount;
    }
 
@@ -201,7 +791,7 @@ public class PizzaStore {
     * @throws java.sql.SQLException when failed to execute the query
     */
    public int getCurrSeqVal(String sequence) throws SQLException {
-	Statement stmt = this._connection.createStatement ();
+	Statement stmt = connection().createStatement ();
 
 	ResultSet rs = stmt.executeQuery (String.format("Select currval('%s')", sequence));
 	if (rs.next())
@@ -213,6 +803,32 @@ public class PizzaStore {
     * Method to close the physical connection if it is open.
     */
    public void cleanup(){
+      this._loginGuard.close ();
+      if (this._prefetch != null){
+         this._prefetch.close ();
+      }//end if
+      try{
+         if (this._profileWriter != null){
+            this._profileWriter.close ();
+         }//end if
+      }catch (SQLException e){
+         System.err.println("Error - Unable to write queued profile updates: " + e.getMessage());
+      }//end try
+      if (this._journal != null){
+         this._journal.close ();
+      }//end if
+      if (this._statusListener != null){
+         this._statusListener.close ();
+      }//end if
+      if (this._analytics != null){
+         this._analytics.close ();
+      }//end if
+      if (this._orderWriter != null){
+         this._orderWriter.close ();
+      }//end if
+      if (this._shards != null){
+         this._shards.close ();
+      }//end if
       try{
          if (this._connection != null){
             this._connection.close ();
@@ -237,19 +853,21 @@ public class PizzaStore {
          return;
       }//end if
 
+      // -Dpizzastore.fastStart=true shows the menu before the connection is up
+      boolean fastStart = Boolean.getBoolean("pizzastore.fastStart");
+
       Greeting();
       PizzaStore esql = null;
       try{
-         // use postgres JDBC driver.
-         Class.forName ("org.postgresql.Driver").newInstance ();
          // instantiate the PizzaStore object and creates a physical
          // connection.
          String dbname = args[0];
          String dbport = args[1];
          String user = args[2];
-         esql = new PizzaStore (dbname, dbport, user, "");
+         esql = new PizzaStore (dbname, dbport, user, "", fastStart);
 
          boolean keepon = true;
+         boolean firstMenu = true;
          while(keepon) {
             // These are sample SQL statements
             System.out.println("MAIN MENU");
@@ -257,13 +875,26 @@ public class PizzaStore {
             System.out.println("1. Create user");
             System.out.println("2. Log in");
             System.out.println("9. < EXIT");
+            if (firstMenu && fastStart) {
+               esql._firstMenuMillis = System.currentTimeMillis() - ManagementFactory.getRuntimeMXBean().getStartTime();
+            }
+            firstMenu = false;
             String authorisedUser = null;
-            switch (readChoice()){
-               case 1: CreateUser(esql); break;
-               case 2: authorisedUser = LogIn(esql); break;
-               case 9: keepon = false; break;
-               default : System.out.println("Unrecognized choice!"); break;
-            }//end switch
+            int startChoice = readChoice();
+            String startAction = startChoice == 1 ? "CreateUser" : startChoice == 2 ? "LogIn" : null;
+            ActionDeadline startDeadline = startAction == null ? null : ActionDeadline.begin(startAction);
+            ActionEvent startEvent = startAction == null ? null : ActionEvent.start(startAction);
+            try {
+               switch (startChoice){
+                  case 1: CreateUser(esql); break;
+                  case 2: authorisedUser = LogIn(esql); break;
+                  case 9: keepon = false; break;
+                  default : System.out.println("Unrecognized choice!"); break;
+               }//end switch
+            }finally {
+               if (startEvent != null) startEvent.finish();
+               if (startDeadline != null) startDeadline.end();
+            }
             if (authorisedUser != null) {
               boolean usermenu = true;
               while(usermenu) {
@@ -277,6 +908,8 @@ public class PizzaStore {
                 System.out.println("6. View Past 5 Order IDs");
                 System.out.println("7. View Order Information"); //user should specify orderID and then be able to see detailed information about the order
                 System.out.println("8. View Stores"); 
+                System.out.println("16. Watch My Order");
+                System.out.println("18. Reorder");
                 String roleCheck = checkRole(esql, authorisedUser);
                 boolean driver = (roleCheck.equals("driver"));
                 boolean manager = (roleCheck.equals("manager"));
@@ -289,58 +922,87 @@ public class PizzaStore {
                 if (manager) {
                   System.out.println("10. Update Menu");
                   System.out.println("11. Update User");
+                  System.out.println("12. View System Metrics");
+                  System.out.println("13. Export Order History");
+                  System.out.println("14. View Store Activity");
+                  System.out.println("15. Verify Order Totals");
+                  System.out.println("17. Order Analytics");
                 }
 
                 System.out.println(".........................");
                 System.out.println("20. Log out");
                 
-                if (manager) {
-                switch (readChoice()){
-                   case 1: viewProfile(esql, authorisedUser); break;
-                   case 2: updateProfile(esql, authorisedUser); break;
-                   case 3: viewMenu(esql); break;
-                   case 4: placeOrder(esql, authorisedUser); break;
-                   case 5: viewAllOrders(esql, authorisedUser); break;
-                   case 6: viewRecentOrders(esql, authorisedUser); break;
-                   case 7: viewOrderInfo(esql, authorisedUser); break;
-                   case 8: viewStores(esql); break;
-                   case 9: updateOrderStatus(esql, authorisedUser); break;
-                   case 10: updateMenu(esql, authorisedUser); break;
-                   case 11: updateUser(esql, authorisedUser); break;
-                   case 20: usermenu = false; break;
-                   default : System.out.println("Unrecognized choice!"); break;
-                }
-                }
-                else if (role) {
-                switch (readChoice()) {
-                  case 1: viewProfile(esql, authorisedUser); break;
-                  case 2: updateProfile(esql, authorisedUser); break;
-                  case 3: viewMenu(esql); break;
-                  case 4: placeOrder(esql, authorisedUser); break;
-                  case 5: viewAllOrders(esql, authorisedUser); break;
-                  case 6: viewRecentOrders(esql, authorisedUser); break;
-                  case 7: viewOrderInfo(esql, authorisedUser); break;
-                  case 8: viewStores(esql); break;
-                  case 9: updateOrderStatus(esql, authorisedUser); break;
-                  case 20: usermenu = false; break;
-                  default : System.out.println("Unrecognized choice!"); break;
-                }
-                }
-                else {
-                  switch(readChoice()) {
-                    case 1: viewProfile(esql, authorisedUser); break;
-                    case 2: updateProfile(esql, authorisedUser); break;
-                    case 3: viewMenu(esql); break;
-                    case 4: placeOrder(esql, authorisedUser); break;
-                    case 5: viewAllOrders(esql, authorisedUser); break;
-                    case 6: viewRecentOrders(esql, authorisedUser); break;
-                    case 7: viewOrderInfo(esql, authorisedUser); break;
-                    case 8: viewStores(esql); break;
-                    case 20: usermenu = false; break;
-                    default : System.out.println("Unrecognized choice!"); break;
-                  }
+                int choice = readChoice();
+                // each action runs within its own database time budget
+                String action = actionName(choice, manager, role);
+                ActionDeadline deadline = action == null ? null : ActionDeadline.begin(action);
+                ActionEvent event = action == null ? null : ActionEvent.start(action);
+                try {
+                   if (manager) {
+                   switch (choice){
+                      case 1: viewProfile(esql, authorisedUser); break;
+                      case 2: updateProfile(esql, authorisedUser); break;
+                      case 3: viewMenu(esql); break;
+                      case 4: placeOrder(esql, authorisedUser); break;
+                      case 5: viewAllOrders(esql, authorisedUser); break;
+                      case 6: viewRecentOrders(esql, authorisedUser); break;
+                      case 7: viewOrderInfo(esql, authorisedUser); break;
+                      case 8: viewStores(esql); break;
+                      case 9: updateOrderStatus(esql, authorisedUser); break;
+                      case 10: updateMenu(esql, authorisedUser); break;
+                      case 11: updateUser(esql, authorisedUser); break;
+                      case 12: viewSystemMetrics(esql); break;
+                      case 13: exportOrders(esql); break;
+                      case 14: viewStoreActivity(esql); break;
+                      case 15: verifyOrderTotals(esql); break;
+                      case 16: watchOrder(esql, authorisedUser); break;
+                      case 17: viewOrderAnalytics(esql); break;
+                      case 18: reorder(esql, authorisedUser); break;
+                      case 20: usermenu = false; break;
+                      default : System.out.println("Unrecognized choice!"); break;
+                   }
+                   }
+                   else if (role) {
+                   switch (choice) {
+                     case 1: viewProfile(esql, authorisedUser); break;
+                     case 2: updateProfile(esql, authorisedUser); break;
+                     case 3: viewMenu(esql); break;
+                     case 4: placeOrder(esql, authorisedUser); break;
+                     case 5: viewAllOrders(esql, authorisedUser); break;
+                     case 6: viewRecentOrders(esql, authorisedUser); break;
+                     case 7: viewOrderInfo(esql, authorisedUser); break;
+                     case 8: viewStores(esql); break;
+                     case 9: updateOrderStatus(esql, authorisedUser); break;
+                     case 16: watchOrder(esql, authorisedUser); break;
+                     case 18: reorder(esql, authorisedUser); break;
+                     case 20: usermenu = false; break;
+                     default : System.out.println("Unrecognized choice!"); break;
+                   }
+                   }
+                   else {
+                     switch(choice) {
+                       case 1: viewProfile(esql, authorisedUser); break;
+                       case 2: updateProfile(esql, authorisedUser); break;
+                       case 3: viewMenu(esql); break;
+                       case 4: placeOrder(esql, authorisedUser); break;
+                       case 5: viewAllOrders(esql, authorisedUser); break;
+                       case 6: viewRecentOrders(esql, authorisedUser); break;
+                       case 7: viewOrderInfo(esql, authorisedUser); break;
+                       case 8: viewStores(esql); break;
+                       case 16: watchOrder(esql, authorisedUser); break;
+                       case 18: reorder(esql, authorisedUser); break;
+                       case 20: usermenu = false; break;
+                       default : System.out.println("Unrecognized choice!"); break;
+                     }
+                   }
+                }finally {
+                   if (event != null) event.finish();
+                   if (deadline != null) deadline.end();
                 }
               }
+              // logging out makes any queued profile changes durable
+              esql.flushProfileUpdates();
+              if (esql._prefetch != null) esql._prefetch.end();
             }
          }//end while
       }catch(Exception e) {
@@ -386,6 +1048,35 @@ public class PizzaStore {
       return input;
    }//end readChoice
 
+   /*
+    * @return the name of a menu action the user may run, used for its
+    * database time budget and its flight recorder event, or null for log
+    * out and unknown choices
+    **/
+   static String actionName(int choice, boolean manager, boolean role) {
+      switch (choice) {
+         case 1: return "viewProfile";
+         case 2: return "updateProfile";
+         case 3: return "viewMenu";
+         case 4: return "placeOrder";
+         case 5: return "viewAllOrders";
+         case 6: return "viewRecentOrders";
+         case 7: return "viewOrderInfo";
+         case 8: return "viewStores";
+         case 9: return role ? "updateOrderStatus" : null;
+         case 10: return manager ? "updateMenu" : null;
+         case 11: return manager ? "updateUser" : null;
+         case 12: return manager ? "viewSystemMetrics" : null;
+         case 13: return manager ? "exportOrders" : null;
+         case 14: return manager ? "viewStoreActivity" : null;
+         case 15: return manager ? "verifyOrderTotals" : null;
+         case 16: return "watchOrder";
+         case 17: return manager ? "viewOrderAnalytics" : null;
+         case 18: return "reorder";
+         default: return null;
+      }
+   }//end actionName
+
    /*
     * Creates a new user
     **/
@@ -394,6 +1085,8 @@ public class PizzaStore {
          Scanner scanner = new Scanner(System.in);
          System.out.println("Enter username: ");
          String login = scanner.nextLine();
+
+         // a taken name is refused by the primary key when the user is inserted
         
          System.out.println("Enter password: ");
          String password = scanner.nextLine();
@@ -401,9 +1094,29 @@ public class PizzaStore {
          System.out.println("Enter phone number: ");
          String phoneNum = scanner.nextLine();
 
-         String query = "INSERT INTO users (login, password, role, favoriteItems, phoneNum) VALUES ('" + login + "', '" + password + "', 'customer', NULL, '" + phoneNum + "');";
-      
-         esql.executeUpdate(query);
+         Connection connection = esql.connection();
+         PreparedStatement stmt = connection.prepareStatement(
+            "INSERT INTO users (login, password, role, favoriteItems, phoneNum) VALUES (?, ?, 'customer', NULL, ?);");
+         stmt.setString(1, login);
+         stmt.setString(2, password);
+         stmt.setString(3, phoneNum);
+         long started = ActionDeadline.beforeStatement(connection, stmt);
+         try {
+            stmt.executeUpdate();
+         }catch (SQLException e) {
+            // unique_violation; the bundled driver reports no SQLSTATE, only the message
+            String message = String.valueOf(e.getMessage());
+            if ("23505".equals(e.getSQLState()) || message.contains("duplicate key")) {
+               System.out.println("Username is already taken");
+               return;
+            }
+            throw e;
+         }finally {
+            ActionDeadline.afterStatement(started);
+            stmt.close();
+         }
+         esql._loginGuard.addLogin(login);
+         esql.shards().replicateUser(login);
          System.out.println("User created successfully!");
 
       } catch (Exception e) {
@@ -426,13 +1139,45 @@ public class PizzaStore {
          System.out.println("Enter password: ");
          String password = scanner.nextLine();
 
-         String query = "SELECT * FROM users WHERE login = '" + login + "' AND password = '" + password + "';";
-         int userCount = esql.executeQuery(query);
+         long wait = esql._loginGuard.throttleRemaining(login);
+         if (wait > 0) {
+            System.out.println("Too many failed attempts. Try again in " + ((wait + 999) / 1000) + " seconds.");
+            return null;
+         }
 
-         if (userCount > 0) {
+         try {
+            esql.flushProfileUpdates(login);
+         }catch (SQLException e) {
+            // the changes stay queued; the stored password is checked instead
+            System.err.println("Warning - Unable to write queued profile updates: " + e.getMessage());
+         }
+         boolean valid;
+         if (!esql._loginGuard.mightExist(esql, login)) {
+            // unknown logins are rejected without a password check or a failure counter
+            System.out.println("Invalid username or password");
+            return null;
+         }
+         else if (esql._loginGuard.isCachedValid(login, password)) {
+            valid = true;
+         }
+         else {
+            esql._loginGuard.recordDatabaseCheck();
+            valid = esql.repository().checkCredentials(login, password);
+         }
+
+         if (valid) {
+            esql._loginGuard.recordSuccess(login, password);
+            if (esql._prefetch != null) {
+               try {
+                  esql._prefetch.start(login);
+               }catch (SQLException e) {
+                  System.err.println("Warning - Unable to prefetch session data: " + e.getMessage());
+               }
+            }
             System.out.println("Logged in successfully!");
             return login;
          } else {
+            esql._loginGuard.recordFailure(login);
             System.out.println("Invalid username or password");
             return null;
          }
@@ -447,8 +1192,9 @@ public class PizzaStore {
 
    public static void viewProfile(PizzaStore esql, String login) {
       try {
-         String query = "SELECT login, phoneNum, role, favoriteItems FROM users WHERE login = '" + login + "';";
-         List<List<String>> result = esql.executeQueryAndReturnResult(query);
+         esql.flushProfileUpdates(login);
+         List<List<String>> result = esql._prefetch == null ? null : esql._prefetch.takeProfile(login);
+         if (result == null) result = esql.repository().profile(login);
 
          if (result.isEmpty()) {
             System.out.println("User not found");
@@ -459,6 +1205,7 @@ public class PizzaStore {
          System.out.println("Phone Number: " + result.get(0).get(1));
          System.out.println("Role: " + result.get(0).get(2));
          System.out.println("Favorite Items: " + result.get(0).get(3));
+         printOrderSummary(result.get(0));
       
       } 
 
@@ -467,6 +1214,17 @@ public class PizzaStore {
       }
    }
    
+   // prints the order summary columns of a profile row
+   private static void printOrderSummary(List<String> profile) {
+      if (profile.get(4) == null) {
+         System.out.println("Orders: none yet");
+         return;
+      }
+      System.out.println("Orders: " + profile.get(4).trim() + " (" + profile.get(5).trim() + " completed)");
+      System.out.println("Lifetime Spend: $" + String.format("%.2f", Double.parseDouble(profile.get(6).trim())));
+      System.out.println("Last Order: " + profile.get(7) + " at store " + profile.get(8).trim());
+   }
+
    public static void updateProfile(PizzaStore esql, String login) {
       try {
          Scanner scanner = new Scanner(System.in);
@@ -481,22 +1239,19 @@ public class PizzaStore {
             case 1:
                System.out.println("Enter new phone number: ");
                String newPhoneNum = scanner.nextLine();
-               String updatePhoneNumQuery = "UPDATE users SET phoneNum = '" + newPhoneNum + "' WHERE login = '" + login + "';";
-               esql.executeUpdate(updatePhoneNumQuery);
+               esql.updateProfileColumn(login, ProfileWriteBehind.PHONE, newPhoneNum);
                break;
 
             case 2:
                System.out.println("Enter new password: ");
                String newPassword = scanner.nextLine();
-               String updatePasswordQuery = "UPDATE users SET password = '" + newPassword + "' WHERE login = '" + login + "';";
-               esql.executeUpdate(updatePasswordQuery);
+               esql.updateProfileColumn(login, ProfileWriteBehind.PASSWORD, newPassword);
                break;
 
             case 3:
                System.out.println("Enter new favorite items: ");
                String newFavoriteItems = scanner.nextLine();
-               String updateFavoriteItemsQuery = "UPDATE users SET favoriteItems = '" + newFavoriteItems + "' WHERE login = '" + login + "';";
-               esql.executeUpdate(updateFavoriteItemsQuery);
+               esql.updateProfileColumn(login, ProfileWriteBehind.FAVORITES, newFavoriteItems);
                break;
             default:
                System.out.println("Invalid choice");
@@ -506,7 +1261,7 @@ public class PizzaStore {
       }
 
       catch (Exception e) {
-         System.out.println("Error: Unable to update profile.");
+         System.out.println("Error: Unable to update profile. " + e.getMessage());
       }
    }
 
@@ -514,8 +1269,8 @@ public class PizzaStore {
       try {
          Scanner scanner = new Scanner(System.in);
 
-         String query = "SELECT * FROM Items;";
-         List<List<String>> result = esql.executeQueryAndReturnResult(query);
+         if (esql._prefetch != null) esql._prefetch.awaitMenu();
+         List<List<String>> result = esql.catalog().getMenu(esql);
 
          if (result.isEmpty()) {
             System.out.println("Menu is empty");
@@ -556,7 +1311,7 @@ public class PizzaStore {
                if (sortChoice == 1) filterPriceQuery = "SELECT * FROM Items WHERE price <= " + maxPrice + " ORDER BY price DESC;";
                else if (sortChoice == 2) filterPriceQuery = "SELECT * FROM Items WHERE price <= " + maxPrice + " ORDER BY price ASC;";
                else filterPriceQuery = "SELECT * FROM Items WHERE price <= " + maxPrice + ";";
-               List<List<String>> filteredResult = esql.executeQueryAndReturnResult(filterPriceQuery);
+               List<List<String>> filteredResult = esql.catalog().query(esql, filterPriceQuery);
 
                if (filteredResult.isEmpty()) {
                   System.out.println("No items found within that price range");
@@ -582,10 +1337,10 @@ public class PizzaStore {
             System.out.println("3. Neither");
             int sortChoice = scanner.nextInt();
             scanner.nextLine();
-            String filterTypeQuery = "SELECT * FROM Items WHERE LOWER(TRIM(typeOfItem)) = LOWER(TRIM('" + itemType + "'));";
-            if (sortChoice == 1) filterTypeQuery = "SELECT * FROM Items WHERE LOWER(TRIM(typeOfItem)) = LOWER(TRIM('" + itemType + "')) ORDER BY price DESC;";
-            else if (sortChoice == 2) filterTypeQuery = "SELECT * FROM Items WHERE LOWER(TRIM(typeOfItem)) = LOWER(TRIM('" + itemType + "')) ORDER BY price ASC;";
-            List<List<String>> filteredResult = esql.executeQueryAndReturnResult(filterTypeQuery);
+            String filterTypeQuery = "SELECT * FROM Items WHERE typeOfItem = ?;";
+            if (sortChoice == 1) filterTypeQuery = "SELECT * FROM Items WHERE typeOfItem = ? ORDER BY price DESC;";
+            else if (sortChoice == 2) filterTypeQuery = "SELECT * FROM Items WHERE typeOfItem = ? ORDER BY price ASC;";
+            List<List<String>> filteredResult = esql.catalog().query(esql, filterTypeQuery, canonical(itemType));
 
                if (filteredResult.isEmpty()) {
                   System.out.println("No items found within that type");
@@ -613,10 +1368,10 @@ public class PizzaStore {
                System.out.println("3. Neither");
                int sortChoice = scanner.nextInt();
                scanner.nextLine();
-               String filterTypeQuery = "SELECT * FROM Items WHERE price <= " + maxPrice + " AND LOWER(TRIM(typeOfItem)) = LOWER(TRIM('" + itemType + "'));";
-               if (sortChoice == 1) filterTypeQuery = "SELECT * FROM Items WHERE price <= " + maxPrice + " AND LOWER(TRIM(typeOfItem)) = LOWER(TRIM('" + itemType + "')) ORDER BY price DESC;";
-               else if (sortChoice == 2) filterTypeQuery = "SELECT * FROM Items WHERE price <= " + maxPrice + " AND LOWER(TRIM(typeOfItem)) = LOWER(TRIM('" + itemType + "')) ORDER BY price ASC;";
-               List<List<String>> filteredResult = esql.executeQueryAndReturnResult(filterTypeQuery);
+               String filterTypeQuery = "SELECT * FROM Items WHERE typeOfItem = ? AND price <= ?;";
+               if (sortChoice == 1) filterTypeQuery = "SELECT * FROM Items WHERE typeOfItem = ? AND price <= ? ORDER BY price DESC;";
+               else if (sortChoice == 2) filterTypeQuery = "SELECT * FROM Items WHERE typeOfItem = ? AND price <= ? ORDER BY price ASC;";
+               List<List<String>> filteredResult = esql.catalog().query(esql, filterTypeQuery, canonical(itemType), maxPrice);
 
                if (filteredResult.isEmpty()) {
                   System.out.println("No items found within that type");
@@ -652,42 +1407,62 @@ public class PizzaStore {
          System.out.println("Enter the ID of the store you want to order from:");
          int storeID = Integer.parseInt(scanner.nextLine().trim());
 
-         String query = "SELECT isOpen FROM store WHERE storeID = " + storeID + ";";
-         List<List<String>> result = esql.executeQueryAndReturnResult(query);
-
-         if (result.get(0).get(0).equals("no")) {
-            System.out.println("Store is closed. Please try again later.");
+         // fail fast from the cached catalog before the menu is shown; the
+         // server re-validates the store when the order is submitted
+         boolean known = false;
+         for (List<String> store : esql.catalog().getStores(esql)) {
+            if (Integer.parseInt(store.get(0).trim()) != storeID) continue;
+            known = true;
+            if ("no".equals(store.get(4))) {
+               System.out.println("Store is closed. Please try again later.");
+               return;
+            }
+         }
+         if (!known) {
+            System.out.println("Store " + storeID + " does not exist. Please try again.");
             return;
          }
 
+         Map<String, Double> prices = new HashMap<>();
+         if (esql._prefetch != null) esql._prefetch.awaitMenu();
+         for (List<String> row : esql.catalog().getMenu(esql)) {
+            prices.put(row.get(0), Double.parseDouble(row.get(3).trim()));
+         }
+
          List<String> itemNames = new ArrayList<>();
          List<Integer> quantities = new ArrayList<>();
          double totalPrice = 0.0;
 
+         viewMenu(esql);
          while (true) {
-
-            viewMenu(esql);
             System.out.println("Enter the name of the item you want to order (or type 'done' to finish):");
             String itemName = scanner.nextLine().trim();
             if (itemName.equalsIgnoreCase("done")) {
                break;
             }
 
-            String priceQuery = "SELECT price FROM Items WHERE itemName = '" + itemName + "';";
-            List<List<String>> priceResult = esql.executeQueryAndReturnResult(priceQuery);
-            if (priceResult.isEmpty()) {
+            if (!prices.containsKey(itemName)) {
                System.out.println("Item '" + itemName + "' does not exist. Please try again.");
                continue;
             }
 
-            double itemPrice = Double.parseDouble(priceResult.get(0).get(0));
-
             System.out.println("Enter the quantity for '" + itemName + "':");
             int quantity = Integer.parseInt(scanner.nextLine().trim());
+            if (quantity <= 0) {
+               System.out.println("Quantity must be positive. Please try again.");
+               continue;
+            }
 
-            totalPrice += itemPrice * quantity;
+            totalPrice += prices.get(itemName) * quantity;
             itemNames.add(itemName);
             quantities.add(quantity);
+
+            if (esql._recommender != null) {
+               List<String> suggestions = esql._recommender.suggest(itemNames, prices.keySet(), 3);
+               if (!suggestions.isEmpty()) {
+                  System.out.println("Customers who ordered this also ordered: " + String.join(", ", suggestions));
+               }
+            }
          }
 
          if (itemNames.isEmpty()) {
@@ -695,44 +1470,64 @@ public class PizzaStore {
             return;
          }
 
-         System.out.println("Your total is: $" + totalPrice);
+         System.out.println("Your estimated total is: $" + String.format("%.2f", totalPrice));
 
-         String maxOrderQuery = "SELECT MAX(orderID) FROM FoodOrder;";
-         List<List<String>> maxOrderResult = esql.executeQueryAndReturnResult(maxOrderQuery);
-         int newOrderID = 0;
-         if (maxOrderResult.isEmpty() || maxOrderResult.get(0).get(0) == null) {
-            newOrderID = 10000;
-         } 
-         else {
-            newOrderID = Integer.parseInt(maxOrderResult.get(0).get(0)) + 1;
-         }
+         OrderReceipt receipt = esql.submitOrder(login, storeID, itemNames, quantities);
 
-         String insertOrderQuery = String.format(
-            "INSERT INTO FoodOrder (orderID, login, storeID, totalPrice, orderTimestamp, orderStatus) " +
-            "VALUES (%d, '%s', %d, %.2f, CURRENT_TIMESTAMP(0), 'incomplete');",
-            newOrderID, login, storeID, totalPrice
-         );
-         esql.executeUpdate(insertOrderQuery);
-
-         for (int i = 0; i < itemNames.size(); i++) {
-               String itemName = itemNames.get(i);
-               int quantity = quantities.get(i);
-
-               String insertItemsInOrderQuery = String.format(
-                  "INSERT INTO ItemsInOrder (orderID, itemName, quantity) " +
-                  "VALUES (%d, '%s', %d);",
-                  newOrderID, itemName, quantity
-               );
-               esql.executeUpdate(insertItemsInOrderQuery);
+         if (receipt.isPending()) {
+            System.out.println("The store system is unavailable right now, so your order was saved and will be sent automatically.");
+            System.out.println("Your estimated total is: $" + String.format("%.2f", receipt.getTotalPrice()));
+            System.out.println("Order reference: " + receipt.getReference());
+            return;
          }
-
-         System.out.println("Order placed successfully with order ID " + newOrderID + "!");
+         System.out.println("Your total is: $" + String.format("%.2f", receipt.getTotalPrice()));
+         System.out.println("Order placed successfully with order ID " + receipt.getOrderID() + "!");
       } 
       catch (Exception e) {
          System.err.println("Error placing order: " + e.getMessage());
       }
    }
 
+   public static void reorder(PizzaStore esql, String login) {
+      try {
+         Scanner scanner = new Scanner(System.in);
+         System.out.println("1. Reorder a past order");
+         System.out.println("2. Order my favorite items");
+         int choice = Integer.parseInt(scanner.nextLine().trim());
+
+         OrderReceipt receipt;
+         if (choice == 1) {
+            System.out.println("Enter the ID of the order to repeat:");
+            int orderID = Integer.parseInt(scanner.nextLine().trim());
+            List<List<String>> order = esql.repository().orderDetails(orderID, login);
+            if (order.isEmpty() || !login.equals(order.get(0).get(1).trim())) {
+               System.out.println("Error: Order not found.");
+               return;
+            }
+            int sourceStore = Integer.parseInt(order.get(0).get(2).trim());
+            for (List<String> row : order) {
+               if (row.get(6) != null) System.out.println("  " + row.get(6).trim() + " x " + row.get(7).trim());
+            }
+            System.out.println("Enter the ID of the store to order from (blank for store " + sourceStore + "):");
+            String store = scanner.nextLine().trim();
+            receipt = esql.submitReorder(login, orderID, store.isEmpty() ? sourceStore : Integer.parseInt(store));
+         }
+         else if (choice == 2) {
+            System.out.println("Enter the ID of the store to order from:");
+            receipt = esql.submitFavorites(login, Integer.parseInt(scanner.nextLine().trim()));
+         }
+         else {
+            System.out.println("Unrecognized choice!");
+            return;
+         }
+         System.out.println("Your total is: $" + String.format("%.2f", receipt.getTotalPrice()));
+         System.out.println("Order placed successfully with order ID " + receipt.getOrderID() + "!");
+      }
+      catch (Exception e) {
+         System.err.println("Error placing order: " + e.getMessage());
+      }
+   }
+
    public static void viewAllOrders(PizzaStore esql, String login) {
       try {   
          Scanner scanner = new Scanner(System.in);
@@ -742,11 +1537,11 @@ public class PizzaStore {
          boolean driver = false;
 
          if (!roleResult.isEmpty() && roleResult.get(0).size() > 0) {
-            String result = roleResult.get(0).get(0).trim();
-            if (result.equalsIgnoreCase("manager")) {  
+            String result = roleResult.get(0).get(0);
+            if ("manager".equals(result)) {  
                manager = true;
             }
-            else if (result.equalsIgnoreCase("driver")) {
+            else if ("driver".equals(result)) {
                driver = true;
             }
             else {
@@ -758,9 +1553,7 @@ public class PizzaStore {
          if (manager || driver) {
             System.out.println("Enter user to view orders: ");
             String user = scanner.nextLine();
-            String query = "SELECT * FROM FoodOrder WHERE login = '" + user + "';";
-
-            List<List<String>> result = esql.executeQueryAndReturnResult(query);
+            List<List<String>> result = esql.repository().ordersOf(user);
 
             if (result.isEmpty()) {
                System.out.println("No orders found");
@@ -778,8 +1571,7 @@ public class PizzaStore {
          }
 
          else {
-            String query = "SELECT * FROM FoodOrder WHERE login = '" + login + "';";
-            List<List<String>> result = esql.executeQueryAndReturnResult(query);
+            List<List<String>> result = esql.repository().ordersOf(login);
 
             if (result.isEmpty()) {
                System.out.println("No orders found");
@@ -806,8 +1598,8 @@ public class PizzaStore {
       try {
          Scanner scanner = new Scanner(System.in);
          
-         String query = "SELECT * FROM FoodOrder WHERE login = '" + login + "' ORDER BY orderTimestamp DESC LIMIT 5;";
-         List<List<String>> result = esql.executeQueryAndReturnResult(query);
+         List<List<String>> result = esql._prefetch == null ? null : esql._prefetch.takeRecentOrders(login);
+         if (result == null) result = esql.repository().recentOrdersOf(login, 5);
 
          if (result.isEmpty()) {
             System.out.println("No recent orders found");
@@ -835,36 +1627,35 @@ public class PizzaStore {
       try {
          Scanner scanner = new Scanner(System.in);
 
-         String roleQuery = "SELECT role FROM users WHERE login = '" + login + "';";
-         List<List<String>> roleResult = esql.executeQueryAndReturnResult(roleQuery);
-
-         if (roleResult.isEmpty()) {
-               System.out.println("Error: User not found.");
-               return;
-         }
-
-         String role = roleResult.get(0).get(0).trim();
-         boolean isManager = role.equalsIgnoreCase("manager");
-         boolean isDriver = role.equalsIgnoreCase("driver");
-
          System.out.println("Enter order ID: ");
          int orderID = scanner.nextInt();
          scanner.nextLine(); 
 
-         String orderQuery = "SELECT orderID, login, storeID, totalPrice, orderTimestamp, orderStatus FROM FoodOrder WHERE orderID = " + orderID + ";";
-         List<List<String>> orderResult = esql.executeQueryAndReturnResult(orderQuery);
+         // each row is one ordered item joined with its order and the viewer's role
+         List<List<String>> orderResult = esql._orderCache.get(orderID);
+         String role = null;
+         if (orderResult == null) {
+            orderResult = esql.repository().orderDetails(orderID, login);
 
-         if (orderResult.isEmpty()) {
-               System.out.println("Error: Order not found.");
-               return;
+            if (orderResult.isEmpty()) {
+                  System.out.println("Error: Order not found.");
+                  return;
+            }
+            role = orderResult.get(0).get(8);
+            esql._orderCache.putIfComplete(orderID, orderResult.get(0).get(5), orderResult);
          }
 
          String orderOwner = orderResult.get(0).get(1); 
 
-         
-         if (!isManager && !isDriver && !login.equals(orderOwner)) {
-               System.out.println("You do not have permission to view this order.");
-               return;
+         // the viewer's role is only needed when they do not own the order
+         if (!login.equals(orderOwner)) {
+            if (role == null) role = checkRole(esql, login);
+            boolean isManager = "manager".equals(role);
+            boolean isDriver = "driver".equals(role);
+            if (!isManager && !isDriver) {
+                  System.out.println("You do not have permission to view this order.");
+                  return;
+            }
          }
 
       
@@ -876,13 +1667,10 @@ public class PizzaStore {
          System.out.println("Order Time: " + orderResult.get(0).get(4));
          System.out.println("Order Status: " + orderResult.get(0).get(5));
 
-         String itemsQuery = "SELECT itemName, quantity FROM ItemsInOrder WHERE orderID = " + orderID + ";";
-         List<List<String>> itemsResult = esql.executeQueryAndReturnResult(itemsQuery);
-
-         if (!itemsResult.isEmpty()) {
+         if (orderResult.get(0).get(6) != null) {
                System.out.println("\n=== Ordered Items ===");
-               for (List<String> row : itemsResult) {
-                  System.out.println("Item: " + row.get(0) + " | Quantity: " + row.get(1));
+               for (List<String> row : orderResult) {
+                  System.out.println("Item: " + row.get(6) + " | Quantity: " + row.get(7));
                }
          } else {
                System.out.println("\nNo items found in this order.");
@@ -900,8 +1688,7 @@ public class PizzaStore {
       try {   
          Scanner scanner = new Scanner(System.in);
          
-         String storeQuery = "SELECT * FROM Store;";
-         List<List<String>> storeResult = esql.executeQueryAndReturnResult(storeQuery);
+         List<List<String>> storeResult = esql.catalog().getStores(esql);
          System.out.println("================== STORES LIST ==================");
          for (int i = 0; i < storeResult.size(); i++) {
             System.out.println("Store ID: " + storeResult.get(i).get(0));
@@ -925,8 +1712,8 @@ public class PizzaStore {
             if (filterChoice == 1) {
                System.out.println("Enter state: ");
                String state = scanner.nextLine();
-               String filterStateQuery = "SELECT * FROM Store WHERE state = '" + state + "';";
-               List<List<String>> filteredResult = esql.executeQueryAndReturnResult(filterStateQuery);
+               String filterStateQuery = "SELECT * FROM Store WHERE state = ?;";
+               List<List<String>> filteredResult = esql.catalog().query(esql, filterStateQuery, state.trim());
 
                if (filteredResult.isEmpty()) {
                   System.out.println("No stores found within that state");
@@ -946,7 +1733,7 @@ public class PizzaStore {
                System.out.println("Enter minimum review score: ");
                int minReviewScore = scanner.nextInt();
                String filterReviewScoreQuery = "SELECT * FROM Store WHERE reviewScore >= " + minReviewScore + ";";
-               List<List<String>> filteredResult = esql.executeQueryAndReturnResult(filterReviewScoreQuery);
+               List<List<String>> filteredResult = esql.catalog().query(esql, filterReviewScoreQuery);
 
                if (filteredResult.isEmpty()) {
                   System.out.println("No stores found with that review score");
@@ -967,8 +1754,8 @@ public class PizzaStore {
                String state = scanner.nextLine();
                System.out.println("Enter minimum review score: ");
                int minReviewScore = scanner.nextInt();
-               String filterBothQuery = "SELECT * FROM Store WHERE state = '" + state + "' AND reviewScore >= " + minReviewScore + ";";
-               List<List<String>> filteredResult = esql.executeQueryAndReturnResult(filterBothQuery);
+               String filterBothQuery = "SELECT * FROM Store WHERE state = ? AND reviewScore >= ?;";
+               List<List<String>> filteredResult = esql.catalog().query(esql, filterBothQuery, state.trim(), minReviewScore);
 
                if (filteredResult.isEmpty()) {
                   System.out.println("No stores found with that review score");
@@ -1009,11 +1796,11 @@ public class PizzaStore {
          boolean driver = false;
 
          if (roleResult.get(0).size() > 0) {
-            String result = roleResult.get(0).get(0).trim();
-            if (result.equalsIgnoreCase("manager")) {  
+            String result = roleResult.get(0).get(0);
+            if ("manager".equals(result)) {  
                manager = true;
             }
-            else if (result.equalsIgnoreCase("driver")) {
+            else if ("driver".equals(result)) {
                driver = true;
             }
             else {
@@ -1032,9 +1819,6 @@ public class PizzaStore {
             System.out.println("2. incomplete");
             int newStatus = scanner.nextInt();
             scanner.nextLine();
-            String updatedStatus = "";
-            if (newStatus == 1) updatedStatus = "complete";
-            else if (newStatus == 2) updatedStatus = "incomplete";
             while (newStatus != 1 && newStatus != 2) {
                   System.out.println("Invalid status");
                   System.out.println("Enter new status: ");
@@ -1043,8 +1827,17 @@ public class PizzaStore {
                   newStatus = scanner.nextInt();
                   scanner.nextLine();
             }
-            String updateStatusQuery = "UPDATE FoodOrder SET orderStatus = '" + newStatus + "' WHERE orderID = " + orderID + ";";
-            esql.executeUpdate(updateStatusQuery);
+            String updatedStatus = (newStatus == 1) ? "complete" : "incomplete";
+            Integer storeID = esql.repository().updateOrderStatus(orderID, updatedStatus);
+            esql._orderCache.invalidate(orderID);
+            if (storeID == null) {
+               System.out.println("Error: Order not found.");
+               return;
+            }
+            if (newStatus == 1) {
+               esql._activity.recordCompletion(storeID.intValue());
+            }
+            System.out.println("Order status updated to " + updatedStatus + ".");
          }
 
          else {
@@ -1066,8 +1859,8 @@ public class PizzaStore {
          boolean manager = false;
 
          if (roleResult.get(0).size() > 0) {
-            String result = roleResult.get(0).get(0).trim();
-            if (result.equalsIgnoreCase("manager")) {  
+            String result = roleResult.get(0).get(0);
+            if ("manager".equals(result)) {  
                manager = true;
             }
          }
@@ -1077,6 +1870,8 @@ public class PizzaStore {
             System.out.println("1. Add item");
             System.out.println("2. Remove item");
             System.out.println("3. Update item");
+            System.out.println("4. Reprice all items of a type");
+            System.out.println("5. Import menu from CSV file");
 
             int choice = scanner.nextInt();
             scanner.nextLine();
@@ -1094,7 +1889,7 @@ public class PizzaStore {
                   scanner.nextLine();
                   System.out.println("Enter description: ");
                   String description = scanner.nextLine();
-                  String addItemQuery = "INSERT INTO Items (itemName, ingredients, typeOfItem, price, description) VALUES ('" + itemName + "', '" + ingredients + "', '" + typeOfItem + "', " + price + ", '" + description + "');";
+                  String addItemQuery = "INSERT INTO Items (itemName, ingredients, typeOfItem, price, description) VALUES ('" + itemName + "', '" + ingredients + "', '" + canonical(typeOfItem) + "', " + price + ", '" + description + "');";
                   esql.executeUpdate(addItemQuery);
                   break;
 
@@ -1127,7 +1922,7 @@ public class PizzaStore {
                      case 2: 
                         System.out.println("Enter new type of item: ");
                         String newTypeOfItem = scanner.nextLine();
-                        String updateTypeOfItemQuery = "UPDATE Items SET typeOfItem = '" + newTypeOfItem + "' WHERE itemName = '" + itemToUpdate + "';";
+                        String updateTypeOfItemQuery = "UPDATE Items SET typeOfItem = '" + canonical(newTypeOfItem) + "' WHERE itemName = '" + itemToUpdate + "';";
                         esql.executeUpdate(updateTypeOfItemQuery);
                         break;
                      case 3:  
@@ -1148,10 +1943,34 @@ public class PizzaStore {
                         break;
                   }
                break;   
+
+               case 4:
+                  System.out.println("Enter type of item: ");
+                  String typeToReprice = scanner.nextLine().trim();
+                  System.out.println("1. Change by percentage");
+                  System.out.println("2. Change by dollar amount");
+                  int repriceChoice = scanner.nextInt();
+                  scanner.nextLine();
+                  System.out.println("Enter the change (negative to lower prices): ");
+                  BigDecimal amount = new BigDecimal(scanner.nextLine().trim());
+                  int repriced = MenuBulkOperations.repriceByType(esql, typeToReprice, amount, repriceChoice == 1);
+                  System.out.println(repriced + " item(s) repriced.");
+                  break;
+
+               case 5:
+                  System.out.println("Enter path of the CSV file: ");
+                  String path = scanner.nextLine().trim();
+                  int[] counts = MenuBulkOperations.importCsv(esql, new File(path));
+                  System.out.println(counts[0] + " item(s) updated, " + counts[1] + " item(s) added.");
+                  break;
+
                default:
                   System.out.println("Invalid choice");
                   break;
             }
+            // the bulk operations invalidate the menu themselves when they commit
+            if (choice < 4) esql.catalog().invalidateMenu();
+            esql.shards().replicateMenu();
          }
 
          else {
@@ -1160,7 +1979,7 @@ public class PizzaStore {
       }
 
       catch (Exception e) {
-         System.out.println("Error: Unable to update menu.");
+         System.out.println("Error: Unable to update menu. " + e.getMessage());
       }
 
    }
@@ -1174,15 +1993,38 @@ public class PizzaStore {
          List<List<String>> managerResult = esql.executeQueryAndReturnResult(managerQuery);
 
          if (!managerResult.isEmpty() && managerResult.get(0).size() > 0) {
-            String result = managerResult.get(0).get(0).trim();
-            if (result.equalsIgnoreCase("manager")) {  
+            String result = managerResult.get(0).get(0);
+            if ("manager".equals(result)) {  
                manager = true;
             }
          }
 
          if (manager == true) {
+            System.out.println("1. Update one user");
+            System.out.println("2. Bulk update users from CSV file");
+            int mode = scanner.nextInt();
+            scanner.nextLine();
+            if (mode == 2) {
+               System.out.println("Enter path of the CSV file (login,password,role,favoriteItems,phoneNum): ");
+               String path = scanner.nextLine().trim();
+               Map<String, Integer> outcomes = UserBulkOperations.applyCsv(esql, new File(path));
+               for (Map.Entry<String, Integer> outcome : outcomes.entrySet()) {
+                  System.out.println(outcome.getValue() + " row(s) " + outcome.getKey());
+               }
+               System.out.println("Per-row outcomes written to " + path + ".report.csv");
+               esql.shards().replicateReferenceData();
+               return;
+            }
+
             System.out.println("Enter login to be updated: ");
             String userToBeUpdated = scanner.nextLine();
+            List<List<String>> account = esql.repository().profile(userToBeUpdated);
+            if (account.isEmpty()) {
+               System.out.println("User not found");
+               return;
+            }
+            System.out.println("Role: " + account.get(0).get(2) + " | Phone Number: " + account.get(0).get(1));
+            printOrderSummary(account.get(0));
 
             System.out.println("What would you like to update?");
             System.out.println("1. Phone Number");
@@ -1198,36 +2040,42 @@ public class PizzaStore {
                case 1:
                   System.out.println("Enter new phone number: ");
                   String newPhoneNum = scanner.nextLine();
-                  String updatePhoneNumQuery = "UPDATE users SET phoneNum = '" + newPhoneNum + "' WHERE login = '" + userToBeUpdated + "';";
-                  esql.executeUpdate(updatePhoneNumQuery);
+                  esql.updateProfileColumn(userToBeUpdated, ProfileWriteBehind.PHONE, newPhoneNum);
                   break;
 
                case 2:
                   System.out.println("Enter new password: ");
                   String newPassword = scanner.nextLine();
-                  String updatePasswordQuery = "UPDATE users SET password = '" + newPassword + "' WHERE login = '" + userToBeUpdated + "';";
-                  esql.executeUpdate(updatePasswordQuery);
+                  esql.updateProfileColumn(userToBeUpdated, ProfileWriteBehind.PASSWORD, newPassword);
                   break;
 
                case 3:
                   System.out.println("Enter new favorite items: ");
                   String newFavoriteItems = scanner.nextLine();
-                  String updateFavoriteItemsQuery = "UPDATE users SET favoriteItems = '" + newFavoriteItems + "' WHERE login = '" + userToBeUpdated + "';";
-                  esql.executeUpdate(updateFavoriteItemsQuery);
+                  esql.updateProfileColumn(userToBeUpdated, ProfileWriteBehind.FAVORITES, newFavoriteItems);
                   break;
 
                case 4:
+                  esql.flushProfileUpdates(userToBeUpdated);
                   System.out.println("Enter new login: ");
                   String newLogin = scanner.nextLine();
                   String updateLoginQuery = "UPDATE users SET login = '" + newLogin + "' WHERE login = '" + userToBeUpdated + "';";
                   esql.executeUpdate(updateLoginQuery);
+                  esql._loginGuard.invalidate(userToBeUpdated);
+                  esql._loginGuard.addLogin(newLogin);
+                  esql.shards().replicateUser(newLogin);
                   break;
 
                case 5:
                   System.out.println("Enter new role: ");
-                  String newRole = scanner.nextLine();
+                  String newRole = canonical(scanner.nextLine());
+                  if (!newRole.equals("customer") && !newRole.equals("driver") && !newRole.equals("manager")) {
+                     System.out.println("Role must be customer, driver or manager");
+                     break;
+                  }
                   String updateRoleQuery = "UPDATE users SET role = '" + newRole + "' WHERE login = '" + userToBeUpdated + "';";
                   esql.executeUpdate(updateRoleQuery);
+                  esql.shards().replicateUser(userToBeUpdated);
                   break;
 
                default:
@@ -1243,22 +2091,249 @@ public class PizzaStore {
       }
 
       catch (Exception e) {
-         System.out.println("Error: Unable to update profile.");
+         System.out.println("Error: Unable to update profile. " + e.getMessage());
       }
    }
    
+   //only managers:
+   public static void viewSystemMetrics(PizzaStore esql) {
+      System.out.println("================== SYSTEM METRICS ==================");
+      System.out.println(esql._admission.metricsReport());
+      System.out.println(esql._loginGuard.metricsReport());
+      System.out.println(esql._catalog.metricsReport());
+      if (esql._firstMenuMillis >= 0) {
+         System.out.println("Fast start: first menu after " + esql._firstMenuMillis + " ms (target "
+                            + FIRST_MENU_TARGET_MS + " ms)");
+      }
+      if (esql._profileWriter != null) System.out.println(esql._profileWriter.metricsReport());
+      if (esql._prefetch != null) System.out.println(esql._prefetch.metricsReport());
+      if (esql._statusListener != null) System.out.println(esql._statusListener.metricsReport());
+      if (esql._analytics != null) System.out.println(esql._analytics.metricsReport());
+      if (esql._journal != null) System.out.println(esql._journal.metricsReport());
+      if (esql._recommender != null) System.out.println(esql._recommender.metricsReport());
+      if (esql._orderWriter != null) System.out.println(esql._orderWriter.metricsReport());
+      System.out.println(ActionDeadline.metricsReport());
+      System.out.println("Order cache: " + esql._orderCache.size() + " completed orders");
+   }
+
+   //any role; customers can only watch their own orders
+   public static void watchOrder(PizzaStore esql, String login) {
+      OrderStatusListener listener = null;
+      OrderStatusListener.Subscriber subscriber = null;
+      int orderID = 0;
+      try {
+         Scanner scanner = new Scanner(System.in);
+         System.out.println("Enter order ID to watch: ");
+         orderID = Integer.parseInt(scanner.nextLine().trim());
+
+         // changes are pushed by the database; the shared listener thread
+         // queries a shard only once a notification is waiting on its socket.
+         // LISTEN goes first so a change committed while the current status
+         // is read below is still delivered
+         final BlockingQueue<String> changes = new LinkedBlockingQueue<String>();
+         subscriber = new OrderStatusListener.Subscriber() {
+            public void statusChanged(int changedOrderID, String newStatus) {
+               changes.offer(newStatus);
+            }
+         };
+         listener = esql.statusListener();
+         listener.subscribe(orderID, subscriber);
+
+         List<List<String>> order = esql.repository().orderDetails(orderID, login);
+         if (order.isEmpty()) {
+            System.out.println("Error: Order not found.");
+            return;
+         }
+         String role = order.get(0).get(8);
+         if (!login.equals(order.get(0).get(1)) && !"manager".equals(role) && !"driver".equals(role)) {
+            System.out.println("You do not have permission to view this order.");
+            return;
+         }
+         String status = order.get(0).get(5);
+         System.out.println("Order " + orderID + " is " + status + ".");
+         if ("complete".equals(status)) return;
+
+         System.out.println("Watching for updates. Press Enter to stop.");
+         while (true) {
+            String change = changes.poll(OrderStatusListener.POLL_MS, TimeUnit.MILLISECONDS);
+            if (change != null) {
+               System.out.println("Order " + orderID + " is now " + change + ".");
+               esql._orderCache.invalidate(orderID);
+               if ("complete".equals(change)) break;
+            }
+            if (System.in.available() > 0) {
+               scanner.nextLine();
+               break;
+            }
+         }
+      }
+      catch (Exception e) {
+         System.out.println("Error: Unable to watch order. " + e.getMessage());
+      }
+      finally {
+         if (listener != null) listener.unsubscribe(orderID, subscriber);
+      }
+   }
+
+   //only managers:
+   public static void viewStoreActivity(PizzaStore esql) {
+      try {
+         Scanner scanner = new Scanner(System.in);
+         System.out.println("Enter number of minutes to look back (1-" + StoreActivity.MINUTES + "): ");
+         int minutes = Integer.parseInt(scanner.nextLine().trim());
+
+         int[] storeIDs = new int[10];
+         long[] orderCounts = new long[10];
+         long[] revenueCents = new long[10];
+         int hot = esql._activity.hotStores(minutes, storeIDs, orderCounts, revenueCents);
+         System.out.println("================== BUSIEST STORES ==================");
+         if (hot == 0) System.out.println("No orders in the last " + minutes + " minute(s)");
+         for (int i = 0; i < hot; i++) {
+            System.out.println("Store ID: " + storeIDs[i] + " | Orders: " + orderCounts[i]
+                               + " | Revenue: $" + String.format("%.2f", revenueCents[i] / 100.0));
+         }
+
+         System.out.println("Enter a store ID to see its minute-by-minute trend (leave blank to skip): ");
+         String store = scanner.nextLine().trim();
+         if (!store.isEmpty()) {
+            int window = Math.min(Math.max(minutes, 1), StoreActivity.MINUTES);
+            int[] orders = new int[window];
+            int[] completed = new int[window];
+            long[] revenue = new long[window];
+            esql._activity.trend(Integer.parseInt(store), orders, completed, revenue);
+            for (int i = 0; i < window; i++) {
+               System.out.println((window - i - 1) + " min ago: " + orders[i] + " order(s), "
+                                  + completed[i] + " completed, $" + String.format("%.2f", revenue[i] / 100.0));
+            }
+         }
+      }
+      catch (Exception e) {
+         System.out.println("Error: Unable to view store activity.");
+      }
+   }
+
+   //only managers:
+   public static void viewOrderAnalytics(PizzaStore esql) {
+      try {
+         Scanner scanner = new Scanner(System.in);
+         long start = System.currentTimeMillis();
+         int added = esql.analytics().refresh();
+         System.out.println("Loaded " + added + " new order(s) in " + (System.currentTimeMillis() - start) + " ms");
+
+         System.out.println("Group orders by:");
+         System.out.println("1. Store");
+         System.out.println("2. Hour of day");
+         System.out.println("3. Status");
+         System.out.println("4. Customer");
+         System.out.println("5. Item");
+         int choice = Integer.parseInt(scanner.nextLine().trim());
+         if (choice < 1 || choice > 5) {
+            System.out.println("Invalid choice");
+            return;
+         }
+         System.out.println("Enter store ID (leave blank for all stores): ");
+         String store = scanner.nextLine().trim();
+         System.out.println("Enter status (leave blank for any status): ");
+         String status = scanner.nextLine().trim();
+         System.out.println("Enter start date as YYYY-MM-DD (leave blank for no limit): ");
+         String from = scanner.nextLine().trim();
+         System.out.println("Enter end date as YYYY-MM-DD, exclusive (leave blank for no limit): ");
+         String to = scanner.nextLine().trim();
+
+         // timestamps are kept as epoch seconds of the stored (zone-less) time, so are the bounds
+         start = System.nanoTime();
+         List<OrderAnalytics.Group> groups = esql.analytics().groupBy(choice - 1,
+            store.isEmpty() ? null : Integer.valueOf(store),
+            status.isEmpty() ? null : status,
+            from.isEmpty() ? null : Long.valueOf(LocalDate.parse(from).toEpochDay() * 86400),
+            to.isEmpty() ? null : Long.valueOf(LocalDate.parse(to).toEpochDay() * 86400),
+            20);
+         long micros = (System.nanoTime() - start) / 1000;
+
+         System.out.println("================== ORDER ANALYTICS ==================");
+         if (groups.isEmpty()) System.out.println("No matching orders");
+         for (OrderAnalytics.Group group : groups) {
+            if (choice == 5) {
+               System.out.println(group.key + " | Order lines: " + group.orders + " | Quantity: " + group.value);
+            } else {
+               System.out.println(group.key + " | Orders: " + group.orders
+                                  + " | Revenue: $" + String.format("%.2f", group.value / 100.0));
+            }
+         }
+         System.out.println("(scanned in " + micros + " us)");
+      }
+      catch (Exception e) {
+         System.out.println("Error: Unable to run order analytics. " + e.getMessage());
+      }
+   }
+
+   //only managers:
+   public static void exportOrders(PizzaStore esql) {
+      try {
+         Scanner scanner = new Scanner(System.in);
+         System.out.println("Enter user to export (leave blank for all users): ");
+         String user = scanner.nextLine().trim();
+         System.out.println("Enter store ID to export (leave blank for all stores): ");
+         String store = scanner.nextLine().trim();
+         System.out.println("Enter start date as YYYY-MM-DD (leave blank for no limit): ");
+         String from = scanner.nextLine().trim();
+         System.out.println("Enter end date as YYYY-MM-DD, exclusive (leave blank for no limit): ");
+         String to = scanner.nextLine().trim();
+         System.out.println("Enter output file (default orders.csv.gz): ");
+         String path = scanner.nextLine().trim();
+         if (path.isEmpty()) path = "orders.csv.gz";
+
+         long start = System.currentTimeMillis();
+         long rows = OrderExporter.export(esql, new File(path),
+            user.isEmpty() ? null : user,
+            store.isEmpty() ? null : Integer.valueOf(store),
+            from.isEmpty() ? null : Timestamp.valueOf(from + " 00:00:00"),
+            to.isEmpty() ? null : Timestamp.valueOf(to + " 00:00:00"));
+         System.out.println("Exported " + rows + " row(s) to " + path + " in " + (System.currentTimeMillis() - start) + " ms");
+      }
+      catch (Exception e) {
+         System.out.println("Error: Unable to export orders. " + e.getMessage());
+      }
+   }
+
+   public static void verifyOrderTotals(PizzaStore esql) {
+      try {
+         Scanner scanner = new Scanner(System.in);
+         System.out.println("Enter checkpoint file (default order_totals.checkpoint): ");
+         String path = scanner.nextLine().trim();
+         if (path.isEmpty()) path = "order_totals.checkpoint";
+         File checkpoint = new File(path);
+         if (checkpoint.exists()) {
+            System.out.println("A previous run was found. 1. Resume  2. Start over");
+            if (scanner.nextLine().trim().equals("2")) {
+               checkpoint.delete();
+               new File(path + ".mismatches.csv").delete();
+               for (int i = 1; i < esql.shards().shardCount(); ++i) new File(path + "." + i).delete();
+            }
+         }
+
+         OrderTotalVerifier verifier = new OrderTotalVerifier(esql.shards(), checkpoint);
+         long mismatches = verifier.run();
+         if (mismatches > 0) {
+            System.out.println("Orders whose total differs from the current menu prices are listed in " + verifier.reportFile().getPath());
+         }
+      }
+      catch (Exception e) {
+         System.out.println("Error: Unable to verify order totals. " + e.getMessage());
+      }
+   }
+
    //helper function
    public static String checkRole(PizzaStore esql, String login) {
       try {
-         String roleQuery = "SELECT role FROM users WHERE login = '" + login + "';";
-         List<List<String>> roleResult = esql.executeQueryAndReturnResult(roleQuery);
+         String role = esql.repository().role(login);
 
-         if (roleResult.isEmpty()) {
+         if (role == null) {
             System.out.println("Error: User not found.");
             return "";
          }
 
-         return roleResult.get(0).get(0).trim();
+         return role;
       }
 
       catch (Exception e) {
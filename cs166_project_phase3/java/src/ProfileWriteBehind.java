@@ -0,0 +1,333 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Opt-in write-behind queue for low-priority profile columns (phone number,
+ * password and favorite items).  Repeated changes to the same login are
+ * coalesced in memory and written in one batched transaction when the
+ * flush interval passes or too many logins are pending.  Pending changes
+ * are flushed on logout and on shutdown.  A queued null clears its column.
+ *
+ * Values are checked against the users columns when they are queued.  A
+ * batch the database still rejects is split until the offending rows are
+ * found; those are dropped and reported instead of being retried forever,
+ * while a batch that failed because the database is unreachable is queued
+ * again.
+ *
+ * Enabled with -Dpizzastore.writeBehind=true; tuned with
+ *   pizzastore.writeBehind.intervalMs   flush period (default 2000)
+ *   pizzastore.writeBehind.maxPending   logins that trigger a flush (default 64)
+ */
+public class ProfileWriteBehind {
+
+   public static final String PHONE = "phoneNum";
+   public static final String PASSWORD = "password";
+   public static final String FAVORITES = "favoriteItems";
+
+   // column sizes of users.phoneNum and users.password
+   static final int PHONE_LENGTH = 20;
+   static final int PASSWORD_LENGTH = 30;
+
+   // each column is written only when its flag is set, so a queued null clears it
+   private static final String FLUSH_SQL =
+      "UPDATE users SET phoneNum = CASE WHEN ?::boolean THEN ? ELSE phoneNum END, " +
+      "password = CASE WHEN ?::boolean THEN ? ELSE password END, " +
+      "favoriteItems = CASE WHEN ?::boolean THEN ? ELSE favoriteItems END WHERE login = ?";
+
+   private final PizzaStore _esql;
+   private final int _maxPending;
+   private final ScheduledExecutorService _flusher;
+
+   // login -> column -> latest value, in arrival order
+   private final Map<String, Map<String, String>> _pending = new LinkedHashMap<String, Map<String, String>>();
+
+   // guards the connection; held from taking a batch until it is written, so
+   // batches reach the database in the order they were taken, while enqueue
+   // only ever waits for the brief swap under this
+   private final Object _writeLock = new Object();
+
+   // dedicated connection so batches never toggle auto-commit on the main one
+   private Connection _connection = null;
+
+   private long _updatesQueued = 0;
+   private long _rowsWritten = 0;
+   private long _batches = 0;
+   private long _rowsDropped = 0;
+
+   public ProfileWriteBehind(PizzaStore esql) {
+      this(esql, Long.getLong("pizzastore.writeBehind.intervalMs", 2000L),
+           Integer.getInteger("pizzastore.writeBehind.maxPending", 64));
+   }
+
+   public ProfileWriteBehind(PizzaStore esql, long intervalMs, int maxPending) {
+      this._esql = esql;
+      this._maxPending = maxPending;
+      this._flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+         public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "profile-write-behind");
+            thread.setDaemon(true);
+            return thread;
+         }
+      });
+      this._flusher.scheduleWithFixedDelay(new Runnable() {
+         public void run() {
+            flushQuietly();
+         }
+      }, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+   }
+
+   /*
+    * @return true when write-behind was requested on the command line
+    **/
+   public static boolean isEnabled() {
+      return Boolean.getBoolean("pizzastore.writeBehind");
+   }
+
+   /*
+    * Queues a new value for one profile column of a login
+    **/
+   public void enqueue(String login, String column, String value) {
+      if (!PHONE.equals(column) && !PASSWORD.equals(column) && !FAVORITES.equals(column)) {
+         throw new IllegalArgumentException("Column " + column + " is not written behind");
+      }
+      // the limits of the users columns, so a queued value cannot fail every later flush
+      if (!FAVORITES.equals(column) && value == null) {
+         throw new IllegalArgumentException(column + " cannot be empty");
+      }
+      int limit = PHONE.equals(column) ? PHONE_LENGTH : PASSWORD.equals(column) ? PASSWORD_LENGTH : Integer.MAX_VALUE;
+      if (value != null && value.length() > limit) {
+         throw new IllegalArgumentException(column + " is longer than " + limit + " characters");
+      }
+      boolean full;
+      synchronized (this) {
+         Map<String, String> columns = _pending.get(login);
+         if (columns == null) {
+            columns = new HashMap<String, String>();
+            _pending.put(login, columns);
+         }
+         columns.put(column, value);
+         _updatesQueued++;
+         full = _pending.size() >= _maxPending;
+      }
+      if (full) {
+         _flusher.execute(new Runnable() {
+            public void run() {
+               flushQuietly();
+            }
+         });
+      }
+   }
+
+   /*
+    * Writes the pending changes of one login so a following read sees them
+    **/
+   public void flush(String login) throws SQLException {
+      synchronized (_writeLock) {
+         Map<String, Map<String, String>> batch = new LinkedHashMap<String, Map<String, String>>();
+         synchronized (this) {
+            Map<String, String> columns = _pending.remove(login);
+            if (columns == null) return;
+            batch.put(login, columns);
+         }
+         write(batch);
+      }
+   }
+
+   /*
+    * Writes every pending change in one transaction
+    **/
+   public void flush() throws SQLException {
+      synchronized (_writeLock) {
+         Map<String, Map<String, String>> batch;
+         synchronized (this) {
+            if (_pending.isEmpty()) return;
+            batch = new LinkedHashMap<String, Map<String, String>>(_pending);
+            _pending.clear();
+         }
+         write(batch);
+      }
+   }
+
+   /*
+    * Flushes everything and stops the background flusher
+    **/
+   public void close() throws SQLException {
+      _flusher.shutdown();
+      try {
+         _flusher.awaitTermination(5, TimeUnit.SECONDS);
+      }catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }
+      try {
+         flush();
+      }finally {
+         synchronized (_writeLock) {
+            if (_connection != null) {
+               _connection.close();
+               _connection = null;
+            }
+         }
+      }
+   }
+
+   public synchronized String metricsReport() {
+      return "Profile write-behind: updatesQueued=" + _updatesQueued
+           + " rowsWritten=" + _rowsWritten
+           + " batches=" + _batches
+           + " rowsDropped=" + _rowsDropped
+           + " writesSaved=" + (_updatesQueued - _rowsWritten - _rowsDropped - pendingUpdates())
+           + " pendingLogins=" + _pending.size();
+   }
+
+   private int pendingUpdates() {
+      int count = 0;
+      for (Map<String, String> columns : _pending.values()) count += columns.size();
+      return count;
+   }
+
+   private void flushQuietly() {
+      try {
+         flush();
+      }catch (SQLException e) {
+         System.err.println("Warning - Unable to write profile updates: " + e.getMessage());
+      }
+   }
+
+   // called holding _writeLock but not this, so enqueue never waits on the database
+   private void write(Map<String, Map<String, String>> batch) throws SQLException {
+      List<Map.Entry<String, Map<String, String>>> rows =
+         new ArrayList<Map.Entry<String, Map<String, String>>>(batch.entrySet());
+      // rows committed or dropped; only the others go back to the queue
+      boolean[] settled = new boolean[rows.size()];
+      try {
+         writeRange(rows, 0, rows.size(), settled);
+      }catch (SQLException e) {
+         Map<String, Map<String, String>> unsettled = new LinkedHashMap<String, Map<String, String>>();
+         for (int i = 0; i < rows.size(); ++i) {
+            if (!settled[i]) unsettled.put(rows.get(i).getKey(), rows.get(i).getValue());
+         }
+         synchronized (this) {
+            requeue(unsettled);
+         }
+         throw e;
+      }
+   }
+
+   // writes rows [from, to) in one transaction; when the database rejects it,
+   // splits it in halves until the rows it rejects are found and dropped
+   private void writeRange(List<Map.Entry<String, Map<String, String>>> rows, int from, int to,
+                           boolean[] settled) throws SQLException {
+      try {
+         writeOnce(rows, from, to);
+         Arrays.fill(settled, from, to, true);
+         synchronized (this) {
+            _rowsWritten += to - from;
+            _batches++;
+         }
+      }catch (SQLException e) {
+         if (!isRejected(e)) throw e;
+         if (to - from == 1) {
+            settled[from] = true;
+            synchronized (this) {
+               _rowsDropped++;
+            }
+            System.err.println("Error - Dropped queued profile update of " + rows.get(from).getKey()
+                               + " rejected by the database: " + e.getMessage());
+            return;
+         }
+         int middle = (from + to) >>> 1;
+         writeRange(rows, from, middle, settled);
+         writeRange(rows, middle, to, settled);
+      }
+   }
+
+   private void writeOnce(List<Map.Entry<String, Map<String, String>>> rows, int from, int to) throws SQLException {
+      try {
+         if (_connection == null) _connection = _esql.openConnection();
+         _connection.setAutoCommit(false);
+         PreparedStatement stmt = _connection.prepareStatement(FLUSH_SQL);
+         try {
+            for (int i = from; i < to; ++i) {
+               Map<String, String> columns = rows.get(i).getValue();
+               stmt.setBoolean(1, columns.containsKey(PHONE));
+               stmt.setString(2, columns.get(PHONE));
+               stmt.setBoolean(3, columns.containsKey(PASSWORD));
+               stmt.setString(4, columns.get(PASSWORD));
+               stmt.setBoolean(5, columns.containsKey(FAVORITES));
+               stmt.setString(6, columns.get(FAVORITES));
+               stmt.setString(7, rows.get(i).getKey());
+               stmt.addBatch();
+            }
+            stmt.executeBatch();
+            _connection.commit();
+         }finally {
+            stmt.close();
+         }
+      }catch (SQLException e) {
+         if (_connection != null) {
+            try {
+               _connection.rollback();
+            }catch (SQLException ignored) {
+               // the connection is dropped below and reopened on the next flush
+            }
+            if (!answers(_connection)) {
+               try {
+                  _connection.close();
+               }catch (SQLException ignored) {
+               }
+               _connection = null;
+            }
+         }
+         throw e;
+      }
+   }
+
+   /*
+    * @return true when the database refused the data itself (SQLSTATE class
+    * 22 or 23, or no SQLSTATE while the connection still answers), so
+    * retrying the same rows can never succeed
+    **/
+   private boolean isRejected(SQLException e) {
+      boolean stated = false;
+      for (SQLException next = e; next != null; next = next.getNextException()) {
+         String state = next.getSQLState();
+         if (state == null || state.length() < 2) continue;
+         if (state.startsWith("22") || state.startsWith("23")) return true;
+         stated = true;
+      }
+      // the bundled driver often reports no SQLSTATE at all
+      return !stated && _connection != null;
+   }
+
+   private static boolean answers(Connection connection) {
+      try {
+         connection.setAutoCommit(true);
+         PizzaStore.queryRows(connection, "SELECT 1;");
+         return true;
+      }catch (SQLException e) {
+         return false;
+      }
+   }
+
+   // puts a failed batch back without overwriting newer values
+   private void requeue(Map<String, Map<String, String>> batch) {
+      List<String> logins = new ArrayList<String>(batch.keySet());
+      for (String login : logins) {
+         Map<String, String> newer = _pending.get(login);
+         Map<String, String> merged = new HashMap<String, String>(batch.get(login));
+         if (newer != null) merged.putAll(newer);
+         _pending.put(login, merged);
+      }
+   }
+}//end ProfileWriteBehind
@@ -0,0 +1,187 @@
+import java.io.File;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Runs the same order workload against the in-memory repository and,
+ * when database parameters are given, against Postgres, so application
+ * overhead can be told apart from database overhead.
+ *
+ *    java RepositoryBenchmark <dataDir> <operations> [dbname port user [sessions]]
+ *
+ * Each operation places an order, reads it back, completes it and lists
+ * the customer's recent orders.  Against Postgres this writes real orders.
+ *
+ * Against Postgres it then places <operations> more orders from concurrent
+ * sessions (8 by default), once with a commit per order and once through
+ * the GroupCommitOrderWriter, and compares orders per second.
+ */
+public class RepositoryBenchmark {
+
+   private static final int WARMUP = 1000;
+
+   public static void main(String[] args) throws Exception {
+      if (args.length != 2 && args.length != 5 && args.length != 6) {
+         System.err.println("Usage: java RepositoryBenchmark <dataDir> <operations> [dbname port user [sessions]]");
+         return;
+      }
+      File dataDir = new File(args[0]);
+      int operations = Integer.parseInt(args[1]);
+
+      InMemoryPizzaRepository memory = InMemoryPizzaRepository.load(dataDir);
+      // the workload is drawn from the data files so it is valid for both engines
+      List<String> logins = new ArrayList<String>();
+      for (int i = 0; i < memory.userCount(); ++i) logins.add(memory.loginAt(i));
+      List<Integer> openStores = new ArrayList<Integer>();
+      for (List<String> store : memory.stores()) {
+         if ("yes".equals(store.get(4))) openStores.add(Integer.valueOf(store.get(0)));
+      }
+      List<String> items = new ArrayList<String>();
+      for (List<String> item : memory.menu()) items.add(item.get(0));
+
+      run("memory", memory, WARMUP, logins, openStores, items, false);
+      run("memory", memory, operations, logins, openStores, items, true);
+
+      if (args.length >= 5) {
+         int sessions = args.length == 6 ? Integer.parseInt(args[5]) : 8;
+         PizzaStore esql = new PizzaStore(args[2], args[3], args[4], "");
+         try {
+            run("jdbc", esql.repository(), Math.min(WARMUP, operations), logins, openStores, items, false);
+            run("jdbc", esql.repository(), operations, logins, openStores, items, true);
+            placeConcurrently(esql, null, sessions, operations, logins, openStores, items);
+            GroupCommitOrderWriter writer = new GroupCommitOrderWriter(esql.shards());
+            try {
+               placeConcurrently(esql, writer, sessions, operations, logins, openStores, items);
+               System.out.println("   " + writer.metricsReport());
+            }finally {
+               writer.close();
+            }
+         }finally {
+            esql.cleanup();
+         }
+      }
+   }
+
+   /*
+    * Places orders from several sessions at once, each with its own
+    * connection and commit, or all through the given group-commit writer
+    **/
+   private static void placeConcurrently(final PizzaStore esql, final GroupCommitOrderWriter writer, int sessions,
+                                         int operations, final List<String> logins, final List<Integer> stores,
+                                         final List<String> items) throws Exception {
+      final int perSession = Math.max(1, operations / sessions);
+      final CountDownLatch ready = new CountDownLatch(sessions);
+      final CountDownLatch go = new CountDownLatch(1);
+      final CountDownLatch done = new CountDownLatch(sessions);
+      final AtomicLong placed = new AtomicLong();
+      final AtomicLong failed = new AtomicLong();
+      final AtomicLong latencyNanos = new AtomicLong();
+      final int shardCount = esql.shards().shardCount();
+      for (int s = 0; s < sessions; ++s) {
+         final int session = s;
+         Thread thread = new Thread(new Runnable() {
+            public void run() {
+               Random random = new Random(42 + session);
+               Connection[] connections = new Connection[shardCount];
+               ready.countDown();
+               try {
+                  go.await();
+                  for (int op = 0; op < perSession; ++op) {
+                     String login = logins.get(random.nextInt(logins.size()));
+                     int storeID = stores.get(random.nextInt(stores.size())).intValue();
+                     List<String> names = new ArrayList<String>();
+                     List<Integer> quantities = new ArrayList<Integer>();
+                     for (int i = 1 + random.nextInt(3); i > 0; --i) {
+                        names.add(items.get(random.nextInt(items.size())));
+                        quantities.add(Integer.valueOf(1 + random.nextInt(3)));
+                     }
+                     long start = System.nanoTime();
+                     try {
+                        if (writer != null) {
+                           writer.place(login, storeID, names, quantities);
+                        }else {
+                           int shard = esql.shards().shardForStore(storeID);
+                           if (connections[shard] == null) connections[shard] = esql.shards().openShard(shard);
+                           PizzaStore.queryRows(connections[shard], GroupCommitOrderWriter.PLACE_ORDER, login, storeID,
+                              PizzaStore.toArrayLiteral(names), PizzaStore.toArrayLiteral(quantities));
+                        }
+                        placed.incrementAndGet();
+                     }catch (SQLException e) {
+                        failed.incrementAndGet();
+                     }
+                     latencyNanos.addAndGet(System.nanoTime() - start);
+                  }
+               }catch (Exception e) {
+                  System.err.println("Benchmark session failed: " + e.getMessage());
+               }finally {
+                  for (Connection connection : connections) {
+                     try {
+                        if (connection != null) connection.close();
+                     }catch (SQLException e) {
+                        // ignored.
+                     }
+                  }
+                  done.countDown();
+               }
+            }
+         }, "benchmark-session-" + s);
+         thread.start();
+      }
+      ready.await();
+      long start = System.nanoTime();
+      go.countDown();
+      done.await();
+      long elapsed = System.nanoTime() - start;
+      long total = placed.get() + failed.get();
+      System.out.println(String.format("%-13s %d sessions, %d orders in %.1f ms (%.0f orders/s, %.2f ms/order), %d rejected",
+         writer == null ? "commit/order" : "group commit", sessions, placed.get(), elapsed / 1e6,
+         placed.get() / (elapsed / 1e9), total == 0 ? 0.0 : latencyNanos.get() / 1e6 / total, failed.get()));
+   }
+
+   private static void run(String name, PizzaRepository repository, int operations, List<String> logins,
+                           List<Integer> stores, List<String> items, boolean report) throws Exception {
+      Random random = new Random(42);
+      List<String> names = new ArrayList<String>();
+      List<Integer> quantities = new ArrayList<Integer>();
+      long[] phase = new long[4];
+      long start = System.nanoTime();
+      for (int op = 0; op < operations; ++op) {
+         String login = logins.get(random.nextInt(logins.size()));
+         int storeID = stores.get(random.nextInt(stores.size())).intValue();
+         names.clear();
+         quantities.clear();
+         for (int i = 1 + random.nextInt(3); i > 0; --i) {
+            names.add(items.get(random.nextInt(items.size())));
+            quantities.add(Integer.valueOf(1 + random.nextInt(3)));
+         }
+
+         long t0 = System.nanoTime();
+         OrderReceipt receipt = repository.placeOrder(login, storeID, names, quantities);
+         long t1 = System.nanoTime();
+         repository.orderDetails(receipt.getOrderID(), login);
+         long t2 = System.nanoTime();
+         repository.updateOrderStatus(receipt.getOrderID(), "complete");
+         long t3 = System.nanoTime();
+         repository.recentOrdersOf(login, 5);
+         long t4 = System.nanoTime();
+         phase[0] += t1 - t0;
+         phase[1] += t2 - t1;
+         phase[2] += t3 - t2;
+         phase[3] += t4 - t3;
+      }
+      long elapsed = System.nanoTime() - start;
+      if (!report) return;
+
+      System.out.println(String.format("%-6s %d operations in %.1f ms (%.0f ops/s)", name, operations,
+         elapsed / 1e6, operations / (elapsed / 1e9)));
+      String[] labels = { "placeOrder", "orderDetails", "updateOrderStatus", "recentOrdersOf" };
+      for (int i = 0; i < labels.length; ++i) {
+         System.out.println(String.format("   %-18s %10.2f us/op", labels[i], phase[i] / 1e3 / operations));
+      }
+   }
+}//end RepositoryBenchmark
@@ -0,0 +1,240 @@
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/*
+ * Loads what a user usually looks at first right after logging in: the
+ * profile row, the last five orders and the menu.  The three reads run in
+ * parallel on pooled connections while the user reads the menu options.
+ *
+ * Each prefetched result is served once, to the first matching view; later
+ * views query again.  A result is dropped when the user changes the data
+ * behind it (profile update, new order), and whatever was never used by
+ * logout is counted as wasted.  A view waits at most
+ * pizzastore.prefetch.waitMs (default 1000) for a prefetch still running
+ * and then queries on its own.
+ *
+ * Each client keeps a pool of three extra connections for this, so it is
+ * opt-in: enable with -Dpizzastore.prefetch=true.
+ */
+public class SessionPrefetch {
+
+   // the users row and the order summary the foodorder_user_summary trigger keeps
+   static final String PROFILE_QUERY =
+      "SELECT u.login, u.phoneNum, u.role, u.favoriteItems, s.orderCount, s.completedCount, s.lifetimeSpend, " +
+      "s.lastOrderTime, s.lastStoreID FROM users u LEFT JOIN UserOrderSummary s ON s.login = u.login WHERE u.login = ?;";
+   static final String RECENT_QUERY = "SELECT * FROM FoodOrder WHERE login = ? ORDER BY orderTimestamp DESC LIMIT 5;";
+
+   private static final int PROFILE = 0;
+   private static final int RECENT = 1;
+   private static final int MENU = 2;
+   private static final String[] NAMES = { "profile", "recent orders", "menu" };
+
+   private final PizzaStore _esql;
+   private final long _waitMs = Long.getLong("pizzastore.prefetch.waitMs", 1000L);
+   private final ExecutorService _executor;
+   private ConnectionPool _pool = null;
+
+   // the session being prefetched for and its pending results, by kind
+   private String _login = null;
+   private final List<CompletableFuture<List<List<String>>>> _pending =
+      new ArrayList<CompletableFuture<List<List<String>>>>();
+
+   private final AtomicLong[] _started = counters();
+   private final AtomicLong[] _hits = counters();
+   private final AtomicLong[] _misses = counters();
+   private final AtomicLong[] _wasted = counters();
+
+   public SessionPrefetch(PizzaStore esql) {
+      this._esql = esql;
+      this._executor = Executors.newFixedThreadPool(NAMES.length, new ThreadFactory() {
+         public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "session-prefetch");
+            thread.setDaemon(true);
+            return thread;
+         }
+      });
+      for (int kind = 0; kind < NAMES.length; ++kind) _pending.add(null);
+   }
+
+   public static boolean isEnabled() {
+      return Boolean.getBoolean("pizzastore.prefetch");
+   }
+
+   private static AtomicLong[] counters() {
+      AtomicLong[] counters = new AtomicLong[NAMES.length];
+      for (int i = 0; i < counters.length; ++i) counters[i] = new AtomicLong();
+      return counters;
+   }
+
+   /*
+    * Starts the prefetches for a freshly logged in user
+    **/
+   public synchronized void start(final String login) throws SQLException {
+      end();
+      _login = login;
+      ShardRouter shards = _esql.shards();
+      if (_pool == null) _pool = new ConnectionPool(shards, 0, NAMES.length);
+
+      // with several shards the order summary and recent orders need a scatter
+      // over every shard, which viewProfile and viewRecentOrders already do
+      if (shards.shardCount() == 1) {
+         _pending.set(PROFILE, submit(PROFILE, new Supplier<List<List<String>>>() {
+            public List<List<String>> get() {
+               return query(PROFILE_QUERY, login);
+            }
+         }));
+         _pending.set(RECENT, submit(RECENT, new Supplier<List<List<String>>>() {
+            public List<List<String>> get() {
+               return query(RECENT_QUERY, login);
+            }
+         }));
+      }
+      if (_esql.catalog().peekMenu() == null) {
+         _pending.set(MENU, submit(MENU, new Supplier<List<List<String>>>() {
+            public List<List<String>> get() {
+               long generation = _esql.catalog().menuGeneration();
+               List<List<String>> menu = query(CatalogCache.MENU_QUERY);
+               _esql.catalog().offerMenu(menu, generation);
+               return menu;
+            }
+         }));
+      }
+   }
+
+   private CompletableFuture<List<List<String>>> submit(int kind, Supplier<List<List<String>>> load) {
+      _started[kind].incrementAndGet();
+      return CompletableFuture.supplyAsync(load, _executor);
+   }
+
+   private List<List<String>> query(String query, Object... params) {
+      try {
+         Connection connection = _pool.borrow();
+         try {
+            return PizzaStore.queryRows(connection, query, params);
+         }finally {
+            _pool.release(connection);
+         }
+      }catch (SQLException e) {
+         throw new CompletionException(e);
+      }
+   }
+
+   /*
+    * @return the prefetched profile row of the user, or null to query it
+    **/
+   public List<List<String>> takeProfile(String login) {
+      return take(PROFILE, login);
+   }
+
+   /*
+    * @return the prefetched recent orders of the user, or null to query them
+    **/
+   public List<List<String>> takeRecentOrders(String login) {
+      return take(RECENT, login);
+   }
+
+   /*
+    * Waits for a menu prefetch that is still running, so the menu is read
+    * from the catalog instead of being loaded a second time
+    **/
+   public void awaitMenu() {
+      String login;
+      synchronized (this) {
+         login = _login;
+      }
+      take(MENU, login);
+   }
+
+   private List<List<String>> take(int kind, String login) {
+      CompletableFuture<List<List<String>>> pending;
+      synchronized (this) {
+         pending = login != null && login.equals(_login) ? _pending.get(kind) : null;
+         if (pending != null) _pending.set(kind, null);
+      }
+      if (pending == null) {
+         _misses[kind].incrementAndGet();
+         return null;
+      }
+      try {
+         List<List<String>> rows = pending.get(_waitMs, TimeUnit.MILLISECONDS);
+         _hits[kind].incrementAndGet();
+         return rows;
+      }catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }catch (ExecutionException e) {
+         // the caller falls back to its own query
+      }catch (CancellationException e) {
+         // same
+      }catch (TimeoutException e) {
+         // a slow prefetch must not hold up the view; its rows are dropped
+         pending.cancel(false);
+      }
+      _wasted[kind].incrementAndGet();
+      return null;
+   }
+
+   /*
+    * Drops a prefetched profile after the user changed it
+    **/
+   public void discardProfile(String login) {
+      discard(PROFILE, login);
+   }
+
+   /*
+    * Drops prefetched recent orders after the user placed an order
+    **/
+   public void discardRecentOrders(String login) {
+      discard(RECENT, login);
+   }
+
+   private synchronized void discard(int kind, String login) {
+      if (login == null || !login.equals(_login) || _pending.get(kind) == null) return;
+      _pending.get(kind).cancel(false);
+      _pending.set(kind, null);
+      _wasted[kind].incrementAndGet();
+   }
+
+   /*
+    * Ends the current session; prefetches that were never used are wasted
+    **/
+   public synchronized void end() {
+      for (int kind = 0; kind < NAMES.length; ++kind) {
+         if (_pending.get(kind) == null) continue;
+         _pending.get(kind).cancel(false);
+         _pending.set(kind, null);
+         _wasted[kind].incrementAndGet();
+      }
+      _login = null;
+   }
+
+   public synchronized void close() {
+      end();
+      _executor.shutdownNow();
+      if (_pool != null) _pool.close();
+   }
+
+   public String metricsReport() {
+      StringBuilder report = new StringBuilder("Login prefetch:");
+      for (int kind = 0; kind < NAMES.length; ++kind) {
+         long started = _started[kind].get();
+         long hits = _hits[kind].get();
+         report.append(String.format("%n   %-14s started %d, hits %d (%.0f%%), wasted %d, views without prefetch %d",
+            NAMES[kind], started, hits, started == 0 ? 0.0 : 100.0 * hits / started,
+            _wasted[kind].get(), _misses[kind].get()));
+      }
+      return report.toString();
+   }
+}//end SessionPrefetch
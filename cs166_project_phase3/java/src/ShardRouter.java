@@ -0,0 +1,275 @@
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/*
+ * Routes order data across several Postgres instances.
+ *
+ * FoodOrder and ItemsInOrder rows live on the shard chosen by
+ * storeID % shardCount.  Each shard's order ID sequence is set up so the
+ * IDs it hands out satisfy orderID % shardCount == shard index, which lets
+ * an order be found from its ID alone.  Users, Items and Store are
+ * reference data: the database named on the command line is shard 0 and
+ * the primary copy, and the other shards receive copies of it.  A full
+ * copy only goes to shards whose table differs from the primary's, and a
+ * row the primary no longer has is only deleted from a shard when none of
+ * that shard's orders reference it, since the delete would cascade into
+ * them.  Per-user queries are scattered to every shard and gathered.
+ *
+ * Extra shards are listed in -Dpizzastore.shards as comma separated
+ * [host:]port/dbname entries, e.g. 5433/pizza_shard1,5434/pizza_shard2.
+ * Each shard, the primary included, must first be configured once with
+ * sql/scripts/configure_shard.sh; the client checks this and stops if not.
+ * Without the property there is a single shard and nothing changes.
+ */
+public class ShardRouter {
+
+   // rows a shard may drop once the primary no longer has them: deleting a
+   // store or an item cascades into that shard's orders, so referenced ones stay
+   private static final String STORE_UNUSED = "NOT EXISTS (SELECT 1 FROM FoodOrder o WHERE o.storeID = Store.storeID)";
+   private static final String ITEM_UNUSED = "NOT EXISTS (SELECT 1 FROM ItemsInOrder o WHERE o.itemName = Items.itemName)";
+
+   private final PizzaStore _esql;
+   // shard 0 is null here and resolved to the main connection on use
+   private final List<Connection> _shards = new ArrayList<Connection>();
+   private final List<String> _urls = new ArrayList<String>();
+   private final ExecutorService _scatter;
+
+   public ShardRouter(PizzaStore esql) throws SQLException {
+      this._esql = esql;
+      this._shards.add(null);
+      this._urls.add(null);
+      String spec = System.getProperty("pizzastore.shards", "").trim();
+      if (!spec.isEmpty()) {
+         for (String entry : spec.split(",")) {
+            String url = toUrl(entry.trim());
+            this._urls.add(url);
+            this._shards.add(DriverManager.getConnection(url, esql.user(), esql.password()));
+         }
+      }
+
+      this._scatter = shardCount() == 1 ? null : Executors.newFixedThreadPool(shardCount(), new ThreadFactory() {
+         public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "shard-scatter");
+            thread.setDaemon(true);
+            return thread;
+         }
+      });
+
+      if (shardCount() > 1) {
+         // configuring the sequences is an admin step (configure_shard.sh); clients only check it
+         for (int i = 0; i < shardCount(); ++i) {
+            List<List<String>> config = PizzaStore.queryRows(shard(i), "SELECT shardIndex, shardCount FROM ShardConfig;");
+            if (config.size() != 1 || Integer.parseInt(config.get(0).get(0).trim()) != i
+                || Integer.parseInt(config.get(0).get(1).trim()) != shardCount()) {
+               throw new SQLException("Shard " + i + " is not configured as shard " + i + " of " + shardCount()
+                                      + "; run sql/scripts/configure_shard.sh for it");
+            }
+         }
+         replicateReferenceData();
+      }
+   }
+
+   private static String toUrl(String entry) {
+      int slash = entry.indexOf('/');
+      if (slash < 0) throw new IllegalArgumentException("Shard '" + entry + "' must look like [host:]port/dbname");
+      String hostPort = entry.substring(0, slash);
+      if (hostPort.indexOf(':') < 0) hostPort = "localhost:" + hostPort;
+      return "jdbc:postgresql://" + hostPort + entry.substring(slash);
+   }
+
+   public int shardCount() {
+      return _shards.size();
+   }
+
+   /*
+    * @return the connection of a shard; shard 0 is the main connection
+    **/
+   public Connection shard(int index) throws SQLException {
+      return index == 0 ? _esql.connection() : _shards.get(index);
+   }
+
+   /*
+    * Opens a new connection to a shard that the caller must close
+    **/
+   public Connection openShard(int index) throws SQLException {
+      if (index == 0) return _esql.openConnection();
+      return DriverManager.getConnection(_urls.get(index), _esql.user(), _esql.password());
+   }
+
+   public int shardForStore(int storeID) {
+      return Math.floorMod(storeID, shardCount());
+   }
+
+   public int shardForOrder(int orderID) {
+      return Math.floorMod(orderID, shardCount());
+   }
+
+   /*
+    * Runs a query against one order, trying the shard its ID maps to first.
+    * Orders loaded before sharding may sit elsewhere, so the other shards
+    * are tried when the first one has no rows.
+    **/
+   public List<List<String>> queryOrder(int orderID, String query, Object... params) throws SQLException {
+      int home = shardForOrder(orderID);
+      List<List<String>> rows = PizzaStore.queryRows(shard(home), query, params);
+      for (int i = 0; rows.isEmpty() && i < shardCount(); ++i) {
+         if (i != home) rows = PizzaStore.queryRows(shard(i), query, params);
+      }
+      return rows;
+   }
+
+   /*
+    * Runs the same query on every shard in parallel and concatenates the rows
+    **/
+   public List<List<String>> queryAll(final String query, final Object... params) throws SQLException {
+      if (shardCount() == 1) return PizzaStore.queryRows(shard(0), query, params);
+      List<Future<List<List<String>>>> pending = new ArrayList<Future<List<List<String>>>>();
+      // the scattered queries draw on the caller's time budget
+      final ActionDeadline deadline = ActionDeadline.current();
+      final String action = ActionEvent.currentAction();
+      for (int i = 0; i < shardCount(); ++i) {
+         final Connection connection = shard(i);
+         pending.add(_scatter.submit(new Callable<List<List<String>>>() {
+            public List<List<String>> call() throws SQLException {
+               ActionDeadline previous = ActionDeadline.install(deadline);
+               String previousAction = JdbcEvent.delegate(action);
+               try {
+                  return PizzaStore.queryRows(connection, query, params);
+               }finally {
+                  JdbcEvent.delegate(previousAction);
+                  ActionDeadline.install(previous);
+               }
+            }
+         }));
+      }
+      List<List<String>> rows = new ArrayList<List<String>>();
+      for (Future<List<List<String>>> future : pending) {
+         try {
+            rows.addAll(future.get());
+         }catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while querying shards");
+         }catch (ExecutionException e) {
+            throw e.getCause() instanceof SQLException ? (SQLException) e.getCause()
+                                                       : new SQLException(e.getCause().toString());
+         }
+      }
+      return rows;
+   }
+
+   /*
+    * Copies Users, Store and Items from the primary to every other shard
+    **/
+   public void replicateReferenceData() throws SQLException {
+      if (shardCount() == 1) return;
+      // users are never pruned: a shard may still hold orders of a renamed login
+      replicate("users", "login", "login, password, role, favoriteItems, phoneNum", null, null);
+      replicate("Store", "storeID", "storeID, address, city, state, isOpen, reviewScore", null, STORE_UNUSED);
+      replicate("Items", "itemName", "itemName, ingredients, typeOfItem, price, description", null, ITEM_UNUSED);
+   }
+
+   /*
+    * Copies one user from the primary so orders can reference it anywhere
+    **/
+   public void replicateUser(String login) throws SQLException {
+      if (shardCount() == 1) return;
+      replicate("users", "login", "login, password, role, favoriteItems, phoneNum", login, null);
+   }
+
+   /*
+    * Copies the menu from the primary after it was edited
+    **/
+   public void replicateMenu() throws SQLException {
+      if (shardCount() == 1) return;
+      replicate("Items", "itemName", "itemName, ingredients, typeOfItem, price, description", null, ITEM_UNUSED);
+   }
+
+   // upserts the primary's rows (or a single key) into every other shard and,
+   // when pruneUnused is given, removes rows the primary no longer has that
+   // match it; a full copy skips shards already holding the same rows
+   private void replicate(String table, String key, String columns, String onlyKey, String pruneUnused) throws SQLException {
+      boolean prune = pruneUnused != null;
+      String select = "SELECT " + columns + " FROM " + table + (onlyKey == null ? "" : " WHERE " + key + " = ?");
+      String fingerprint = "SELECT COUNT(*), md5(COALESCE(string_agg(t::text, ',' ORDER BY t::text), '')) FROM ("
+                         + "SELECT " + columns + " FROM " + table + ") t;";
+      List<String> primary = onlyKey == null ? PizzaStore.queryRows(shard(0), fingerprint).get(0) : null;
+      List<List<String>> rows = null;
+      String[] names = columns.split(",\\s*");
+      StringBuilder upsert = new StringBuilder("INSERT INTO " + table + " (" + columns + ") VALUES (");
+      for (int c = 0; c < names.length; ++c) upsert.append(c == 0 ? "" : ", ").append("?");
+      upsert.append(") ON CONFLICT (" + key + ") DO UPDATE SET ");
+      for (int c = 1; c < names.length; ++c) {
+         upsert.append(c == 1 ? "" : ", ").append(names[c]).append(" = EXCLUDED.").append(names[c]);
+      }
+
+      for (int i = 1; i < shardCount(); ++i) {
+         Connection connection = shard(i);
+         synchronized (connection) {
+            if (primary != null && primary.equals(PizzaStore.queryRows(connection, fingerprint).get(0))) continue;
+            if (rows == null) {
+               rows = onlyKey == null ? PizzaStore.queryRows(shard(0), select)
+                                      : PizzaStore.queryRows(shard(0), select, onlyKey);
+            }
+            connection.setAutoCommit(false);
+            try {
+               if (prune) {
+                  Statement stmt = connection.createStatement();
+                  stmt.executeUpdate("CREATE TEMP TABLE replica_keys (k text) ON COMMIT DROP");
+                  stmt.close();
+               }
+               PreparedStatement stmt = connection.prepareStatement(upsert.toString());
+               PreparedStatement keys = prune
+                  ? connection.prepareStatement("INSERT INTO replica_keys VALUES (?)") : null;
+               for (List<String> row : rows) {
+                  // values travel as text and are cast by the server
+                  for (int c = 0; c < names.length; ++c) stmt.setObject(c + 1, row.get(c), Types.OTHER);
+                  stmt.addBatch();
+                  if (keys != null) {
+                     keys.setString(1, row.get(0));
+                     keys.addBatch();
+                  }
+               }
+               stmt.executeBatch();
+               stmt.close();
+               if (keys != null) {
+                  keys.executeBatch();
+                  keys.close();
+                  Statement delete = connection.createStatement();
+                  delete.executeUpdate("DELETE FROM " + table + " WHERE " + key + "::text NOT IN (SELECT k FROM replica_keys) "
+                                     + "AND " + pruneUnused);
+                  delete.close();
+               }
+               connection.commit();
+            }catch (SQLException e) {
+               connection.rollback();
+               throw e;
+            }finally {
+               connection.setAutoCommit(true);
+            }
+         }
+      }
+   }
+
+   public void close() {
+      if (_scatter != null) _scatter.shutdownNow();
+      for (Connection connection : _shards) {
+         try {
+            if (connection != null) connection.close();
+         }catch (SQLException e) {
+            // ignored.
+         }
+      }
+   }
+}//end ShardRouter
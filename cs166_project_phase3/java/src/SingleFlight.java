@@ -0,0 +1,162 @@
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Coalesces identical reads that are in flight at the same time.
+ *
+ * The first caller of a query runs it; callers arriving with the same
+ * query and parameters before it returns wait for that call and share its
+ * rows (or its exception) instead of sending their own.  A caller arriving
+ * after the call returned starts a new one, so nothing is cached here.
+ * If the call ran out of its caller's time budget, each waiting caller
+ * runs the query again under its own budget rather than share that
+ * timeout.
+ *
+ * Coalescing is per process: only threads of this client share a call,
+ * and every other client still sends its own query.
+ * Queries are keyed after normalizing whitespace, case outside quotes and
+ * the trailing semicolon.
+ *
+ * forget() detaches the calls in flight so that reads made after a write
+ * never join a call that started before it.  Shared rows are read-only.
+ *
+ * Disable with -Dpizzastore.singleflight=false.
+ */
+public class SingleFlight {
+
+   /*
+    * A read to run once for every caller waiting on its key
+    */
+   public interface Call {
+      List<List<String>> run() throws SQLException;
+   }
+
+   private static final class Flight {
+      final CompletableFuture<List<List<String>>> result = new CompletableFuture<List<List<String>>>();
+      final AtomicInteger followers = new AtomicInteger();
+   }
+
+   private final boolean _enabled = !"false".equals(System.getProperty("pizzastore.singleflight"));
+   private final ConcurrentHashMap<String, Flight> _inFlight = new ConcurrentHashMap<String, Flight>();
+
+   private final AtomicLong _executed = new AtomicLong();
+   private final AtomicLong _collapsed = new AtomicLong();
+   private final AtomicLong _retried = new AtomicLong();
+   private final AtomicInteger _maxFollowers = new AtomicInteger();
+
+   /*
+    * Runs the call, or joins the identical call already in flight
+    * @return the rows of the query, shared with the other callers
+    **/
+   public List<List<String>> execute(String query, Object[] params, Call call) throws SQLException {
+      if (!_enabled) {
+         _executed.incrementAndGet();
+         return call.run();
+      }
+      String key = key(query, params);
+      Flight flight = new Flight();
+      Flight running = _inFlight.putIfAbsent(key, flight);
+      if (running != null) return join(running, call);
+
+      _executed.incrementAndGet();
+      try {
+         List<List<String>> rows = Collections.unmodifiableList(call.run());
+         _inFlight.remove(key, flight);
+         flight.result.complete(rows);
+         return rows;
+      }catch (SQLException e) {
+         _inFlight.remove(key, flight);
+         flight.result.completeExceptionally(e);
+         throw e;
+      }catch (RuntimeException e) {
+         _inFlight.remove(key, flight);
+         flight.result.completeExceptionally(e);
+         throw e;
+      }finally {
+         int followers = flight.followers.get();
+         int max = _maxFollowers.get();
+         while (followers > max && !_maxFollowers.compareAndSet(max, followers)) max = _maxFollowers.get();
+      }
+   }
+
+   private List<List<String>> join(Flight flight, Call call) throws SQLException {
+      flight.followers.incrementAndGet();
+      _collapsed.incrementAndGet();
+      try {
+         return flight.result.get();
+      }catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new SQLException("Interrupted while waiting for a shared query");
+      }catch (ExecutionException e) {
+         Throwable cause = e.getCause();
+         if (cause instanceof SQLException && ActionDeadline.isTimeout((SQLException) cause)) {
+            // the first caller's budget ran out, not necessarily ours
+            _retried.incrementAndGet();
+            _collapsed.decrementAndGet();
+            _executed.incrementAndGet();
+            return Collections.unmodifiableList(call.run());
+         }
+         if (cause instanceof SQLException) throw (SQLException) cause;
+         if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+         throw new SQLException(String.valueOf(cause));
+      }
+   }
+
+   /*
+    * Stops new callers from joining the calls now in flight; their current
+    * callers still get the rows
+    **/
+   public void forget() {
+      _inFlight.clear();
+   }
+
+   /*
+    * @return the normalized query followed by each parameter and its type
+    **/
+   static String key(String query, Object[] params) {
+      StringBuilder key = new StringBuilder(query.length() + 16);
+      boolean space = false;
+      char quote = 0;
+      for (int i = 0; i < query.length(); ++i) {
+         char c = query.charAt(i);
+         if (quote != 0) {
+            if (c == quote) quote = 0;
+            key.append(c);
+            continue;
+         }
+         if (Character.isWhitespace(c)) {
+            space = true;
+            continue;
+         }
+         if (space && key.length() > 0) key.append(' ');
+         space = false;
+         if (c == '\'' || c == '"') quote = c;
+         key.append(quote != 0 ? c : Character.toLowerCase(c));
+      }
+      while (key.length() > 0 && (key.charAt(key.length() - 1) == ';' || key.charAt(key.length() - 1) == ' ')) {
+         key.setLength(key.length() - 1);
+      }
+      if (params != null) {
+         for (Object param : params) {
+            key.append('\u0000');
+            if (param != null) key.append(param.getClass().getSimpleName()).append(':').append(param);
+         }
+      }
+      return key.toString();
+   }
+
+   public String metricsReport() {
+      long executed = _executed.get();
+      long collapsed = _collapsed.get();
+      return "Single-flight reads (this client): " + executed + " executed, " + collapsed + " joined"
+           + (executed + collapsed == 0 ? "" : String.format(" (%.1f%%)", 100.0 * collapsed / (executed + collapsed)))
+           + ", at most " + _maxFollowers.get() + " waiting on one query, "
+           + _retried.get() + " rerun after a shared timeout";
+   }
+}//end SingleFlight
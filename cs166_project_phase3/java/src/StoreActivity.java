@@ -0,0 +1,160 @@
+import java.util.Arrays;
+
+/*
+ * Live per-store activity for the last hour, kept in preallocated primitive
+ * ring buffers.  Each store that has had an order or a completion owns a
+ * row of one slot per minute, found through a primitive storeID -> row
+ * map, so memory follows the stores seen rather than the largest storeID
+ * typed.  A slot is reset lazily when its minute comes round again.
+ * Recording and answering queries never touch the database, and allocate
+ * only when a new store outgrows the preallocated rows.
+ */
+public class StoreActivity {
+
+   public static final int MINUTES = 60;
+
+   private int _capacity;
+   // rows in use, the row of each store and the store of each row
+   private int _rows = 0;
+   private final InMemoryPizzaRepository.IntIntMap _rowOf;
+   private int[] _storeOf;
+   // [row * MINUTES + minute % MINUTES]
+   private long[] _slotMinute;
+   private int[] _orders;
+   private int[] _completed;
+   private long[] _revenueCents;
+
+   public StoreActivity(int initialCapacity) {
+      allocate(Math.max(initialCapacity, 1));
+      _rowOf = new InMemoryPizzaRepository.IntIntMap(_capacity);
+   }
+
+   /*
+    * Records a newly placed order
+    **/
+   public synchronized void recordOrder(int storeID, double totalPrice) {
+      int slot = slot(storeID, currentMinute());
+      if (slot < 0) return;
+      _orders[slot]++;
+      _revenueCents[slot] += Math.round(totalPrice * 100);
+   }
+
+   /*
+    * Records an order whose status changed to complete
+    **/
+   public synchronized void recordCompletion(int storeID) {
+      int slot = slot(storeID, currentMinute());
+      if (slot < 0) return;
+      _completed[slot]++;
+   }
+
+   /*
+    * Fills the given arrays with the busiest stores of the last minutes,
+    * busiest first.  The number of stores reported is at most the length
+    * of storeIDs.
+    * @return the number of stores filled in
+    **/
+   public synchronized int hotStores(int minutes, int[] storeIDs, long[] orderCounts, long[] revenueCents) {
+      long now = currentMinute();
+      int window = Math.min(Math.max(minutes, 1), MINUTES);
+      int filled = 0;
+      for (int row = 0; row < _rows; ++row) {
+         long orders = 0;
+         long revenue = 0;
+         int base = row * MINUTES;
+         for (long m = now - window + 1; m <= now; ++m) {
+            int slot = base + (int) (m % MINUTES);
+            if (_slotMinute[slot] == m) {
+               orders += _orders[slot];
+               revenue += _revenueCents[slot];
+            }
+         }
+         if (orders == 0) continue;
+
+         // insertion into the running top-k
+         int pos = filled < storeIDs.length ? filled++ : storeIDs.length;
+         while (pos > 0 && orderCounts[pos - 1] < orders) {
+            if (pos < storeIDs.length) {
+               storeIDs[pos] = storeIDs[pos - 1];
+               orderCounts[pos] = orderCounts[pos - 1];
+               revenueCents[pos] = revenueCents[pos - 1];
+            }
+            --pos;
+         }
+         if (pos < storeIDs.length) {
+            storeIDs[pos] = _storeOf[row];
+            orderCounts[pos] = orders;
+            revenueCents[pos] = revenue;
+         }
+      }
+      return filled;
+   }
+
+   /*
+    * Fills per-minute counts for one store, oldest minute first.  The trend
+    * covers as many minutes as the arrays hold, up to one hour.
+    **/
+   public synchronized void trend(int storeID, int[] orders, int[] completed, long[] revenueCents) {
+      long now = currentMinute();
+      int window = Math.min(orders.length, MINUTES);
+      int row = storeID < 0 ? -1 : _rowOf.get(storeID);
+      for (int i = 0; i < window; ++i) {
+         long m = now - window + 1 + i;
+         int slot = row < 0 ? -1 : row * MINUTES + (int) (m % MINUTES);
+         boolean live = slot >= 0 && _slotMinute[slot] == m;
+         orders[i] = live ? _orders[slot] : 0;
+         completed[i] = live ? _completed[slot] : 0;
+         revenueCents[i] = live ? _revenueCents[slot] : 0;
+      }
+   }
+
+   private static long currentMinute() {
+      return System.currentTimeMillis() / 60000L;
+   }
+
+   // returns the slot for this store and minute, clearing it if it is stale
+   private int slot(int storeID, long minute) {
+      if (storeID < 0) return -1;
+      int row = _rowOf.get(storeID);
+      if (row < 0) {
+         if (_rows == _capacity) grow(_capacity + 1);
+         row = _rows++;
+         _rowOf.put(storeID, row);
+         _storeOf[row] = storeID;
+      }
+      int slot = row * MINUTES + (int) (minute % MINUTES);
+      if (_slotMinute[slot] != minute) {
+         _slotMinute[slot] = minute;
+         _orders[slot] = 0;
+         _completed[slot] = 0;
+         _revenueCents[slot] = 0;
+      }
+      return slot;
+   }
+
+   private void allocate(int capacity) {
+      _capacity = capacity;
+      _storeOf = new int[capacity];
+      _slotMinute = new long[capacity * MINUTES];
+      _orders = new int[capacity * MINUTES];
+      _completed = new int[capacity * MINUTES];
+      _revenueCents = new long[capacity * MINUTES];
+      Arrays.fill(_slotMinute, -1);
+   }
+
+   // only reached when more stores show up than were preallocated
+   private void grow(int needed) {
+      int[] storeOf = _storeOf;
+      long[] slotMinute = _slotMinute;
+      int[] orders = _orders;
+      int[] completed = _completed;
+      long[] revenueCents = _revenueCents;
+      int used = _capacity * MINUTES;
+      allocate(Math.max(needed, _capacity * 2));
+      System.arraycopy(storeOf, 0, _storeOf, 0, storeOf.length);
+      System.arraycopy(slotMinute, 0, _slotMinute, 0, used);
+      System.arraycopy(orders, 0, _orders, 0, used);
+      System.arraycopy(completed, 0, _completed, 0, used);
+      System.arraycopy(revenueCents, 0, _revenueCents, 0, used);
+   }
+}//end StoreActivity
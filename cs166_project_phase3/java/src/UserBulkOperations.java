@@ -0,0 +1,181 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Set-based user administration for managers.  A CSV file laid out like
+ * data/users.csv (login, password, role, favoriteItems, phoneNum) is loaded
+ * into a temporary table and applied with one UPDATE ... FROM for existing
+ * users and one INSERT ... ON CONFLICT for new ones, in a single
+ * transaction.  An empty field leaves that column unchanged; new users need
+ * a password and a phone number and default to the customer role.
+ *
+ * Every input line gets an outcome (updated, inserted, or the reason it
+ * was rejected) which is written to <file>.report.csv once the transaction
+ * has committed.  The transaction runs on a connection of its own, within
+ * the manager's action budget.  Logins are keys here and cannot be renamed.
+ */
+public class UserBulkOperations {
+
+   // rows per multi-row INSERT into the staging table
+   private static final int STAGING_CHUNK = 500;
+
+   private UserBulkOperations() {
+   }
+
+   /*
+    * Applies a user CSV file
+    * @return outcome counts keyed by outcome, in first-seen order
+    **/
+   public static Map<String, Integer> applyCsv(PizzaStore esql, File file) throws SQLException, IOException {
+      List<Object[]> rows = new ArrayList<Object[]>();
+      BufferedReader reader = new BufferedReader(new FileReader(file));
+      try {
+         String line;
+         int lineNumber = 0;
+         while ((line = reader.readLine()) != null) {
+            ++lineNumber;
+            if (line.trim().isEmpty()) continue;
+            List<String> fields = Csv.parseLine(line);
+            if (lineNumber == 1 && fields.get(0).equalsIgnoreCase("login")) continue;
+            Object[] row = new Object[7];
+            row[0] = lineNumber;
+            for (int i = 0; i < 5; ++i) {
+               String value = i < fields.size() ? fields.get(i) : "";
+               row[i + 1] = value.isEmpty() ? null : value;
+            }
+            // outcome decided on the client for malformed lines
+            row[6] = fields.size() != 5 ? "rejected: expected 5 fields" : null;
+            rows.add(row);
+         }
+      }finally {
+         reader.close();
+      }
+
+      // queued profile changes must not overwrite the bulk update later
+      esql.flushProfileUpdates();
+
+      Connection connection = esql.shards().openShard(0);
+      List<List<String>> outcomes;
+      try {
+         connection.setAutoCommit(false);
+         Statement stmt = connection.createStatement();
+         try {
+            update(connection, stmt,
+               "CREATE TEMP TABLE user_import (lineNo integer, login text, password text, " +
+               "role text, favoriteItems text, phoneNum text, outcome text) ON COMMIT DROP");
+            stage(connection, rows);
+
+            // classify every line before touching users
+            update(connection, stmt,
+               "UPDATE user_import SET outcome = 'rejected: missing login' WHERE outcome IS NULL AND login IS NULL");
+            update(connection, stmt,
+               "UPDATE user_import SET outcome = 'rejected: value too long' WHERE outcome IS NULL " +
+               "AND (LENGTH(login) > 50 OR LENGTH(password) > 30 OR LENGTH(phoneNum) > 20)");
+            update(connection, stmt,
+               "UPDATE user_import SET outcome = 'rejected: unknown role' WHERE outcome IS NULL AND role IS NOT NULL " +
+               "AND LOWER(TRIM(role)) NOT IN ('customer', 'driver', 'manager')");
+            update(connection, stmt,
+               "UPDATE user_import s SET outcome = 'superseded by line ' || (SELECT MAX(d.lineNo) FROM user_import d " +
+               "WHERE d.login = s.login AND d.outcome IS NULL) " +
+               "WHERE s.outcome IS NULL AND EXISTS (SELECT 1 FROM user_import d " +
+               "WHERE d.login = s.login AND d.outcome IS NULL AND d.lineNo > s.lineNo)");
+            update(connection, stmt,
+               "UPDATE user_import s SET outcome = CASE " +
+               "WHEN EXISTS (SELECT 1 FROM users u WHERE u.login = s.login) THEN 'updated' " +
+               "WHEN s.password IS NULL OR s.phoneNum IS NULL THEN 'rejected: new user needs password and phone' " +
+               "ELSE 'inserted' END WHERE s.outcome IS NULL");
+
+            update(connection, stmt,
+               "UPDATE users u SET password = COALESCE(s.password, u.password), " +
+               "role = COALESCE(LOWER(TRIM(s.role)), u.role), " +
+               "favoriteItems = COALESCE(s.favoriteItems, u.favoriteItems), " +
+               "phoneNum = COALESCE(s.phoneNum, u.phoneNum) " +
+               "FROM user_import s WHERE s.outcome = 'updated' AND u.login = s.login");
+            update(connection, stmt,
+               "INSERT INTO users (login, password, role, favoriteItems, phoneNum) " +
+               "SELECT login, password, COALESCE(LOWER(TRIM(role)), 'customer'), favoriteItems, phoneNum " +
+               "FROM user_import WHERE outcome = 'inserted' " +
+               "ON CONFLICT (login) DO NOTHING");
+         }finally {
+            stmt.close();
+         }
+         outcomes = PizzaStore.queryRows(connection, "SELECT lineNo, login, outcome FROM user_import ORDER BY lineNo;");
+
+         connection.commit();
+      }catch (SQLException e) {
+         try {
+            connection.rollback();
+         }catch (SQLException ignored) {
+            // closing the connection discards the transaction anyway.
+         }
+         throw e;
+      }finally {
+         try {
+            connection.close();
+         }catch (SQLException e) {
+            // ignored.
+         }
+      }
+
+      // only committed changes reach the login guard and the report
+      Map<String, Integer> counts = new LinkedHashMap<String, Integer>();
+      File report = new File(file.getPath() + ".report.csv");
+      PrintWriter out = new PrintWriter(new FileWriter(report));
+      try {
+         out.println("line,login,outcome");
+         for (List<String> row : outcomes) {
+            String login = row.get(1);
+            String outcome = row.get(2);
+            out.println(row.get(0).trim() + "," + Csv.quote(login) + "," + Csv.quote(outcome));
+            String key = outcome.startsWith("superseded") ? "superseded" : outcome;
+            Integer count = counts.get(key);
+            counts.put(key, count == null ? 1 : count + 1);
+            if (outcome.equals("inserted")) esql.loginGuard().addLogin(login);
+            if (outcome.equals("updated")) esql.loginGuard().invalidate(login);
+         }
+      }finally {
+         out.close();
+      }
+      return counts;
+   }
+
+   private static void update(Connection connection, Statement stmt, String sql) throws SQLException {
+      PizzaStore.updateTimed(connection, stmt, sql, false);
+   }
+
+   private static void stage(Connection connection, List<Object[]> rows) throws SQLException {
+      for (int start = 0; start < rows.size(); start += STAGING_CHUNK) {
+         int end = Math.min(start + STAGING_CHUNK, rows.size());
+         StringBuilder sql = new StringBuilder(
+            "INSERT INTO user_import (lineNo, login, password, role, favoriteItems, phoneNum, outcome) VALUES ");
+         for (int i = start; i < end; ++i) {
+            if (i > start) sql.append(", ");
+            sql.append("(?, ?, ?, ?, ?, ?, ?)");
+         }
+         PreparedStatement insert = connection.prepareStatement(sql.toString());
+         int index = 1;
+         for (int i = start; i < end; ++i) {
+            Object[] row = rows.get(i);
+            insert.setInt(index++, (Integer) row[0]);
+            for (int c = 1; c < 7; ++c) insert.setString(index++, (String) row[c]);
+         }
+         try {
+            PizzaStore.updateTimed(connection, insert, sql.toString(), false);
+         }finally {
+            insert.close();
+         }
+      }
+   }
+}//end UserBulkOperations
@@ -0,0 +1,6 @@
+#!/bin/bash
+# sets up the order ID sequence of one shard, once, before clients use it:
+#    ./configure_shard.sh <port> <dbname> <shard index> <shard count>
+# run it for every shard, including the primary as index 0, whenever the
+# shard count changes; clients refuse to start on a shard that does not match
+cs166_psql -p $1 $2 -c "SELECT configure_order_shard($3, $4);"
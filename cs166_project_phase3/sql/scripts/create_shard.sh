@@ -0,0 +1,11 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+# creates an empty order shard: ./create_shard.sh <port> <dbname> <shard index> <shard count>
+# the program copies Users, Items and Store into it on startup when it is
+# listed in -Dpizzastore.shards=<port>/<dbname>; the primary is configured
+# separately with ./configure_shard.sh $PGPORT <dbname> 0 <shard count>
+#cs166_createdb -p $1 $2
+cs166_psql -p $1 $2 < $DIR/../src/create_tables.sql
+cs166_psql -p $1 $2 < $DIR/../src/create_indexes.sql
+cs166_psql -p $1 $2 < $DIR/../src/create_functions.sql
+$DIR/configure_shard.sh $1 $2 $3 $4
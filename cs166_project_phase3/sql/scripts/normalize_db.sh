@@ -0,0 +1,11 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+# normalizes a database created with an older create_tables.sql:
+#    ./normalize_db.sh [<port> <dbname>]
+# defaults to the main database; run it again for every shard listed in
+# -Dpizzastore.shards=<port>/<dbname>
+PORT=${1:-$PGPORT}
+DB=${2:-$USER"_project_phase_3_DB"}
+cs166_psql -p $PORT $DB < $DIR/../src/normalize_data.sql
+cs166_psql -p $PORT $DB < $DIR/../src/create_indexes.sql
+cs166_psql -p $PORT $DB < $DIR/../src/create_functions.sql
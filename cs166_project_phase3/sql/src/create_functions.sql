@@ -0,0 +1,336 @@
+/* Server-side procedures used by the Java client. Run after load_data.sql */
+
+/* Order IDs are handed out by a sequence instead of a MAX(orderID) scan */
+DROP SEQUENCE IF EXISTS foodorder_orderid_seq CASCADE;
+CREATE SEQUENCE foodorder_orderid_seq;
+SELECT setval('foodorder_orderid_seq', COALESCE((SELECT MAX(orderID) FROM FoodOrder), 9999));
+
+/* Raises an error unless the store exists and is open */
+CREATE OR REPLACE FUNCTION assert_store_open(p_storeID integer) RETURNS void AS $$
+DECLARE
+   v_isOpen varchar(3);
+BEGIN
+   SELECT isOpen INTO v_isOpen FROM Store WHERE storeID = p_storeID;
+   IF NOT FOUND THEN
+      RAISE EXCEPTION 'Store % does not exist', p_storeID;
+   END IF;
+   IF v_isOpen <> 'yes' THEN
+      RAISE EXCEPTION 'Store % is closed', p_storeID;
+   END IF;
+END;
+$$ LANGUAGE plpgsql;
+
+/*
+ * Places an order in a single round trip: checks the store is open,
+ * validates and prices every item against Items, then inserts the
+ * FoodOrder row and its ItemsInOrder rows. Duplicate item names are
+ * merged into one row. Returns the new order ID and its total.
+ */
+CREATE OR REPLACE FUNCTION place_order(p_login varchar,
+                                       p_storeID integer,
+                                       p_items text[],
+                                       p_quantities integer[],
+                                       OUT o_orderID integer,
+                                       OUT o_totalPrice decimal(10,2))
+AS $$
+DECLARE
+   v_missing text;
+BEGIN
+   IF array_length(p_items, 1) IS NULL THEN
+      RAISE EXCEPTION 'Order must contain at least one item';
+   END IF;
+   IF array_length(p_items, 1) <> array_length(p_quantities, 1) THEN
+      RAISE EXCEPTION 'Every item needs exactly one quantity';
+   END IF;
+
+   PERFORM assert_store_open(p_storeID);
+
+   SELECT r.itemName INTO v_missing
+   FROM unnest(p_items) AS r(itemName)
+   WHERE NOT EXISTS (SELECT 1 FROM Items i WHERE i.itemName = r.itemName)
+   LIMIT 1;
+   IF v_missing IS NOT NULL THEN
+      RAISE EXCEPTION 'Item ''%'' does not exist', v_missing;
+   END IF;
+   IF EXISTS (SELECT 1 FROM unnest(p_quantities) AS q(quantity) WHERE q.quantity IS NULL OR q.quantity <= 0) THEN
+      RAISE EXCEPTION 'Quantities must be positive';
+   END IF;
+
+   SELECT SUM(i.price * r.quantity) INTO o_totalPrice
+   FROM unnest(p_items, p_quantities) AS r(itemName, quantity)
+   JOIN Items i ON i.itemName = r.itemName;
+
+   o_orderID := nextval('foodorder_orderid_seq');
+
+   INSERT INTO FoodOrder (orderID, login, storeID, totalPrice, orderTimestamp, orderStatus)
+   VALUES (o_orderID, p_login, p_storeID, o_totalPrice, CURRENT_TIMESTAMP(0), 'incomplete');
+
+   INSERT INTO ItemsInOrder (orderID, itemName, quantity)
+   SELECT o_orderID, r.itemName, SUM(r.quantity)
+   FROM unnest(p_items, p_quantities) AS r(itemName, quantity)
+   GROUP BY r.itemName;
+END;
+$$ LANGUAGE plpgsql;
+
+/*
+ * Prepares this database to act as shard p_index of p_count.  The order ID
+ * sequence is moved past every existing order and set to step by p_count,
+ * so every ID it hands out satisfies orderID % p_count = p_index.
+ *
+ * An administrative step, run by sql/scripts/configure_shard.sh while no
+ * client is placing orders; clients only check ShardConfig.  Running it
+ * again with the same layout changes nothing.  FoodOrder is locked while
+ * the sequence moves so no order can be inserted in between.
+ */
+CREATE OR REPLACE FUNCTION configure_order_shard(p_index integer, p_count integer)
+RETURNS integer AS $$
+DECLARE
+   v_next bigint;
+BEGIN
+   IF EXISTS (SELECT 1 FROM ShardConfig WHERE shardIndex = p_index AND shardCount = p_count) THEN
+      RETURN NULL;
+   END IF;
+   LOCK TABLE FoodOrder IN EXCLUSIVE MODE;
+   SELECT GREATEST(COALESCE((SELECT MAX(orderID) FROM FoodOrder), 9999),
+                   (SELECT last_value FROM foodorder_orderid_seq)) + 1
+   INTO v_next;
+   v_next := v_next + ((p_index - v_next % p_count) % p_count + p_count) % p_count;
+   EXECUTE 'ALTER SEQUENCE foodorder_orderid_seq INCREMENT BY ' || p_count ||
+           ' RESTART WITH ' || v_next;
+   DELETE FROM ShardConfig;
+   INSERT INTO ShardConfig (shardIndex, shardCount) VALUES (p_index, p_count);
+   RETURN v_next;
+END;
+$$ LANGUAGE plpgsql;
+
+/*
+ * Announces order status changes so clients can wait for them instead of
+ * polling.  Each order has its own channel, order_<orderID>; the payload
+ * is the new status (older drivers only see the channel name).
+ */
+CREATE OR REPLACE FUNCTION notify_order_status() RETURNS trigger AS $$
+BEGIN
+   IF NEW.orderStatus IS DISTINCT FROM OLD.orderStatus THEN
+      PERFORM pg_notify('order_' || NEW.orderID, NEW.orderStatus);
+   END IF;
+   RETURN NEW;
+END;
+$$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS foodorder_status_notify ON FoodOrder;
+CREATE TRIGGER foodorder_status_notify
+AFTER UPDATE OF orderStatus ON FoodOrder
+FOR EACH ROW EXECUTE PROCEDURE notify_order_status();
+
+/*
+ * Places an order that a client accepted while the database was
+ * unavailable.  p_journalID is the client-generated ID of the order; a
+ * second call with the same ID returns the first result instead of
+ * placing the order again, so journal replay can safely be retried.  The
+ * order keeps the time the customer placed it.
+ */
+CREATE OR REPLACE FUNCTION place_journaled_order(p_journalID varchar,
+                                                 p_login varchar,
+                                                 p_storeID integer,
+                                                 p_items text[],
+                                                 p_quantities integer[],
+                                                 p_placedAt timestamp,
+                                                 OUT o_orderID integer,
+                                                 OUT o_totalPrice decimal(10,2))
+AS $$
+BEGIN
+   -- serializes concurrent attempts with the same ID until the first commits
+   PERFORM pg_advisory_xact_lock(hashtext(p_journalID));
+
+   SELECT f.orderID, f.totalPrice INTO o_orderID, o_totalPrice
+   FROM JournaledOrder j JOIN FoodOrder f ON f.orderID = j.orderID
+   WHERE j.journalID = p_journalID;
+   IF FOUND THEN
+      RETURN;
+   END IF;
+
+   SELECT p.o_orderID, p.o_totalPrice INTO o_orderID, o_totalPrice
+   FROM place_order(p_login, p_storeID, p_items, p_quantities) p;
+   UPDATE FoodOrder SET orderTimestamp = date_trunc('second', p_placedAt) WHERE orderID = o_orderID;
+   INSERT INTO JournaledOrder (journalID, orderID) VALUES (p_journalID, o_orderID);
+END;
+$$ LANGUAGE plpgsql;
+
+/*
+ * Places a new order with the items of one of the user's past orders,
+ * priced at today's menu prices.  Items no longer on the menu are left
+ * out.  p_storeID NULL reorders from the store of the past order.
+ */
+CREATE OR REPLACE FUNCTION reorder_order(p_login varchar,
+                                         p_sourceID integer,
+                                         p_storeID integer,
+                                         OUT o_orderID integer,
+                                         OUT o_totalPrice decimal(10,2))
+AS $$
+DECLARE
+   v_owner varchar(50);
+   v_storeID integer;
+BEGIN
+   SELECT login, storeID INTO v_owner, v_storeID FROM FoodOrder WHERE orderID = p_sourceID;
+   IF NOT FOUND THEN
+      RAISE EXCEPTION 'Order % does not exist', p_sourceID;
+   END IF;
+   IF v_owner <> p_login THEN
+      RAISE EXCEPTION 'Order % was placed by another user', p_sourceID;
+   END IF;
+   v_storeID := COALESCE(p_storeID, v_storeID);
+   PERFORM assert_store_open(v_storeID);
+
+   o_orderID := nextval('foodorder_orderid_seq');
+
+   INSERT INTO FoodOrder (orderID, login, storeID, totalPrice, orderTimestamp, orderStatus)
+   SELECT o_orderID, p_login, v_storeID, SUM(i.quantity * it.price), CURRENT_TIMESTAMP(0), 'incomplete'
+   FROM ItemsInOrder i JOIN Items it ON it.itemName = i.itemName
+   WHERE i.orderID = p_sourceID
+   HAVING COUNT(*) > 0
+   RETURNING totalPrice INTO o_totalPrice;
+   IF NOT FOUND THEN
+      RAISE EXCEPTION 'None of the items of order % are on the menu anymore', p_sourceID;
+   END IF;
+
+   INSERT INTO ItemsInOrder (orderID, itemName, quantity)
+   SELECT o_orderID, i.itemName, i.quantity
+   FROM ItemsInOrder i JOIN Items it ON it.itemName = i.itemName
+   WHERE i.orderID = p_sourceID;
+END;
+$$ LANGUAGE plpgsql;
+
+/*
+ * Menu items named in a user's favoriteItems.  The text is split on commas
+ * and semicolons and matched against item names ignoring case.
+ */
+CREATE OR REPLACE FUNCTION favorite_items(p_login varchar)
+RETURNS TABLE (itemName varchar, price decimal(10,2)) AS $$
+   SELECT DISTINCT it.itemName, it.price
+   FROM Users u
+   CROSS JOIN LATERAL regexp_split_to_table(COALESCE(u.favoriteItems, ''), '[,;]') AS f(name)
+   JOIN Items it ON LOWER(it.itemName) = LOWER(TRIM(f.name))
+   WHERE u.login = p_login;
+$$ LANGUAGE sql STABLE;
+
+/*
+ * Places an order of one of each of the user's favorite items
+ */
+CREATE OR REPLACE FUNCTION order_favorites(p_login varchar,
+                                           p_storeID integer,
+                                           OUT o_orderID integer,
+                                           OUT o_totalPrice decimal(10,2))
+AS $$
+BEGIN
+   PERFORM assert_store_open(p_storeID);
+
+   o_orderID := nextval('foodorder_orderid_seq');
+
+   INSERT INTO FoodOrder (orderID, login, storeID, totalPrice, orderTimestamp, orderStatus)
+   SELECT o_orderID, p_login, p_storeID, SUM(f.price), CURRENT_TIMESTAMP(0), 'incomplete'
+   FROM favorite_items(p_login) f
+   HAVING COUNT(*) > 0
+   RETURNING totalPrice INTO o_totalPrice;
+   IF NOT FOUND THEN
+      RAISE EXCEPTION 'None of your favorite items are on the menu';
+   END IF;
+
+   INSERT INTO ItemsInOrder (orderID, itemName, quantity)
+   SELECT o_orderID, f.itemName, 1 FROM favorite_items(p_login) f;
+END;
+$$ LANGUAGE plpgsql;
+
+/*
+ * Keeps UserOrderSummary in step with FoodOrder inside the writing
+ * transaction, so the account page is a primary-key read however many
+ * orders the user has.  An update is applied as removing the old row and
+ * adding the new one.  Removing the latest order looks the previous one
+ * up again; that only happens on deletes and rewrites of old orders.
+ */
+CREATE OR REPLACE FUNCTION maintain_user_order_summary() RETURNS trigger AS $$
+DECLARE
+   v_moved boolean;
+BEGIN
+   -- the common case, updateOrderStatus, only moves the completed count;
+   -- NEW is not set for deletes, so it is only read for updates
+   IF TG_OP = 'UPDATE' THEN
+      IF OLD.login = NEW.login AND OLD.storeID = NEW.storeID
+         AND OLD.totalPrice = NEW.totalPrice AND OLD.orderTimestamp = NEW.orderTimestamp THEN
+         UPDATE UserOrderSummary
+         SET completedCount = completedCount
+                            + CASE WHEN NEW.orderStatus = 'complete' THEN 1 ELSE 0 END
+                            - CASE WHEN OLD.orderStatus = 'complete' THEN 1 ELSE 0 END
+         WHERE login = NEW.login;
+         RETURN NULL;
+      END IF;
+   END IF;
+   IF TG_OP IN ('UPDATE', 'DELETE') THEN
+      UPDATE UserOrderSummary
+      SET orderCount = orderCount - 1,
+          completedCount = completedCount - CASE WHEN OLD.orderStatus = 'complete' THEN 1 ELSE 0 END,
+          lifetimeSpend = lifetimeSpend - OLD.totalPrice
+      WHERE login = OLD.login;
+      DELETE FROM UserOrderSummary WHERE login = OLD.login AND orderCount <= 0;
+      IF TG_OP = 'DELETE' THEN
+         v_moved := true;
+      ELSE
+         v_moved := OLD.login <> NEW.login OR OLD.orderTimestamp <> NEW.orderTimestamp OR OLD.storeID <> NEW.storeID;
+      END IF;
+      IF v_moved AND EXISTS (SELECT 1 FROM UserOrderSummary
+                     WHERE login = OLD.login AND lastOrderTime <= OLD.orderTimestamp) THEN
+         UPDATE UserOrderSummary s
+         SET lastOrderTime = f.orderTimestamp, lastStoreID = f.storeID
+         FROM (SELECT orderTimestamp, storeID FROM FoodOrder
+               WHERE login = OLD.login AND (TG_OP = 'DELETE' OR orderID <> OLD.orderID)
+               ORDER BY orderTimestamp DESC, orderID DESC LIMIT 1) f
+         WHERE s.login = OLD.login;
+      END IF;
+   END IF;
+   IF TG_OP IN ('INSERT', 'UPDATE') THEN
+      INSERT INTO UserOrderSummary AS s (login, orderCount, completedCount, lifetimeSpend, lastOrderTime, lastStoreID)
+      VALUES (NEW.login, 1, CASE WHEN NEW.orderStatus = 'complete' THEN 1 ELSE 0 END,
+              NEW.totalPrice, NEW.orderTimestamp, NEW.storeID)
+      ON CONFLICT (login) DO UPDATE
+      SET orderCount = s.orderCount + 1,
+          completedCount = s.completedCount + EXCLUDED.completedCount,
+          lifetimeSpend = s.lifetimeSpend + EXCLUDED.lifetimeSpend,
+          lastOrderTime = CASE WHEN s.lastOrderTime IS NULL OR EXCLUDED.lastOrderTime >= s.lastOrderTime
+                               THEN EXCLUDED.lastOrderTime ELSE s.lastOrderTime END,
+          lastStoreID = CASE WHEN s.lastOrderTime IS NULL OR EXCLUDED.lastOrderTime >= s.lastOrderTime
+                             THEN EXCLUDED.lastStoreID ELSE s.lastStoreID END;
+   END IF;
+   RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS foodorder_user_summary ON FoodOrder;
+CREATE TRIGGER foodorder_user_summary
+AFTER INSERT OR DELETE OR UPDATE OF login, storeID, totalPrice, orderTimestamp, orderStatus ON FoodOrder
+FOR EACH ROW EXECUTE PROCEDURE maintain_user_order_summary();
+
+/*
+ * Recomputes UserOrderSummary from FoodOrder, e.g. after a bulk load that
+ * bypassed the trigger.  FoodOrder is locked against writes meanwhile.
+ */
+CREATE OR REPLACE FUNCTION rebuild_user_order_summary() RETURNS integer AS $$
+DECLARE
+   v_users integer;
+BEGIN
+   LOCK TABLE FoodOrder IN SHARE MODE;
+   DELETE FROM UserOrderSummary;
+   INSERT INTO UserOrderSummary (login, orderCount, completedCount, lifetimeSpend, lastOrderTime, lastStoreID)
+   SELECT DISTINCT ON (login) login,
+          COUNT(*) OVER w,
+          SUM(CASE WHEN orderStatus = 'complete' THEN 1 ELSE 0 END) OVER w,
+          SUM(totalPrice) OVER w,
+          orderTimestamp, storeID
+   FROM FoodOrder
+   WINDOW w AS (PARTITION BY login)
+   ORDER BY login, orderTimestamp DESC, orderID DESC;
+   GET DIAGNOSTICS v_users = ROW_COUNT;
+   RETURN v_users;
+END;
+$$ LANGUAGE plpgsql;
+
+/* orders loaded by load_data.sql predate the trigger */
+SELECT rebuild_user_order_summary();
@@ -0,0 +1,16 @@
+/* Indexes for the filters of the Java client.  Role, orderStatus,
+   typeOfItem and isOpen hold canonical values (see normalize_data.sql), so
+   the client filters them with plain equality and these indexes apply. */
+
+DROP INDEX IF EXISTS items_type_price;
+DROP INDEX IF EXISTS items_price;
+DROP INDEX IF EXISTS store_state_review;
+
+-- View Menu by type, sorted by price
+CREATE INDEX items_type_price ON Items (typeOfItem, price);
+
+-- View Menu by maximum price
+CREATE INDEX items_price ON Items (price);
+
+-- View Stores by state and review score
+CREATE INDEX store_state_review ON Store (state, reviewScore);
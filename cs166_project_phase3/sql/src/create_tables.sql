@@ -3,10 +3,14 @@ DROP TABLE IF EXISTS Items CASCADE;
 DROP TABLE IF EXISTS FoodOrder CASCADE;
 DROP TABLE IF EXISTS Store CASCADE;
 DROP TABLE IF EXISTS ItemsInOrder CASCADE;
+DROP TABLE IF EXISTS JournaledOrder CASCADE;
+DROP TABLE IF EXISTS UserOrderSummary CASCADE;
+DROP TABLE IF EXISTS ShardConfig CASCADE;
 
 CREATE TABLE Users ( login varchar(50) NOT NULL,
                      password varchar(30) NOT NULL,
-                     role char(20) NOT NULL,
+                     role varchar(8) NOT NULL DEFAULT 'customer'
+                          CHECK (role IN ('customer', 'driver', 'manager')),
                      favoriteItems text,
                      phoneNum varchar(20) NOT NULL,
                      PRIMARY KEY(login)
@@ -14,7 +18,8 @@ CREATE TABLE Users ( login varchar(50) NOT NULL,
 
 CREATE TABLE Items ( itemName varchar(50) NOT NULL,
                        ingredients varchar(300) NOT NULL,
-                       typeOfItem varchar(30) NOT NULL,
+                       typeOfItem varchar(30) NOT NULL -- trimmed and lower case
+                          CHECK (typeOfItem = LOWER(TRIM(typeOfItem))),
                        price decimal(10,2) NOT NULL,
                        description text,
                        PRIMARY KEY(itemName)
@@ -24,7 +29,7 @@ CREATE TABLE Store ( storeID integer NOT NULL,
                            address varchar(50) NOT NULL,
                            city varchar(50) NOT NULL,
                            state varchar(60) NOT NULL,
-                           isOpen varchar(60) NOT NULL,
+                           isOpen varchar(3) NOT NULL CHECK (isOpen IN ('yes', 'no')),
                            reviewScore float,
                            PRIMARY KEY(storeID)
 );
@@ -34,7 +39,8 @@ CREATE TABLE FoodOrder ( orderID integer NOT NULL,
                            storeID integer NOT NULL, --placedAt relationship
                            totalPrice decimal(10,2) NOT NULL,
                            orderTimestamp timestamp NOT NULL,
-                           orderStatus char(50),
+                           orderStatus varchar(10) NOT NULL DEFAULT 'incomplete'
+                              CHECK (orderStatus IN ('incomplete', 'complete')),
                            PRIMARY KEY(orderID),
                            FOREIGN KEY(login) REFERENCES Users(login)
                            ON DELETE CASCADE,
@@ -53,3 +59,27 @@ CREATE TABLE ItemsInOrder ( orderID integer NOT NULL,
                            ON DELETE CASCADE
 );
 
+-- orders replayed from a client's local journal, keyed by the client-generated ID
+CREATE TABLE JournaledOrder ( journalID varchar(36) NOT NULL,
+                           orderID integer NOT NULL,
+                           replayedAt timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP(0),
+                           PRIMARY KEY(journalID),
+                           FOREIGN KEY(orderID) REFERENCES FoodOrder(orderID) ON DELETE CASCADE
+);
+
+-- per-user order totals, kept current by the foodorder_user_summary trigger
+CREATE TABLE UserOrderSummary ( login varchar(50) NOT NULL,
+                           orderCount integer NOT NULL DEFAULT 0,
+                           completedCount integer NOT NULL DEFAULT 0,
+                           lifetimeSpend decimal(12,2) NOT NULL DEFAULT 0,
+                           lastOrderTime timestamp,
+                           lastStoreID integer,
+                           PRIMARY KEY(login),
+                           FOREIGN KEY(login) REFERENCES Users(login)
+                           ON DELETE CASCADE
+);
+
+-- the shard this database is, written once by configure_order_shard
+CREATE TABLE ShardConfig ( shardIndex integer NOT NULL,
+                           shardCount integer NOT NULL
+);
@@ -1,20 +1,56 @@
 /* Replace the location to where you saved the data files*/
-COPY Users
+
+/* The files are copied into text staging tables first and normalized on
+   the way into the real tables: every field is trimmed (the files put a
+   space after each comma) and role, typeOfItem, isOpen and orderStatus are
+   lower-cased to the values their CHECK constraints allow. */
+CREATE TEMP TABLE users_stage (login text, password text, role text, favoriteItems text, phoneNum text);
+CREATE TEMP TABLE items_stage (itemName text, ingredients text, typeOfItem text, price text, description text);
+CREATE TEMP TABLE store_stage (storeID text, address text, city text, state text, isOpen text, reviewScore text);
+CREATE TEMP TABLE foodorder_stage (orderID text, login text, storeID text, totalPrice text, orderTimestamp text, orderStatus text);
+CREATE TEMP TABLE itemsinorder_stage (orderID text, itemName text, quantity text);
+
+COPY users_stage
 FROM '/class/classes/tgill018/CS166projectphase3/cs166_project_phase3/data/users.csv'
 WITH DELIMITER ',' CSV HEADER;
 
-COPY Items
+COPY items_stage
 FROM '/class/classes/tgill018/CS166projectphase3/cs166_project_phase3/data/items.csv'
 WITH DELIMITER ',' CSV HEADER;
 
-COPY Store
+COPY store_stage
 FROM '/class/classes/tgill018/CS166projectphase3/cs166_project_phase3/data/store.csv'
 WITH DELIMITER ',' CSV HEADER;
 
-COPY FoodOrder
+COPY foodorder_stage
 FROM '/class/classes/tgill018/CS166projectphase3/cs166_project_phase3/data/foodorder.csv'
 WITH DELIMITER ',' CSV HEADER;
 
-COPY ItemsInOrder
+COPY itemsinorder_stage
 FROM '/class/classes/tgill018/CS166projectphase3/cs166_project_phase3/data/itemsinorder.csv'
 WITH DELIMITER ',' CSV HEADER;
+
+INSERT INTO Users (login, password, role, favoriteItems, phoneNum)
+SELECT TRIM(login), TRIM(password), LOWER(TRIM(role)), NULLIF(TRIM(favoriteItems), ''), TRIM(phoneNum)
+FROM users_stage;
+
+INSERT INTO Items (itemName, ingredients, typeOfItem, price, description)
+SELECT TRIM(itemName), TRIM(ingredients), LOWER(TRIM(typeOfItem)), TRIM(price)::decimal(10,2),
+       NULLIF(TRIM(description), '')
+FROM items_stage;
+
+INSERT INTO Store (storeID, address, city, state, isOpen, reviewScore)
+SELECT TRIM(storeID)::integer, TRIM(address), TRIM(city), TRIM(state), LOWER(TRIM(isOpen)),
+       NULLIF(TRIM(reviewScore), '')::float
+FROM store_stage;
+
+INSERT INTO FoodOrder (orderID, login, storeID, totalPrice, orderTimestamp, orderStatus)
+SELECT TRIM(orderID)::integer, TRIM(login), TRIM(storeID)::integer, TRIM(totalPrice)::decimal(10,2),
+       TRIM(orderTimestamp)::timestamp, COALESCE(LOWER(TRIM(orderStatus)), 'incomplete')
+FROM foodorder_stage;
+
+INSERT INTO ItemsInOrder (orderID, itemName, quantity)
+SELECT TRIM(orderID)::integer, TRIM(itemName), TRIM(quantity)::integer
+FROM itemsinorder_stage;
+
+DROP TABLE users_stage, items_stage, store_stage, foodorder_stage, itemsinorder_stage;
@@ -0,0 +1,46 @@
+/* Brings a database created before role, typeOfItem, isOpen and
+   orderStatus were normalized up to create_tables.sql: values are trimmed
+   and lower-cased, the blank-padded char columns become short varchars and
+   the CHECK constraints are added.  Run it once per database (the main one
+   and every shard) with ../scripts/normalize_db.sh, which then reloads
+   create_indexes.sql and create_functions.sql.  Fails without changing
+   anything if a value is not one the constraints allow. */
+
+BEGIN;
+
+-- columns listed in a trigger cannot change type; create_functions.sql
+-- puts both triggers back
+DROP TRIGGER IF EXISTS foodorder_status_notify ON FoodOrder;
+DROP TRIGGER IF EXISTS foodorder_user_summary ON FoodOrder;
+
+ALTER TABLE Users
+   ALTER COLUMN role TYPE varchar(8) USING LOWER(TRIM(role)),
+   ALTER COLUMN role SET DEFAULT 'customer',
+   ADD CONSTRAINT users_role_check CHECK (role IN ('customer', 'driver', 'manager'));
+
+UPDATE Items
+SET ingredients = TRIM(ingredients),
+    typeOfItem = LOWER(TRIM(typeOfItem)),
+    description = NULLIF(TRIM(description), '')
+WHERE ingredients <> TRIM(ingredients)
+   OR typeOfItem <> LOWER(TRIM(typeOfItem))
+   OR description <> TRIM(description);
+ALTER TABLE Items
+   ADD CONSTRAINT items_typeofitem_check CHECK (typeOfItem = LOWER(TRIM(typeOfItem)));
+
+ALTER TABLE Store
+   ALTER COLUMN isOpen TYPE varchar(3) USING LOWER(TRIM(isOpen)),
+   ADD CONSTRAINT store_isopen_check CHECK (isOpen IN ('yes', 'no'));
+
+ALTER TABLE FoodOrder
+   ALTER COLUMN orderStatus TYPE varchar(10) USING COALESCE(LOWER(TRIM(orderStatus)), 'incomplete'),
+   ALTER COLUMN orderStatus SET DEFAULT 'incomplete',
+   ALTER COLUMN orderStatus SET NOT NULL,
+   ADD CONSTRAINT foodorder_orderstatus_check CHECK (orderStatus IN ('incomplete', 'complete'));
+
+COMMIT;
+
+ANALYZE Users;
+ANALYZE Items;
+ANALYZE Store;
+ANALYZE FoodOrder;